@@ -0,0 +1,57 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import racko.Deck;
+import racko.Rack;
+import racko.RoundFixture;
+
+/**
+ * Deck probabilities, for a mid-round draw pile
+ * @author isaac
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeckBenchmark {
+	@Param({"5", "10", "20"})
+	public int rackSize;
+	@Param({"2", "4"})
+	public int players;
+	private Deck deck;
+	private Rack rack;
+	private int card;
+	private int[] cards;
+	private double[][] probs;
+
+	@Setup
+	public void setup(){
+		RoundFixture f = new RoundFixture(players, rackSize, RoundFixture.SEED, RoundFixture.TURNS);
+		deck = f.game.deck;
+		rack = f.rack();
+		card = rack.getCardAt(rackSize/2);
+		cards = rack.getCards();
+		probs = new double[rackSize][2];
+	}
+
+	@Benchmark
+	public double getRealProbabilityHigher(){
+		return deck.getRealProbability(card, true);
+	}
+	@Benchmark
+	public double getRealProbabilityLower(){
+		return deck.getRealProbability(card, false);
+	}
+	@Benchmark
+	public double getProbabilityEstimate(){
+		return deck.getProbability(card, true, rack, 0);
+	}
+	@Benchmark
+	public double[][] getRealProbabilities(){
+		deck.getRealProbabilities(cards, probs);
+		return probs;
+	}
+}
@@ -0,0 +1,68 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import models.ModelDiablo;
+import models.ModelKyle;
+import models.ModelMax;
+import org.openjdk.jmh.annotations.*;
+import racko.Game;
+import racko.Rack;
+import racko.RoundFixture;
+
+/**
+ * Model decisions, for the first player of a mid-round fixture
+ * Diablo uses a fresh (seeded) network, so it doesn't depend on weight files
+ * @author isaac
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ModelBenchmark {
+	@Param({"5", "10", "20"})
+	public int rackSize;
+	@Param({"2", "4"})
+	public int players;
+	private Game game;
+	private Rack rack;
+	private ModelDiablo diablo;
+	private ModelKyle kyle;
+	private int turn, drawn;
+	private int[] lengths;
+
+	@Setup
+	public void setup(){
+		RoundFixture f = new RoundFixture(players, rackSize, RoundFixture.SEED, RoundFixture.TURNS);
+		game = f.game;
+		rack = f.rack();
+		turn = RoundFixture.TURNS+1;
+		//Card on top of the draw pile
+		drawn = game.deck.peek(false);
+		lengths = new int[rackSize];
+		diablo = new ModelDiablo("", false);
+		diablo.register(game, rack);
+		diablo.decideDraw(turn);
+		kyle = new ModelKyle(false);
+		kyle.register(game, rack);
+		kyle.beginRound();
+	}
+
+	@Benchmark
+	public boolean diabloDecideDraw(){
+		return diablo.decideDraw(turn);
+	}
+	@Benchmark
+	public int diabloDecidePlay(){
+		return diablo.decidePlay(turn, drawn, false);
+	}
+	@Benchmark
+	public int maxSequence(){
+		return ModelMax.maxSequence(rack, game.deck.peek(true), false, lengths);
+	}
+	@Benchmark
+	public boolean kyleDecideDraw(){
+		return kyle.decideDraw(turn);
+	}
+}
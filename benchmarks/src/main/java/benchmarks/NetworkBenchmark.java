@@ -0,0 +1,83 @@
+package benchmarks;
+
+import NeuralNetworks.Network;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import racko.RoundFixture;
+import racko.SplitRandom;
+
+/**
+ * Neural network passes, for the same layout ModelTD uses
+ * (rack_size*3 inputs, rack_size*4 hidden nodes, 1 output);
+ * the inputs are the first player's rack from a mid-round fixture
+ * @author isaac
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NetworkBenchmark {
+	@Param({"5", "10", "20"})
+	public int rackSize;
+	@Param({"2", "4"})
+	public int players;
+	private Network net;
+	private double[] inputs, batch, outputs, targets, rates;
+	private final double[] target = new double[]{.5};
+
+	@Setup
+	public void setup(){
+		RoundFixture f = new RoundFixture(players, rackSize, RoundFixture.SEED, RoundFixture.TURNS);
+		net = new Network(new int[]{rackSize*3, rackSize*4, 1}, new SplitRandom(RoundFixture.SEED));
+		inputs = new double[rackSize*3];
+		for (int i=0; i<rackSize; i++){
+			int card = f.rack().getCardAt(i);
+			inputs[i] = card / (double) f.game.card_count;
+			inputs[rackSize+i] = f.game.deck.getRealProbability(card, true);
+			inputs[rackSize*2+i] = f.game.deck.getRealProbability(card, false);
+		}
+		//One row for each slot, like ModelTD's moves
+		batch = new double[rackSize*inputs.length];
+		for (int i=0; i<rackSize; i++)
+			System.arraycopy(inputs, 0, batch, i*inputs.length, inputs.length);
+		outputs = new double[rackSize];
+		targets = new double[rackSize];
+		rates = new double[rackSize];
+		Arrays.fill(targets, .5);
+		Arrays.fill(rates, .1);
+	}
+
+	@Benchmark
+	public double compute(){
+		net.compute(inputs);
+		return net.getOutput(0);
+	}
+	/**
+	 * Scores rackSize inputs in one call
+	 */
+	@Benchmark
+	public double[] computeBatch(){
+		net.computeBatch(batch, rackSize, outputs);
+		return outputs;
+	}
+	/**
+	 * Training needs the outputs from compute, so this includes a forward pass
+	 */
+	@Benchmark
+	public double trainBackprop(){
+		net.compute(inputs);
+		net.trainBackprop(.1, target);
+		return net.getOutput(0);
+	}
+	/**
+	 * Trains rackSize inputs as one mini-batch; this does its own forward pass
+	 */
+	@Benchmark
+	public double[] trainBatch(){
+		net.trainBatch(batch, targets, rates, rackSize);
+		return rates;
+	}
+}
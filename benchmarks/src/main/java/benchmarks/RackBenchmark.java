@@ -0,0 +1,70 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import racko.Game;
+import racko.Rack;
+import racko.RoundFixture;
+
+/**
+ * Rack scoring metrics, on a mid-round rack
+ * Metrics are cached by the rack, so each benchmark first clears the caches
+ * (see RoundFixture.invalidate); swapping a card out and back in wouldn't work,
+ * since undoing a swap restores the old results
+ * @author isaac
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RackBenchmark {
+	@Param({"5", "10", "20"})
+	public int rackSize;
+	@Param({"2", "4"})
+	public int players;
+	private Game game;
+	private Rack rack;
+	private Rack.LUS lus;
+
+	@Setup
+	public void setup(){
+		RoundFixture f = new RoundFixture(players, rackSize, RoundFixture.SEED, RoundFixture.TURNS);
+		game = f.game;
+		rack = f.rack();
+		//Score the longest sequence
+		for (Rack.LUS l: rack.getLUS(false)){
+			if (lus == null || l.cards.length > lus.cards.length)
+				lus = l;
+		}
+	}
+	private void invalidate(){
+		RoundFixture.invalidate(rack, 0);
+	}
+
+	@Benchmark
+	public Object getLUS(){
+		invalidate();
+		return rack.getLUS(false);
+	}
+	@Benchmark
+	public Object getLUSCombos(){
+		invalidate();
+		return rack.getLUS(true);
+	}
+	@Benchmark
+	public int getLUSLength(){
+		invalidate();
+		return rack.getLUSLength();
+	}
+	@Benchmark
+	public double scoreProbability(){
+		invalidate();
+		return rack.scoreProbability(lus, game.dist_skew, false, true, 0);
+	}
+	@Benchmark
+	public double scoreClumpDE(){
+		return rack.scoreClumpDE(lus, game.dist_flat, game.dist_skew);
+	}
+}
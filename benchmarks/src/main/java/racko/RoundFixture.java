@@ -0,0 +1,63 @@
+package racko;
+
+import client.PlayerComputer;
+import interfaces.Player;
+import models.ModelMax;
+
+/**
+ * A seeded game, stopped partway through a round, for benchmarks
+ * Every player is a ModelMax computer; the round is played for a number
+ * of moves, so the racks, piles and discard memory look like a real game.
+ * The same settings and seed always give the same position.
+ * This lives in the racko package, since dealing and discarding aren't public
+ * @author isaac
+ */
+public class RoundFixture {
+	//Defaults used by all benchmarks, so results are comparable between commits
+	public static final long SEED = 42;
+	public static final int TURNS = 4;
+	
+	public final Game game;
+	public final Player[] players;
+
+	/**
+	 * Deals a round and plays it up to a certain point
+	 * @param playerCount how many players
+	 * @param rackSize how large each rack should be
+	 * @param seed random seed for the game
+	 * @param turns how many turns each player plays; if someone wins
+	 * before then, the round is re-dealt and played again
+	 */
+	public RoundFixture(int playerCount, int rackSize, long seed, int turns){
+		players = new Player[playerCount];
+		for (int i=0; i<playerCount; i++)
+			players[i] = new PlayerComputer(new ModelMax());
+		game = Game.create(players, rackSize, 1, false, seed);
+		game.deck.deal();
+		for (int i=0, moves=turns*playerCount; i<moves; i++){
+			Player p = players[i % playerCount];
+			game.deck.discard(p.play());
+			if (p.rack.isSorted()){
+				game.deck.deal();
+				i = -1;
+			}
+		}
+	}
+	/**
+	 * Rack of the first player; every player has had the same number of
+	 * turns, so it is this player's turn next
+	 * @return the rack
+	 */
+	public Rack rack(){
+		return players[0].rack;
+	}
+	/**
+	 * Clears a rack's cached results from a slot onwards, without changing the rack
+	 * (see Rack.invalidateCaches)
+	 * @param rack the rack
+	 * @param slot the first slot to recompute
+	 */
+	public static void invalidate(Rack rack, int slot){
+		rack.invalidateCaches(slot);
+	}
+}
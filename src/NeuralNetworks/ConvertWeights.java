@@ -0,0 +1,40 @@
+package NeuralNetworks;
+
+/**
+ * Converts exported networks to the binary format (see Network), which loads
+ * much faster than text; each file is saved next to the original, with its
+ * extension replaced by Network.BINARY_EXTENSION
+ * Usage: ConvertWeights [-float] file...
+ *	-float stores the weights as floats, halving the file size but losing precision
+ * e.g. ConvertWeights weights/diablo/*.txt weights/ai/*.txt
+ * @author isaac
+ */
+public class ConvertWeights {
+	public static void main(String[] args){
+		boolean floats = false;
+		int failed = 0;
+		for (String file: args){
+			if (file.equals("-float")){
+				floats = true;
+				continue;
+			}
+			int ext = file.lastIndexOf('.');
+			String out = (ext > file.lastIndexOf('/') ? file.substring(0, ext) : file)+Network.BINARY_EXTENSION;
+			try{
+				Network net = new Network(file);
+				if (!net.exportBinary(out, floats))
+					throw new Exception("could not write "+out);
+				//Make sure it reads back the same
+				Network check = new Network(out);
+				if (!floats && !net.sameWeights(check))
+					throw new Exception("converted weights don't match");
+				System.out.println(file+" -> "+out);
+			} catch (Exception e){
+				System.out.println("Could not convert "+file+": "+e.getMessage());
+				failed++;
+			}
+		}
+		if (failed != 0)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,45 @@
+package NeuralNetworks;
+
+/**
+ * Something that can compute a network's outputs, without training it;
+ * either a Network, or a reduced precision copy of one (see InferenceNetwork)
+ * @author isaac
+ */
+public interface Inference {
+	/**
+	 * Get how many input nodes are in the network
+	 * @return number of input nodes
+	 */
+	public int inputNodes();
+	/**
+	 * How many output nodes are in the network
+	 * @return number of output nodes
+	 */
+	public int outputNodes();
+	/**
+	 * Computes the output of the network, for getOutput
+	 * @param data the input data
+	 */
+	public void compute(double[] data);
+	/**
+	 * Computes the output of the network for many inputs at once
+	 * @param data the input data, row-major; a row of inputNodes() values for each input
+	 * @param rows number of inputs
+	 * @param outputs where to put the outputs, row-major; a row of outputNodes()
+	 * values for each input
+	 */
+	public void computeBatch(double[] data, int rows, double[] outputs);
+	/**
+	 * Gets the output of the network, from the last call to compute
+	 * @return the output node with greatest value; with only one output
+	 * node, 1 if it is positive
+	 */
+	public int getOutput();
+	/**
+	 * Get the output of a specific output node (zero indexed), from the
+	 * last call to compute
+	 * @param node the output node index
+	 * @return the node's output value
+	 */
+	public double getOutput(int node);
+}
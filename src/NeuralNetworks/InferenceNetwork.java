@@ -0,0 +1,280 @@
+package NeuralNetworks;
+
+/**
+ * A reduced precision copy of a trained Network, for players that don't train
+ * Weights are stored as floats, or as int8 with a scale for each layer, and
+ * outputs are added up in floats; the sigmoid is read from a table, rather
+ * than calling Math.exp. Outputs drift slightly from the original network
+ * (see client.Testing.testInference), so this can't be trained
+ * @author isaac
+ */
+public class InferenceNetwork implements Inference {
+	//Weight precisions; DOUBLE just uses the original network (see deploy)
+	public static final int DOUBLE = 0, FLOAT = 1, INT8 = 2;
+	//Precision that non-training players use
+	public static int deploy_precision = FLOAT;
+	//Sigmoid table; covers [-SIGMOID_RANGE, SIGMOID_RANGE], and is flat outside of that
+	private static final float SIGMOID_RANGE = 16;
+	private static final int SIGMOID_STEPS = 4096;
+	private static final float SIGMOID_SCALE = SIGMOID_STEPS/(2*SIGMOID_RANGE);
+	private static final float[] SIGMOID = new float[SIGMOID_STEPS+2];
+	static{
+		for (int i=0; i<SIGMOID.length; i++)
+			SIGMOID[i] = (float) Network.sigmoid(i/(double) SIGMOID_SCALE - SIGMOID_RANGE);
+	}
+
+	private final Network source;
+	private final int precision;
+	//Node counts for each layer, not counting bias nodes
+	private int[] sizes;
+	//Weights, in the same layout as Network; only one of these is used
+	private float[][] weights;
+	private byte[][] quantized;
+	//Scale for each layer's int8 weights
+	private float[] scales;
+	//Output for each node, including bias nodes
+	private float[][] outs;
+	//Outputs for each layer when computing a batch; row-major, one row per input, grown as needed
+	private float[][] batch_outs;
+	private int batch_rows;
+
+	/**
+	 * Makes a reduced precision copy of a network
+	 * @param net the network to copy
+	 * @param precision FLOAT or INT8
+	 */
+	public InferenceNetwork(Network net, int precision){
+		assert(precision == FLOAT || precision == INT8);
+		source = net;
+		this.precision = precision;
+		update();
+	}
+	/**
+	 * Allocates the layers, to match the original network
+	 */
+	private void createNetwork(){
+		int count = source.hiddenLayers()+2;
+		sizes = new int[count];
+		outs = new float[count][];
+		batch_outs = new float[count][];
+		batch_rows = 0;
+		for (int l=0; l<count; l++){
+			boolean hidden = l != count-1;
+			sizes[l] = source.layerNodes(l) - (hidden ? 1 : 0);
+			outs[l] = new float[source.layerNodes(l)];
+			if (hidden)
+				outs[l][sizes[l]] = l == 0 ? 1 : (float) Network.sigmoid(1);
+		}
+		weights = precision == FLOAT ? new float[count-1][] : null;
+		quantized = precision == INT8 ? new byte[count-1][] : null;
+		scales = new float[count-1];
+		for (int l=0; l<count-1; l++){
+			int length = source.layerWeights(l).length;
+			if (precision == FLOAT)
+				weights[l] = new float[length];
+			else quantized[l] = new byte[length];
+		}
+	}
+	/**
+	 * Checks if the original network still has the same layers as this copy
+	 */
+	private boolean sameLayers(){
+		if (sizes == null || source.hiddenLayers()+2 != sizes.length)
+			return false;
+		for (int l=0; l<sizes.length; l++){
+			if (source.layerNodes(l) != outs[l].length)
+				return false;
+		}
+		return true;
+	}
+	/**
+	 * Gets the network a non-training player should use, according to deploy_precision
+	 * @param net the trained network
+	 * @return the network itself if deploy_precision is DOUBLE, otherwise a reduced
+	 * precision copy of it
+	 */
+	public static Inference deploy(Network net){
+		return deploy_precision == DOUBLE ? net : new InferenceNetwork(net, deploy_precision);
+	}
+	/**
+	 * Copies the weights from the original network again; call this if it was
+	 * trained since the copy was made (including adding hidden layers)
+	 */
+	public final void update(){
+		if (!sameLayers())
+			createNetwork();
+		for (int l=0; l<scales.length; l++){
+			double[] w = source.layerWeights(l);
+			if (precision == FLOAT){
+				float[] f = weights[l];
+				for (int k=0; k<w.length; k++)
+					f[k] = (float) w[k];
+				continue;
+			}
+			//Scale so the largest weight in the layer is +/-127
+			double max = 0;
+			for (int k=0; k<w.length; k++)
+				max = Math.max(max, Math.abs(w[k]));
+			double scale = max == 0 ? 1 : max/127;
+			byte[] q = quantized[l];
+			for (int k=0; k<w.length; k++)
+				q[k] = (byte) Math.round(w[k]/scale);
+			scales[l] = (float) scale;
+		}
+	}
+	/**
+	 * @return the precision the weights are stored with; FLOAT or INT8
+	 */
+	public int getPrecision(){
+		return precision;
+	}
+
+	private static float sigmoid(float net){
+		float x = (net + SIGMOID_RANGE)*SIGMOID_SCALE;
+		if (x <= 0)
+			return SIGMOID[0];
+		if (x >= SIGMOID_STEPS)
+			return SIGMOID[SIGMOID_STEPS];
+		//Linear interpolation between the two nearest entries
+		int i = (int) x;
+		float t = x - i;
+		return SIGMOID[i] + (SIGMOID[i+1]-SIGMOID[i])*t;
+	}
+
+	@Override
+	public int inputNodes(){
+		return sizes[0];
+	}
+	@Override
+	public int outputNodes(){
+		return sizes[sizes.length-1];
+	}
+	@Override
+	public void compute(double[] data){
+		assert(data.length == sizes[0]);
+		float[] in = outs[0];
+		for (int i=0; i<data.length; i++)
+			in[i] = (float) data[i];
+		forward();
+	}
+	@Override
+	public void computeBatch(double[] data, int rows, double[] outputs){
+		int count = sizes.length;
+		assert(data.length >= rows*sizes[0] && outputs.length >= rows*outputNodes());
+		if (rows > batch_rows){
+			batch_rows = rows;
+			for (int l=0; l<count; l++)
+				batch_outs[l] = new float[rows*outs[l].length];
+		}
+		//Inputs, with their bias value
+		float[] in = batch_outs[0];
+		int inputs = sizes[0], stride = outs[0].length;
+		for (int r=0; r<rows; r++){
+			for (int i=0, k=r*inputs, o=r*stride; i<inputs; i++)
+				in[o++] = (float) data[k++];
+			in[r*stride + inputs] = 1;
+		}
+		for (int l=1; l<count; l++){
+			float[] out = batch_outs[l];
+			int nodes = sizes[l], links = stride;
+			stride = outs[l].length;
+			//Bias node, for the next layer
+			if (l != count-1){
+				for (int r=0; r<rows; r++)
+					out[r*stride + nodes] = outs[l][nodes];
+			}
+			//Four rows at a time, so each weight is loaded once for all four, and their
+			//sums don't have to wait on each other
+			int r = 0;
+			for (; r+4<=rows; r+=4){
+				int k0 = r*links, k1 = k0+links, k2 = k1+links, k3 = k2+links, o = r*stride;
+				for (int j=0, base=0; j<nodes; j++, base+=links){
+					float net0 = 0, net1 = 0, net2 = 0, net3 = 0, scale = 1;
+					if (precision == FLOAT){
+						float[] w = weights[l-1];
+						for (int i=0; i<links; i++){
+							float wi = w[base+i];
+							net0 += in[k0+i]*wi;
+							net1 += in[k1+i]*wi;
+							net2 += in[k2+i]*wi;
+							net3 += in[k3+i]*wi;
+						}
+					}
+					else{
+						byte[] q = quantized[l-1];
+						scale = scales[l-1];
+						for (int i=0; i<links; i++){
+							float wi = q[base+i];
+							net0 += in[k0+i]*wi;
+							net1 += in[k1+i]*wi;
+							net2 += in[k2+i]*wi;
+							net3 += in[k3+i]*wi;
+						}
+					}
+					out[o+j] = sigmoid(net0*scale);
+					out[o+stride+j] = sigmoid(net1*scale);
+					out[o+stride*2+j] = sigmoid(net2*scale);
+					out[o+stride*3+j] = sigmoid(net3*scale);
+				}
+			}
+			//Leftover rows
+			for (; r<rows; r++){
+				int k0 = r*links, o = r*stride;
+				for (int j=0, base=0; j<nodes; j++, base+=links)
+					out[o+j] = sigmoid(dot(l-1, base, in, k0, links));
+			}
+			in = out;
+		}
+		for (int k=0, l=rows*outputNodes(); k<l; k++)
+			outputs[k] = in[k];
+	}
+	/**
+	 * Weighted sum of a node's inputs
+	 * @param layer the layer the weights go out from
+	 * @param base index of the node's first weight
+	 * @param in the inputs, with their bias value
+	 * @param offset index of the first input
+	 * @param links number of inputs
+	 */
+	private float dot(int layer, int base, float[] in, int offset, int links){
+		float net = 0;
+		if (precision == FLOAT){
+			float[] w = weights[layer];
+			for (int i=0; i<links; i++)
+				net += in[offset+i]*w[base+i];
+			return net;
+		}
+		byte[] q = quantized[layer];
+		for (int i=0; i<links; i++)
+			net += in[offset+i]*q[base+i];
+		return net*scales[layer];
+	}
+	/**
+	 * Computes the outputs of every layer, once the inputs are in outs[0]
+	 */
+	private void forward(){
+		for (int l=1; l<sizes.length; l++){
+			float[] in = outs[l-1], out = outs[l];
+			for (int j=0, base=0, links=in.length, nodes=sizes[l]; j<nodes; j++, base+=links)
+				out[j] = sigmoid(dot(l-1, base, in, 0, links));
+		}
+	}
+	@Override
+	public int getOutput(){
+		float[] last = outs[outs.length-1];
+		//If only one output node, return binary answer (1/0)
+		if (last.length == 1)
+			return last[0] > 0 ? 1 : 0;
+		//Otherwise, take the output with the highest output
+		int max_idx = 0;
+		for (int i=1; i<last.length; i++){
+			if (last[i] > last[max_idx])
+				max_idx = i;
+		}
+		return max_idx;
+	}
+	@Override
+	public double getOutput(int node){
+		return outs[outs.length-1][node];
+	}
+}
@@ -4,45 +4,128 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-import java.util.ListIterator;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.zip.CRC32;
 
 /**
  * A generic multi-layered neural network
+ * Each layer is stored as flat arrays, rather than a graph of nodes: the
+ * weights between two layers are one matrix, and each layer has a vector of
+ * outputs and errors; every layer but the output layer has an extra bias node
+ *
+ * Networks are saved as text, or in a binary format that loads much faster
+ * (see export). Binary files are little-endian:
+ *	int magic ("RKNN"), short version, byte precision (4 = float, 8 = double),
+ *	byte activation (0 = sigmoid), int frozen, int layer count, int node count
+ *	for each layer (not counting bias nodes), int CRC32 of the weights;
+ *	then the weights, in the same order they're kept in memory (see weights)
  * @author isaac
  */
-public class Network{
-	//Input nodes for data features; 
-	public final ArrayList<Node[]> layers = new ArrayList();
-	private int input_nodes;
+public class Network implements Inference{
+	public static final int MAGIC = 0x4e4e4b52, VERSION = 1;
+	public static final byte ACTIVATION_SIGMOID = 0;
+	//Files ending with this are exported in the binary format
+	public static final String BINARY_EXTENSION = ".bin";
+	private static final double ADJUST = 10;
+	//Node counts for each layer, not counting bias nodes
+	private int[] sizes;
+	//Weights into each layer; weights[l] goes from layer l to layer l+1, with one
+	//row per node in layer l+1, holding the weights from each node in layer l
+	//(the bias node last), so weights[l][j*(sizes[l]+1) + i] is node i to node j
+	private double[][] weights;
+	//Output for each node, including bias nodes
+	private double[][] outs;
+	//Training error for each node, not including bias nodes
+	private double[][] errs;
+	//Outputs and errors for each layer when computing or training a batch (see
+	//computeBatch); row-major, one row per input, grown as needed; [0] is unused,
+	//since the inputs are given
+	private double[][] batch_outs = new double[0][], batch_errs;
+	private int batch_rows = 0;
+	//Weight changes added up over a batch, before they're applied (see trainBatch)
+	private double[][] grads;
 	private int frozen;
-	
+	//True once the weights are shared with another network (see share)
+	private boolean shared = false;
+	//Random number generator for initial weights, and those of added layers; shared
+	//copies don't have one, since they can't add layers
+	private Random rand;
+
 	/**
-	 * Builds a standard multi-layered network
+	 * Builds a standard multi-layered network, with an unseeded random number
+	 * generator; use randomize or setRandom to make it repeatable
 	 * @param layers node counts for each layer
 	 */
 	public Network(int[] layers){
+		this(layers, new Random());
+	}
+	/**
+	 * Builds a standard multi-layered network
+	 * @param layers node counts for each layer
+	 * @param rand random number generator for initial weights (and
+	 * the weights of any hidden layers added later)
+	 */
+	public Network(int[] layers, Random rand){
+		this.rand = rand;
 		createNetwork(layers);
+		randomize(rand);
 		//No frozen layers to start out with (deep learning)
 		frozen = 0;
 	}
 	/**
-	 * Creates a network by importing predefined weights
+	 * Creates a network that shares another network's weights (see share)
+	 * @param shared the network to share weights with
+	 */
+	private Network(Network shared){
+		this.shared = true;
+		rand = null;
+		frozen = shared.frozen;
+		sizes = shared.sizes;
+		weights = shared.weights;
+		outs = new double[sizes.length][];
+		errs = new double[sizes.length][];
+		for (int l=0; l<sizes.length; l++)
+			createLayer(l);
+	}
+	/**
+	 * Creates a network by importing predefined weights; the file can be
+	 * in either the binary or the text format. Its random number generator
+	 * isn't seeded; use setRandom before adding layers to make it repeatable
 	 * @param filename the exported network
 	 * @throws Exception if there was an error loading the file
 	 */
 	public Network(String filename) throws Exception{
+		rand = new Random();
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			if (channel.size() >= 4){
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				buf.order(ByteOrder.LITTLE_ENDIAN);
+				if (buf.getInt(0) == MAGIC){
+					loadBinary(buf, filename);
+					return;
+				}
+			}
+		}
+		//Otherwise, it's text
 		try (FileReader x = new FileReader(filename)){
 			Scanner s = new Scanner(x);
 			String splitter = "(\r?\n|\t)";
 			s.useDelimiter(splitter);
-			
+
 			//Frozen layers
 			frozen = s.nextInt();
 			s.nextLine();
-			
+
 			//Layer sizes
 			String line2 = s.nextLine();
 			String[] line2_vals = line2.split(splitter);
@@ -50,72 +133,212 @@ public class Network{
 			for (int i=0; i<f_layers.length; i++)
 				f_layers[i] = Integer.parseInt(line2_vals[i]);
 			createNetwork(f_layers);
-			
-			//Network weights
-			for (Node[] layer: layers){
-				for (Node n: layer){
-					ListIterator<Double> iter = n.weights.listIterator();
-					while (iter.hasNext()){
-						iter.next();
-						iter.set(s.nextDouble());
-					}
+
+			//Network weights; the file has a line for each node (bias nodes
+			//included), listing the weights of its outgoing links
+			for (int l=0; l<sizes.length; l++){
+				int nodes = outs[l].length,
+					links = l == sizes.length-1 ? 0 : sizes[l+1];
+				for (int i=0; i<nodes; i++){
+					for (int j=0; j<links; j++)
+						weights[l][j*nodes + i] = s.nextDouble();
 					s.nextLine();
 				}
 			}
 		}
 	}
+	/**
+	 * Reads a network in the binary format, straight into the weight arrays
+	 * @param buf the mapped file
+	 * @param filename name of the file, for error messages
+	 * @throws IOException if the file is corrupt, or isn't a supported version
+	 */
+	private void loadBinary(MappedByteBuffer buf, String filename) throws IOException{
+		try{
+			buf.getInt();
+			int version = buf.getShort();
+			if (version != VERSION)
+				throw new IOException("Unsupported network version: "+version);
+			int precision = buf.get(), activation = buf.get();
+			if (precision != 4 && precision != 8)
+				throw new IOException("Corrupt network file; unknown precision "+precision);
+			if (activation != ACTIVATION_SIGMOID)
+				throw new IOException("Unsupported network activation: "+activation);
+			frozen = buf.getInt();
+			int count = buf.getInt();
+			if (count < 1 || count > buf.remaining()/4)
+				throw new IOException("Corrupt network file: "+filename);
+			int[] f_layers = new int[count];
+			for (int i=0; i<count; i++){
+				f_layers[i] = buf.getInt();
+				if (f_layers[i] < 1)
+					throw new IOException("Corrupt network file: "+filename);
+			}
+			int checksum = buf.getInt();
+			//Make sure the weights are all there before allocating anything
+			long total = 0;
+			for (int l=0; l<count-1; l++)
+				total += (f_layers[l]+1)*(long) f_layers[l+1];
+			if (total*precision != buf.remaining())
+				throw new IOException("Truncated network file: "+filename);
+			if (checksum(buf) != checksum)
+				throw new IOException("Network file failed checksum: "+filename);
+			createNetwork(f_layers);
+			for (double[] w: weights){
+				if (precision == 8)
+					buf.asDoubleBuffer().get(w);
+				else{
+					FloatBuffer f = buf.asFloatBuffer();
+					for (int k=0; k<w.length; k++)
+						w[k] = f.get();
+				}
+				buf.position(buf.position() + w.length*precision);
+			}
+		} catch (BufferUnderflowException e){
+			throw new IOException("Truncated network file: "+filename);
+		}
+	}
+	/**
+	 * CRC32 of a buffer's remaining bytes; the buffer's position isn't changed
+	 */
+	private static int checksum(ByteBuffer buf){
+		CRC32 crc = new CRC32();
+		ByteBuffer view = buf.duplicate();
+		byte[] chunk = new byte[8192];
+		while (view.hasRemaining()){
+			int len = Math.min(chunk.length, view.remaining());
+			view.get(chunk, 0, len);
+			crc.update(chunk, 0, len);
+		}
+		return (int) crc.getValue();
+	}
+	/**
+	 * Allocates the layers; weights are left at zero
+	 */
 	private void createNetwork(int[] layers){
 		//Network must have at least one layer
 		assert(layers != null && layers.length != 0);
-		input_nodes = layers[0];
-		
-		//Create nodes for each layer
-		for (int i=0, count; i<layers.length; i++){
-			count = layers[i];
+		int count = layers.length;
+		sizes = layers.clone();
+		weights = new double[count-1][];
+		outs = new double[count][];
+		errs = new double[count][];
+		for (int l=0; l<count; l++){
 			//Layers must have positive node count
-			assert(count > 0);
-			boolean hidden = i != layers.length-1;
-			//Create the actual nodes
-			Node[] layer = new Node[count+(hidden ? 1 : 0)];
-			for (int j=0; j<count; j++)
-				layer[j] = new Node(false);
-			//Extra node for bias
-			if (hidden)
-				layer[count] = new Node(true);
-			this.layers.add(layer);
+			assert(sizes[l] > 0);
+			createLayer(l);
+			if (l != 0)
+				weights[l-1] = new double[sizes[l]*outs[l-1].length];
 		}
-		
-		//Create links
-		for (int i=0; i<layers.length-1; i++){
-			Node[] prev = this.layers.get(i),
-					next = this.layers.get(i+1);
-			for (Node n: next){
-				for (Node p: prev)
-					p.addOutlink(n);
-			}
+	}
+	/**
+	 * Allocates the outputs and errors for a layer, once sizes[l] is set
+	 */
+	private void createLayer(int l){
+		boolean hidden = l != sizes.length-1;
+		outs[l] = new double[sizes[l]+(hidden ? 1 : 0)];
+		errs[l] = new double[sizes[l]];
+		//Extra node for bias; the bias node of a hidden layer goes through the
+		//activation function like any other node, so its output is sigmoid(1)
+		if (hidden)
+			outs[l][sizes[l]] = l == 0 ? 1 : sigmoid(1);
+	}
+	/**
+	 * Gives every weight a new random starting value; use this to seed a
+	 * freshly created network from a game's random streams (see Game.split)
+	 * @param rand random number generator for the weights; this is also used
+	 * for any hidden layers added later
+	 */
+	public void randomize(Random rand){
+		this.rand = rand;
+		//Same order the weights were created in
+		for (double[] w: weights){
+			for (int k=0; k<w.length; k++)
+				w[k] = randomWeight(rand);
 		}
 	}
-	
+	/**
+	 * Sets the random number generator for the weights of any hidden layers added
+	 * later, without changing the current weights; use this to seed a loaded
+	 * network from a game's random streams (see Game.split)
+	 * @param rand random number generator to use
+	 */
+	public void setRandom(Random rand){
+		this.rand = rand;
+	}
+	/**
+	 * Gives a small, random starting weight
+	 * @param rand random number generator to use
+	 * @return the weight
+	 */
+	private static double randomWeight(Random rand){
+		return rand.nextDouble()/ADJUST - 1/ADJUST/2;
+	}
+	static double sigmoid(double net){
+		return 1/(1+Math.exp(-net));
+	}
+
 	/**
 	 * Get how many input nodes are in the network
 	 * @return number of input nodes
 	 */
+	@Override
 	public int inputNodes(){
-		return input_nodes;
+		return sizes[0];
 	}
 	/**
 	 * How many output nodes are in the network
-	 * @return 
+	 * @return
 	 */
+	@Override
 	public int outputNodes(){
-		return layers.get(layers.size()-1).length;
+		return sizes[sizes.length-1];
 	}
 	/**
 	 * How many hidden layers in the network
-	 * @return 
+	 * @return
 	 */
 	public int hiddenLayers(){
-		return layers.size()-2;
+		return sizes.length-2;
+	}
+	/**
+	 * How many nodes are in a layer
+	 * @param layer the layer; 0 is the input layer
+	 * @return number of nodes, including the bias node (every layer but
+	 * the output layer has one)
+	 */
+	public int layerNodes(int layer){
+		return outs[layer].length;
+	}
+	/**
+	 * The weights from one layer to the next, for making reduced precision copies
+	 * (see InferenceNetwork); one row per node in the next layer, holding the weights
+	 * from each node in this layer, with the bias node last
+	 * @param layer the layer the weights go out from
+	 * @return the weights; not a copy
+	 */
+	double[] layerWeights(int layer){
+		return weights[layer];
+	}
+	/**
+	 * Makes a network that uses the same weights as this one, but has its own
+	 * outputs, errors and batch space; training either one trains both
+	 * Each thread can compute and train with its own copy, without any locking
+	 * ("Hogwild" training): updates from different threads can overlap, and the
+	 * odd one gets lost, but for small updates like these it hardly affects training
+	 * Layers can't be added or frozen once shared; that would only change one copy
+	 * @return the new network
+	 */
+	public Network share(){
+		shared = true;
+		return new Network(this);
+	}
+	/**
+	 * Checks if the weights are shared with another network (see share)
+	 * @return true, if layers can no longer be added or frozen
+	 */
+	public boolean isShared(){
+		return shared;
 	}
 	/**
 	 * Freezes a layer so weights are not adjusted; use for deep learning
@@ -124,99 +347,184 @@ public class Network{
 	 * use 0 to unfreeze all layers; need at least 1 hidden layer unfrozen
 	 */
 	public void freeze(int layer){
-		assert(layer >= 0 && layer <= layers.size()-3);
+		assert(layer >= 0 && layer <= sizes.length-3);
+		if (shared)
+			throw new IllegalStateException("Can't freeze layers of a shared network");
 		frozen = layer;
 	}
 	/**
-	 * Inserts another hidden layer
-	 * @param nodes 
+	 * Inserts another hidden layer, just before the output layer
+	 * @param nodes
 	 */
 	public void addHiddenLayer(int nodes){
-		int layer_count = layers.size();
-		Node[] last = layers.get(layer_count-2),
-				output = layers.get(layer_count-1);
-		//Create hidden layer
-		Node[] hidden = new Node[nodes+1];
-		for (int i=0; i<nodes; i++)
-			hidden[i] = new Node(false);
-		//Bias weight
-		hidden[nodes] = new Node(true);
-		
-		//Connect last (old last hidden layer) to the new hidden layer
-		for (Node n: last){
-			n.links_out.clear();
-			n.weights.clear();
-			for (Node h: hidden)
-				n.addOutlink(h);
+		if (shared)
+			throw new IllegalStateException("Can't add layers to a shared network");
+		int count = sizes.length, output = count-1;
+		sizes = Arrays.copyOf(sizes, count+1);
+		sizes[count] = sizes[output];
+		sizes[output] = nodes;
+		weights = Arrays.copyOf(weights, count);
+		outs = Arrays.copyOf(outs, count+1);
+		errs = Arrays.copyOf(errs, count+1);
+		outs[count] = outs[output];
+		errs[count] = errs[output];
+		createLayer(output);
+
+		//Connect the old last hidden layer to the new hidden layer; these
+		//weights are drawn one source node at a time
+		int last_nodes = outs[output-1].length;
+		double[] w = new double[nodes*last_nodes];
+		for (int i=0; i<last_nodes; i++){
+			for (int j=0; j<nodes; j++)
+				w[j*last_nodes + i] = randomWeight(rand);
 		}
+		weights[output-1] = w;
 		//Connect the new hidden layer to the output layer
-		for (Node n: output){
-			for (Node h: hidden)
-				h.addOutlink(n);
-		}
-		//Add the hidden layer to layers
-		layers.add(layer_count-1, hidden);
+		w = new double[sizes[count]*outs[output].length];
+		for (int k=0; k<w.length; k++)
+			w[k] = randomWeight(rand);
+		weights[output] = w;
 	}
-	
+
 	/**
 	 * Computes the output of this neural network. The output for each
 	 * node is cached, for use with the "train()" method
-	 * TODO: make this work for cyclic graphs??
 	 * @param data the input data
 	 */
+	@Override
 	public void compute(double[] data){
-		assert(data.length == input_nodes);
-		
-		//Set initial net values
-		boolean first = true;
-		for (Node[] layer: layers){
-			for (int j=0; j<layer.length; j++){
-				Node temp = layer[j];
-				//Input node
-				if (first && j < data.length)
-					temp.net = data[j];
-				//Bias node
-				else if (temp.is_bias)
-					temp.net = 1;
-				//Default node, reset net value
-				else temp.net = 0;
-				//Reset training error
-				temp.err = 0;
-				temp.out = 0;
-			}
-			first = false;
-		}
-		
+		assert(data.length == sizes[0]);
+		System.arraycopy(data, 0, outs[0], 0, data.length);
+
 		//Go through each layer, incrementally, and compute net values
-		first = true;
-		for (Node[] layer: layers){
-			//Compute net values
-			for (Node in: layer){
+		for (int l=1; l<sizes.length; l++){
+			double[] in = outs[l-1], out = outs[l], w = weights[l-1];
+			int links = in.length;
+			for (int j=0, k=0, nodes=sizes[l]; j<nodes; j++){
+				double net = 0;
+				for (int i=0; i<links; i++)
+					net += in[i]*w[k++];
 				//Compute activation function (sigmoid)
-				in.out = first ? in.net : 1/(1+Math.exp(-in.net));
-				for (int i=0, l=in.links_out.size(); i<l; i++)
-					in.links_out.get(i).net += in.out*in.weights.get(i);
+				out[j] = sigmoid(net);
+			}
+		}
+	}
+	/**
+	 * Computes the output of this neural network for many inputs at once; each
+	 * output is exactly what compute would give for that input, but the weights
+	 * are gone through once for every row, rather than once per input
+	 * This doesn't change the cached outputs used by getOutput and training
+	 * @param data the input data, row-major; a row of inputNodes() values for each input
+	 * @param rows number of inputs
+	 * @param outputs where to put the outputs, row-major; a row of outputNodes()
+	 * values for each input
+	 */
+	@Override
+	public void computeBatch(double[] data, int rows, double[] outputs){
+		assert(data.length >= rows*sizes[0] && outputs.length >= rows*outputNodes());
+		growBatch(rows);
+		forwardBatch(data, rows, outputs);
+	}
+	/**
+	 * Computes outputs for a batch, leaving each hidden layer's outputs in batch_outs
+	 * @param outputs where to put the output layer's outputs
+	 */
+	private void forwardBatch(double[] data, int rows, double[] outputs){
+		int count = sizes.length;
+		double[] in = data;
+		//Inputs don't have a bias value, so the first layer adds it on after
+		int links = sizes[0];
+		double in_bias = outs[0][links];
+		for (int l=1; l<count; l++){
+			double[] out = l == count-1 ? outputs : batch_outs[l], w = weights[l-1];
+			int nodes = sizes[l], stride = outs[l].length;
+			//Bias node, for the next layer
+			if (l != count-1){
+				double bias = outs[l][nodes];
+				for (int r=0; r<rows; r++)
+					out[r*stride + nodes] = bias;
+			}
+			double bias = l == 1 ? in_bias : 0;
+			int bias_link = l == 1 ? links : -1;
+			//Four rows at a time, so each weight is loaded once for all four, and their
+			//sums don't have to wait on each other; each sum is still added up in the
+			//same order as compute, so the outputs are exactly the same
+			int r = 0;
+			for (; r+4<=rows; r+=4){
+				int k0 = r*links, k1 = k0+links, k2 = k1+links, k3 = k2+links, o = r*stride;
+				for (int j=0, base=0, row=outs[l-1].length; j<nodes; j++, base+=row){
+					double net0 = 0, net1 = 0, net2 = 0, net3 = 0;
+					for (int i=0; i<links; i++){
+						double wi = w[base+i];
+						net0 += in[k0+i]*wi;
+						net1 += in[k1+i]*wi;
+						net2 += in[k2+i]*wi;
+						net3 += in[k3+i]*wi;
+					}
+					if (bias_link != -1){
+						double b = bias*w[base+bias_link];
+						net0 += b;
+						net1 += b;
+						net2 += b;
+						net3 += b;
+					}
+					//Compute activation function (sigmoid)
+					out[o+j] = sigmoid(net0);
+					out[o+stride+j] = sigmoid(net1);
+					out[o+stride*2+j] = sigmoid(net2);
+					out[o+stride*3+j] = sigmoid(net3);
+				}
+			}
+			//Leftover rows
+			for (; r<rows; r++){
+				int k0 = r*links, o = r*stride;
+				for (int j=0, base=0, row=outs[l-1].length; j<nodes; j++, base+=row){
+					double net = 0;
+					for (int i=0; i<links; i++)
+						net += in[k0+i]*w[base+i];
+					if (bias_link != -1)
+						net += bias*w[base+bias_link];
+					out[o+j] = sigmoid(net);
+				}
 			}
-			first = false;
+			in = out;
+			links = stride;
 		}
 	}
+	/**
+	 * Makes sure there is room in batch_outs for a number of rows
+	 */
+	private void growBatch(int rows){
+		if (rows <= batch_rows && batch_outs.length == sizes.length)
+			return;
+		batch_rows = Math.max(rows, batch_rows);
+		batch_outs = new double[sizes.length][];
+		batch_errs = new double[sizes.length][];
+		for (int l=1; l<sizes.length; l++){
+			batch_outs[l] = new double[batch_rows*outs[l].length];
+			batch_errs[l] = new double[batch_rows*sizes[l]];
+		}
+		grads = new double[weights.length][];
+		for (int l=0; l<weights.length; l++)
+			grads[l] = new double[weights[l].length];
+	}
 	/**
 	 * Gets the output of the network; probably only works for backprop
 	 * @return the output node with greatest net value
 	 */
+	@Override
 	public int getOutput(){
-		int l = layers.size();
-		Node[] last = layers.get(l-1);
+		double[] last = outs[outs.length-1];
 		//If only one output node, return binary answer (1/0)
 		if (last.length == 1)
-			return last[0].out > 0 ? 1 : 0;
+			return last[0] > 0 ? 1 : 0;
 		//Otherwise, take the output with the higheset output
 		else{
-			double max_val = last[0].out;
+			double max_val = last[0];
 			int max_idx = 0;
 			for (int i=1; i<last.length; i++){
-				if (last[i].out > max_val){
-					max_val = last[i].out;
+				if (last[i] > max_val){
+					max_val = last[i];
 					max_idx = i;
 				}
 			}
@@ -228,9 +536,9 @@ public class Network{
 	 * @param node the output node index
 	 * @return the node's output value
 	 */
+	@Override
 	public double getOutput(int node){
-		Node[] last = layers.get(layers.size()-1);
-		return last[node].out;
+		return outs[outs.length-1][node];
 	}
 
 	/**
@@ -238,80 +546,181 @@ public class Network{
 	 * @param rate the learning rate
 	 * @param targets an array of target values, corresponding to the output nodes
 	 */
-	public void trainBackprop(double rate, double[] targets){		
-		//TODO: what if we have nested networks?
-		int layer_count = layers.size();
-		Node[] layer = layers.get(layer_count-1);
-		
-		assert(targets.length == layer.length);
+	public void trainBackprop(double rate, double[] targets){
+		int output = sizes.length-1;
+		double[] out = outs[output], err = errs[output];
+
+		assert(targets.length == out.length);
 		//First, calculate error for output nodes
 		//Err = [derivative of sigmoid]*[delta rule] OR output*(1-output)(target-output)
-		for (int i=0; i<layer.length; i++){
-			Node temp = layer[i];
-			temp.err = temp.out*(1-temp.out)*(targets[i]-temp.out);
-		}
+		for (int i=0; i<out.length; i++)
+			err[i] = out[i]*(1-out[i])*(targets[i]-out[i]);
 		//Now, we propagate the error back through the network
 		//Err = [derivative of sigmoid]*[weighted sum of outlinks] OR output*(1-output)SUM(weight*error)
-		for (int i=layer_count-2; i>frozen; i--){
-			for (Node node: layers.get(i)){
-				//Sum of outlinks
-				for (int j=0, l=node.links_out.size(); j<l; j++)
-					node.err += node.links_out.get(j).err*node.weights.get(j);
-				//Multiply derivative
-				node.err *= node.out*(1-node.out);
+		for (int l=output-1; l>frozen; l--){
+			double[] next_err = errs[l+1], w = weights[l];
+			out = outs[l];
+			err = errs[l];
+			int links = out.length;
+			//Sum of outlinks; goes through the weights a row at a time
+			Arrays.fill(err, 0);
+			for (int j=0; j<next_err.length; j++){
+				double e = next_err[j];
+				for (int i=0, k=j*links; i<err.length; i++, k++)
+					err[i] += e*w[k];
 			}
+			//Multiply derivative
+			for (int i=0; i<err.length; i++)
+				err[i] *= out[i]*(1-out[i]);
 		}
 		//Execute weight change
 		//Delta = [learning rate]*[error of output node]*[output of current node]
-		for (int i=frozen; i<layer_count-1; i++){
-			for (Node node: layers.get(i)){
-				for (int j=0, l=node.links_out.size(); j<l; j++){
-					//Old weight + Delta
-					double weight = node.weights.get(j) + rate*node.links_out.get(j).err*node.out;
-					node.weights.set(j, weight);
-				}
+		for (int l=frozen; l<output; l++){
+			double[] in = outs[l], next_err = errs[l+1], w = weights[l];
+			int links = in.length;
+			for (int j=0, k=0; j<next_err.length; j++){
+				double delta = rate*next_err[j];
+				//Old weight + Delta
+				for (int i=0; i<links; i++)
+					w[k++] += delta*in[i];
 			}
 		}
 	}
 	/**
 	 * Train with backpropagation, using classification
 	 * @param rate the learning rate
-	 * @param target the target class 
+	 * @param target the target class
 	 */
 	public void trainBackprop(double rate, int target){
-		int outputs = layers.get(layers.size()-1).length;
-		double[] targets;
-		targets = new double[outputs];
+		double[] targets = new double[outputNodes()];
+		classTargets(target, targets, 0);
+		trainBackprop(rate, targets);
+	}
+	/**
+	 * Gets the target values for classification: 1 for the target class's output
+	 * node, -1 for the rest; with a single output node, 1 if the class is 1
+	 * @param target the target class
+	 * @param targets where to put the target values
+	 * @param offset index in targets of the first output node's value
+	 */
+	public void classTargets(int target, double[] targets, int offset){
+		int outputs = outputNodes();
 		if (outputs == 1)
-			targets[0] = target == 1 ? 1 : -1;
+			targets[offset] = target == 1 ? 1 : -1;
 		else{
-			Arrays.fill(targets, -1);
-			targets[target] = 1;
+			Arrays.fill(targets, offset, offset+outputs, -1);
+			targets[offset+target] = 1;
+		}
+	}
+	/**
+	 * Adjusts the network's weights for a batch of inputs, using the backpropagation
+	 * rule; every input's weight changes are found using the current weights and added
+	 * up, then applied all at once. With a single input, this is the same as
+	 * compute followed by trainBackprop
+	 * This doesn't change the cached outputs used by getOutput
+	 * @param data the input data, row-major; a row of inputNodes() values for each input
+	 * @param targets the target values, row-major; a row of outputNodes() values for each input
+	 * @param rates the learning rate for each input
+	 * @param rows number of inputs
+	 */
+	public void trainBatch(double[] data, double[] targets, double[] rates, int rows){
+		int output = sizes.length-1;
+		assert(data.length >= rows*sizes[0] && targets.length >= rows*sizes[output] && rates.length >= rows);
+		growBatch(rows);
+		forwardBatch(data, rows, batch_outs[output]);
+
+		//First, calculate error for output nodes
+		//Err = [derivative of sigmoid]*[delta rule] OR output*(1-output)(target-output)
+		double[] out = batch_outs[output], err = batch_errs[output];
+		for (int k=0, l=rows*sizes[output]; k<l; k++)
+			err[k] = out[k]*(1-out[k])*(targets[k]-out[k]);
+		//Now, we propagate the error back through the network, a row of weights at a time
+		//Err = [derivative of sigmoid]*[weighted sum of outlinks] OR output*(1-output)SUM(weight*error)
+		for (int l=output-1; l>frozen; l--){
+			double[] next_err = batch_errs[l+1], w = weights[l];
+			out = batch_outs[l];
+			err = batch_errs[l];
+			int nodes = sizes[l], next_nodes = sizes[l+1], stride = outs[l].length;
+			Arrays.fill(err, 0, rows*nodes, 0);
+			//Sum of outlinks
+			for (int j=0; j<next_nodes; j++){
+				int base = j*stride;
+				for (int r=0; r<rows; r++){
+					double e = next_err[r*next_nodes + j];
+					for (int i=0, k=r*nodes; i<nodes; i++, k++)
+						err[k] += e*w[base+i];
+				}
+			}
+			//Multiply derivative
+			for (int r=0; r<rows; r++){
+				for (int i=0, k=r*nodes, o=r*stride; i<nodes; i++, k++, o++)
+					err[k] *= out[o]*(1-out[o]);
+			}
+		}
+		//Add up the weight changes
+		//Delta = [learning rate]*[error of output node]*[output of current node]
+		for (int l=frozen; l<output; l++){
+			double[] in = l == 0 ? data : batch_outs[l], next_err = batch_errs[l+1], g = grads[l];
+			//Inputs don't have a bias value, so it is added on separately
+			int links = l == 0 ? sizes[0] : outs[l].length, stride = outs[l].length,
+				next_nodes = sizes[l+1];
+			double bias = outs[0][sizes[0]];
+			Arrays.fill(g, 0);
+			for (int j=0; j<next_nodes; j++){
+				int base = j*stride;
+				for (int r=0; r<rows; r++){
+					double delta = rates[r]*next_err[r*next_nodes + j];
+					for (int i=0, k=r*links; i<links; i++, k++)
+						g[base+i] += delta*in[k];
+					if (l == 0)
+						g[base+links] += delta*bias;
+				}
+			}
+		}
+		//Apply them; old weight + Delta
+		for (int l=frozen; l<output; l++){
+			double[] w = weights[l], g = grads[l];
+			for (int k=0; k<w.length; k++)
+				w[k] += g[k];
 		}
-		trainBackprop(rate, targets);
 	}
-	
+
 	/**
-	 * Export network to file for loading later
+	 * Checks if two networks have the same layers and weights
+	 * @param other the other network
+	 * @return true, if they're exactly the same
+	 */
+	boolean sameWeights(Network other){
+		if (frozen != other.frozen || !Arrays.equals(sizes, other.sizes))
+			return false;
+		for (int l=0; l<weights.length; l++){
+			if (!Arrays.equals(weights[l], other.weights[l]))
+				return false;
+		}
+		return true;
+	}
+	/**
+	 * Export network to file for loading later; files ending with BINARY_EXTENSION
+	 * are saved in the binary format, with full precision, and the rest as text
 	 * @param filename name of file
 	 * @return success, if returns true
 	 */
 	public boolean export(String filename){
+		if (filename.endsWith(BINARY_EXTENSION))
+			return exportBinary(filename, false);
 		try {
 			StringBuilder sb = new StringBuilder();
 			sb.append(frozen).append('\n');
-			int i = layers.size();
-			for (Node[] layer: layers){
-				//Account for bias weights
-				int layer_size = layer.length;
-				if (--i != 0) layer_size--;
-				sb.append(layer_size).append('\t');
-			}
+			for (int size: sizes)
+				sb.append(size).append('\t');
 			sb.append('\n');
-			for (Node[] layer: layers){
-				for (Node n: layer){
-					for (Double weight: n.weights)
-						sb.append(weight).append('\t');
+			//A line for each node, with the weights of its outgoing links
+			for (int l=0; l<sizes.length; l++){
+				int nodes = outs[l].length,
+					links = l == sizes.length-1 ? 0 : sizes[l+1];
+				for (int i=0; i<nodes; i++){
+					for (int j=0; j<links; j++)
+						sb.append(weights[l][j*nodes + i]).append('\t');
 					sb.append('\n');
 				}
 			}
@@ -324,4 +733,48 @@ public class Network{
 			return false;
 		}
 	}
+	/**
+	 * Export network to file in the binary format
+	 * @param filename name of file
+	 * @param floats store the weights as floats, rather than doubles; this halves
+	 * the file size, but loses precision
+	 * @return success, if returns true
+	 */
+	public boolean exportBinary(String filename, boolean floats){
+		int precision = floats ? 4 : 8, total = 0;
+		for (double[] w: weights)
+			total += w.length;
+		ByteBuffer buf = ByteBuffer.allocate(16 + 4*sizes.length + 4 + total*precision);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(MAGIC);
+		buf.putShort((short) VERSION);
+		buf.put((byte) precision);
+		buf.put(ACTIVATION_SIGMOID);
+		buf.putInt(frozen);
+		buf.putInt(sizes.length);
+		for (int size: sizes)
+			buf.putInt(size);
+		//Checksum goes here, once the weights are written
+		int checksum_pos = buf.position();
+		buf.putInt(0);
+		for (double[] w: weights){
+			for (int k=0; k<w.length; k++){
+				if (floats)
+					buf.putFloat((float) w[k]);
+				else buf.putDouble(w[k]);
+			}
+		}
+		buf.position(checksum_pos+4);
+		buf.putInt(checksum_pos, checksum(buf));
+		buf.rewind();
+		try (FileChannel channel = FileChannel.open(Paths.get(filename),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+			while (buf.hasRemaining())
+				channel.write(buf);
+			return true;
+		} catch (IOException ex) {
+			System.out.println(ex.getMessage());
+			return false;
+		}
+	}
 }
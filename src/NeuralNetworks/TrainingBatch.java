@@ -0,0 +1,84 @@
+package NeuralNetworks;
+
+/**
+ * Collects training instances for a network, and trains them a batch at a
+ * time (see Network.trainBatch); once the batch is full, it is trained
+ * automatically, and flush trains whatever is left over
+ * The buffers are reused, so training doesn't allocate
+ * @author isaac
+ */
+public class TrainingBatch {
+	private final Network net;
+	private final int size, inputs, outputs;
+	private final double[] data, targets, rates;
+	private int rows = 0;
+
+	/**
+	 * Creates an empty batch
+	 * @param net the network to train; the number of input/output nodes can't change
+	 * @param size how many instances to train at once
+	 */
+	public TrainingBatch(Network net, int size){
+		assert(size > 0);
+		this.net = net;
+		this.size = size;
+		inputs = net.inputNodes();
+		outputs = net.outputNodes();
+		data = new double[size*inputs];
+		targets = new double[size*outputs];
+		rates = new double[size];
+	}
+
+	/**
+	 * Adds an instance, for a network with a single output node
+	 * @param input the input data
+	 * @param target the target value
+	 * @param rate the learning rate for this instance
+	 */
+	public void add(double[] input, double target, double rate){
+		assert(outputs == 1);
+		targets[rows] = target;
+		addRow(input, rate);
+	}
+	/**
+	 * Adds an instance
+	 * @param input the input data
+	 * @param target an array of target values, corresponding to the output nodes
+	 * @param rate the learning rate for this instance
+	 */
+	public void add(double[] input, double[] target, double rate){
+		System.arraycopy(target, 0, targets, rows*outputs, outputs);
+		addRow(input, rate);
+	}
+	/**
+	 * Adds an instance, using classification (see Network.trainBackprop)
+	 * @param input the input data
+	 * @param target the target class
+	 * @param rate the learning rate for this instance
+	 */
+	public void addClass(double[] input, int target, double rate){
+		net.classTargets(target, targets, rows*outputs);
+		addRow(input, rate);
+	}
+	private void addRow(double[] input, double rate){
+		System.arraycopy(input, 0, data, rows*inputs, inputs);
+		rates[rows] = rate;
+		if (++rows == size)
+			flush();
+	}
+	/**
+	 * Trains the instances that have been added since the last batch was trained
+	 */
+	public void flush(){
+		if (rows == 0)
+			return;
+		net.trainBatch(data, targets, rates, rows);
+		rows = 0;
+	}
+	/**
+	 * @return number of instances waiting to be trained
+	 */
+	public int size(){
+		return rows;
+	}
+}
@@ -0,0 +1,350 @@
+package client;
+
+import NeuralNetworks.Inference;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Scores inputs from many games at once, through one network: game threads submit
+ * their inputs and wait, while a batching thread gathers requests until there are
+ * enough rows, or the oldest request has waited long enough, then runs the oldest
+ * requests, up to maxRows rows, through the network with a single computeBatch;
+ * the rest stay queued for the next batch. Each decision waits a little longer,
+ * but with many games running at once, far more inputs get scored
+ * Each model gets its own client, e.g. diablo.setScorer(batcher.client()); models
+ * that don't use one keep scoring on their own thread
+ * The network is only used by the batching thread, and must not be trained while
+ * it's being served
+ * @author isaac
+ */
+public class InferenceBatcher {
+	private final Inference net;
+	private final int inputs, outputs, max_rows;
+	private final long max_wait;
+	private final Thread thread;
+	//Requests waiting to be scored, oldest first; the batching thread moves them to batch
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition submitted = lock.newCondition();
+	private Request[] pending = new Request[16], batch = new Request[16];
+	private int pending_count = 0, pending_rows = 0;
+	private boolean running = true;
+	//Every request's inputs and outputs, one after the other
+	private double[] batch_data = new double[0], batch_outputs = new double[0];
+	//Statistics; only the batching thread records them, and only while holding stats
+	private final Object stats = new Object();
+	private final LatencyHistogram wait = new LatencyHistogram(), latency = new LatencyHistogram();
+	//Batches by number of rows, in powers of two: [0] is 1 row, [1] is 2-3 rows, [2] is 4-7...
+	private final long[] batch_sizes = new long[32];
+	//queued adds up how many requests were waiting when each batch was taken,
+	//including the ones it took
+	private long batches = 0, requests = 0, rows = 0, queued = 0;
+	private int max_queued = 0;
+
+	/**
+	 * Starts serving a network
+	 * @param net the network; it shouldn't be trained while being served
+	 * @param maxRows most rows in a batch (unless a single request has more); a
+	 * batch is run as soon as it's full
+	 * @param maxWait otherwise, run it once the oldest request has waited this long, in nanoseconds
+	 */
+	public InferenceBatcher(Inference net, int maxRows, long maxWait){
+		assert(maxRows > 0 && maxWait >= 0);
+		this.net = net;
+		inputs = net.inputNodes();
+		outputs = net.outputNodes();
+		max_rows = maxRows;
+		max_wait = maxWait;
+		thread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				serve();
+			}
+		}, "InferenceBatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	/**
+	 * Makes a client for a model to score with; each model needs its own
+	 * @return the client; scoring with it waits for the batch it goes in
+	 */
+	public Inference client(){
+		return new Client();
+	}
+	/**
+	 * Stops the batching thread, once any waiting requests are scored; the
+	 * batcher can't be used afterwards
+	 */
+	public void shutdown(){
+		lock.lock();
+		try{
+			running = false;
+			submitted.signal();
+		} finally{
+			lock.unlock();
+		}
+		try{
+			thread.join();
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A request to score some inputs, that a game thread waits on until it's done
+	 * Each client reuses the same one, so scoring doesn't allocate
+	 */
+	private static final class Request{
+		private double[] data, outputs;
+		private int rows;
+		private long submit_time;
+		private Thread waiter;
+		private Throwable error;
+		private volatile boolean done;
+
+		/**
+		 * Marks the request as done, and wakes its thread
+		 */
+		private void complete(){
+			done = true;
+			LockSupport.unpark(waiter);
+		}
+		/**
+		 * Waits until the request is done
+		 */
+		private void await(){
+			while (!done)
+				LockSupport.park(this);
+			if (error != null)
+				throw new IllegalStateException("Batched inference failed", error);
+		}
+	}
+	/**
+	 * Adds a request to the queue, and waits for it to be scored
+	 */
+	private void submit(Request r, double[] data, int rows, double[] outputs){
+		assert(data.length >= rows*inputs && outputs.length >= rows*this.outputs);
+		if (rows == 0)
+			return;
+		r.data = data;
+		r.rows = rows;
+		r.outputs = outputs;
+		r.waiter = Thread.currentThread();
+		r.error = null;
+		r.done = false;
+		r.submit_time = System.nanoTime();
+		lock.lock();
+		try{
+			if (!running)
+				throw new IllegalStateException("Inference batcher has been shut down");
+			if (pending_count == pending.length)
+				pending = Arrays.copyOf(pending, pending_count*2);
+			pending[pending_count++] = r;
+			pending_rows += rows;
+			//The batching thread only needs waking for the first request, or a full batch
+			if (pending_count == 1 || pending_rows >= max_rows)
+				submitted.signal();
+		} finally{
+			lock.unlock();
+		}
+		r.await();
+	}
+	/**
+	 * Batching loop; gathers requests and scores them, until shut down
+	 */
+	private void serve(){
+		while (true){
+			int count, waiting;
+			lock.lock();
+			try{
+				while (running && pending_count == 0)
+					submitted.awaitUninterruptibly();
+				if (pending_count == 0)
+					return;
+				//Wait for more requests, until the batch is full or the first request has waited long enough
+				long deadline = pending[0].submit_time + max_wait;
+				while (running && pending_rows < max_rows){
+					long left = deadline - System.nanoTime();
+					if (left <= 0)
+						break;
+					try{
+						submitted.await(left, TimeUnit.NANOSECONDS);
+					} catch (InterruptedException e){
+						break;
+					}
+				}
+				//Take the oldest requests, up to max_rows; always at least one, however big
+				waiting = pending_count;
+				int taken_rows = pending[0].rows;
+				count = 1;
+				while (count < pending_count && taken_rows+pending[count].rows <= max_rows)
+					taken_rows += pending[count++].rows;
+				if (batch.length < count)
+					batch = new Request[pending.length];
+				System.arraycopy(pending, 0, batch, 0, count);
+				System.arraycopy(pending, count, pending, 0, pending_count-count);
+				Arrays.fill(pending, pending_count-count, pending_count, null);
+				pending_count -= count;
+				pending_rows -= taken_rows;
+			} finally{
+				lock.unlock();
+			}
+			score(count, waiting);
+		}
+	}
+	/**
+	 * Scores the requests that were taken off the queue, and wakes their threads;
+	 * if anything fails, every request gets the error, so no thread is left waiting
+	 * @param count how many requests there are
+	 * @param waiting how many requests were queued when they were taken
+	 */
+	private void score(int count, int waiting){
+		int total = 0;
+		for (int i=0; i<count; i++)
+			total += batch[i].rows;
+		long start = System.nanoTime();
+		Throwable error = null;
+		try{
+			if (batch_data.length < total*inputs){
+				batch_data = new double[total*inputs];
+				batch_outputs = new double[total*outputs];
+			}
+			for (int i=0, k=0; i<count; i++){
+				Request r = batch[i];
+				System.arraycopy(r.data, 0, batch_data, k, r.rows*inputs);
+				k += r.rows*inputs;
+			}
+			start = System.nanoTime();
+			net.computeBatch(batch_data, total, batch_outputs);
+		} catch (RuntimeException | Error e){
+			error = e;
+		}
+		long end = System.nanoTime();
+		synchronized (stats){
+			batches++;
+			requests += count;
+			rows += total;
+			queued += waiting;
+			max_queued = Math.max(max_queued, waiting);
+			batch_sizes[31 - Integer.numberOfLeadingZeros(total)]++;
+			for (int i=0; i<count; i++){
+				wait.record(start - batch[i].submit_time);
+				latency.record(end - batch[i].submit_time);
+			}
+		}
+		for (int i=0, k=0; i<count; i++){
+			Request r = batch[i];
+			if (error == null){
+				try{
+					System.arraycopy(batch_outputs, k, r.outputs, 0, r.rows*outputs);
+				} catch (RuntimeException e){
+					r.error = e;
+				}
+			}
+			else r.error = error;
+			k += r.rows*outputs;
+			batch[i] = null;
+			r.complete();
+		}
+	}
+
+	/**
+	 * Scores through the batcher, for a single model
+	 * Not thread safe; the model should only use it from one thread at a time
+	 */
+	private final class Client implements Inference{
+		private final Request request = new Request();
+		//Outputs for compute
+		private final double[] out = new double[outputs];
+
+		@Override
+		public int inputNodes(){
+			return inputs;
+		}
+		@Override
+		public int outputNodes(){
+			return outputs;
+		}
+		@Override
+		public void compute(double[] data){
+			submit(request, data, 1, out);
+		}
+		@Override
+		public void computeBatch(double[] data, int rows, double[] outputs){
+			submit(request, data, rows, outputs);
+		}
+		@Override
+		public int getOutput(){
+			//If only one output node, return binary answer (1/0)
+			if (out.length == 1)
+				return out[0] > 0 ? 1 : 0;
+			//Otherwise, take the output with the highest output
+			int max_idx = 0;
+			for (int i=1; i<out.length; i++){
+				if (out[i] > out[max_idx])
+					max_idx = i;
+			}
+			return max_idx;
+		}
+		@Override
+		public double getOutput(int node){
+			return out[node];
+		}
+	}
+
+	/**
+	 * How many requests are waiting to go in a batch right now
+	 * @return queue depth
+	 */
+	public int queueDepth(){
+		lock.lock();
+		try{
+			return pending_count;
+		} finally{
+			lock.unlock();
+		}
+	}
+	/**
+	 * Removes all statistics
+	 */
+	public void resetStats(){
+		synchronized (stats){
+			wait.reset();
+			latency.reset();
+			Arrays.fill(batch_sizes, 0);
+			batches = requests = rows = queued = 0;
+			max_queued = 0;
+		}
+	}
+	/**
+	 * Statistics since they were last reset: batch sizes, how many requests were
+	 * queued when each batch was taken, and how much latency batching added; "wait"
+	 * is the time a request was queued before its batch started, "latency" until it
+	 * was scored
+	 */
+	@Override
+	public String toString(){
+		synchronized (stats){
+			if (batches == 0)
+				return "No batches";
+			StringBuilder sb = new StringBuilder();
+			sb.append(requests).append(" requests in ").append(batches).append(" batches; ")
+				.append(round(requests/(double) batches)).append(" requests/batch, ")
+				.append(round(rows/(double) batches)).append(" rows/batch, queue depth ")
+				.append(round(queued/(double) batches)).append(" avg, ").append(max_queued).append(" max\n");
+			sb.append("\tRows/batch:");
+			for (int i=0; i<batch_sizes.length; i++){
+				if (batch_sizes[i] != 0)
+					sb.append(' ').append(1 << i).append('+').append('=').append(round(batch_sizes[i]*100.0/batches)).append('%');
+			}
+			sb.append("\n\tWait:\t\t").append(wait).append("\tmax=").append(wait.max()/1000).append("us");
+			sb.append("\n\tLatency:\t").append(latency).append("\tmax=").append(latency.max()/1000).append("us");
+			return sb.toString();
+		}
+	}
+	private static double round(double val){
+		return Math.round(val*100)/100.0;
+	}
+}
@@ -0,0 +1,118 @@
+package client;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of latencies, in nanoseconds
+ * Buckets are log-linear: every power of two is split into 32 buckets,
+ * so percentiles are accurate to about 3%, and recording a value is
+ * just a few bit operations and an array increment
+ * Not thread safe; use one histogram per thread and merge them
+ * @author isaac
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 5, SUB = 1 << SUB_BITS;
+	private final long[] counts = new long[(64-SUB_BITS+1)*SUB];
+	private long total = 0, max = 0;
+
+	/**
+	 * Bucket for a value; values below SUB get their own bucket
+	 */
+	private static int bucket(long val){
+		if (val < SUB)
+			return (int) val;
+		int shift = 63 - Long.numberOfLeadingZeros(val) - SUB_BITS;
+		return ((shift+1) << SUB_BITS) + (int) ((val >>> shift) - SUB);
+	}
+	/**
+	 * Smallest value that goes in a bucket
+	 */
+	private static long bucketValue(int bucket){
+		if (bucket < SUB)
+			return bucket;
+		int shift = (bucket >>> SUB_BITS) - 1;
+		return (long) (SUB + (bucket & (SUB-1))) << shift;
+	}
+
+	/**
+	 * Record a latency
+	 * @param nanos the latency, in nanoseconds
+	 */
+	public void record(long nanos){
+		if (nanos < 0)
+			nanos = 0;
+		counts[bucket(nanos)]++;
+		total++;
+		if (nanos > max)
+			max = nanos;
+	}
+	/**
+	 * Adds another histogram's latencies to this one
+	 * @param h the other histogram
+	 */
+	public void merge(LatencyHistogram h){
+		for (int i=0; i<counts.length; i++)
+			counts[i] += h.counts[i];
+		total += h.total;
+		if (h.max > max)
+			max = h.max;
+	}
+	/**
+	 * Replaces this histogram's latencies with another's
+	 * @param h the other histogram
+	 */
+	public void copy(LatencyHistogram h){
+		System.arraycopy(h.counts, 0, counts, 0, counts.length);
+		total = h.total;
+		max = h.max;
+	}
+	/**
+	 * Removes all latencies
+	 */
+	public void reset(){
+		Arrays.fill(counts, 0);
+		total = 0;
+		max = 0;
+	}
+
+	/**
+	 * How many latencies have been recorded
+	 * @return the count
+	 */
+	public long count(){
+		return total;
+	}
+	/**
+	 * Largest latency recorded
+	 * @return the latency, in nanoseconds
+	 */
+	public long max(){
+		return max;
+	}
+	/**
+	 * Gets a percentile; the value is the bottom of the bucket it falls in
+	 * @param p the percentile, between 0-1 (e.g. .99 for p99)
+	 * @return the latency, in nanoseconds; 0, if nothing has been recorded
+	 */
+	public long percentile(double p){
+		if (total == 0)
+			return 0;
+		long target = (long) Math.ceil(p*total), seen = 0;
+		if (target < 1)
+			target = 1;
+		for (int i=0; i<counts.length; i++){
+			seen += counts[i];
+			if (seen >= target)
+				return Math.min(bucketValue(i), max);
+		}
+		return max;
+	}
+
+	@Override
+	public String toString(){
+		return "p50="+micros(percentile(.5))+"\tp99="+micros(percentile(.99))+"\tp999="+micros(percentile(.999));
+	}
+	private static String micros(long nanos){
+		return Math.round(nanos/100.0)/10.0+"us";
+	}
+}
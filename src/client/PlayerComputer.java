@@ -10,13 +10,34 @@ import racko.Rack;
  * Plays as a computer
  */
 public class PlayerComputer extends Player{
+	//Record how long each model takes to decide; off by default, since
+	//timing every decision isn't free (see Tournament.printEpoch)
+	public static boolean timing = false;
 	private int turns = 0, no_progress;
 	private final Model random, learner;
+	//Decision latencies for the learner and random models
+	private final Latency[] latency;
+	
+	/**
+	 * Draw/play latencies for one of the player's models
+	 */
+	public static class Latency{
+		public final String model;
+		//Current epoch, and the last finished epoch
+		public final LatencyHistogram
+			draw = new LatencyHistogram(), play = new LatencyHistogram(),
+			EPOCH_draw = new LatencyHistogram(), EPOCH_play = new LatencyHistogram();
+		
+		public Latency(Model m){
+			model = m.toString();
+		}
+	}
 	
 	public PlayerComputer(Model learner){
 		super(learner.toString());
 		this.learner = learner;
 		random = new ModelRandom();
+		latency = new Latency[]{new Latency(learner), new Latency(random)};
 	}
 
 	@Override
@@ -29,12 +50,35 @@ public class PlayerComputer extends Player{
 	public int play(){
 		//If we've gone so many moves without progress, do a random move
 		//This will hopefully prevent deadlock over a zugzwang situation
-		Model m = (++turns % no_progress) == 0 ? random : learner;
-		boolean fromDiscard = m.decideDraw(turns);
-		int drawn = game.deck.draw(fromDiscard),
+		boolean is_random = (++turns % no_progress) == 0;
+		Model m = is_random ? random : learner;
+		boolean fromDiscard;
+		int drawn, pos;
+		if (timing){
+			Latency l = latency[is_random ? 1 : 0];
+			long start = System.nanoTime();
+			fromDiscard = m.decideDraw(turns);
+			l.draw.record(System.nanoTime() - start);
+			drawn = game.deck.draw(fromDiscard);
+			start = System.nanoTime();
 			pos = m.decidePlay(turns, drawn, fromDiscard);
+			l.play.record(System.nanoTime() - start);
+		}
+		else{
+			fromDiscard = m.decideDraw(turns);
+			drawn = game.deck.draw(fromDiscard);
+			pos = m.decidePlay(turns, drawn, fromDiscard);
+		}
 		return pos == -1 ? drawn : rack.swap(drawn, pos, fromDiscard);
 	}
+	/**
+	 * Decision latencies for each of this player's models; the learner is
+	 * first, followed by the random model used to break deadlocks
+	 * @return latencies, by model
+	 */
+	public Latency[] getLatency(){
+		return latency;
+	}
 
 	@Override
 	public void beginRound() {
@@ -47,7 +91,31 @@ public class PlayerComputer extends Player{
 	}
 	@Override
 	public void epoch() {
+		//Keep this epoch's latencies for reporting; super.epoch() resets them
+		for (Latency l: latency){
+			l.EPOCH_draw.copy(l.draw);
+			l.EPOCH_play.copy(l.play);
+		}
 		super.epoch();
 		learner.epoch(this);
 	}
+	@Override
+	public void mergeStats(Player p){
+		super.mergeStats(p);
+		if (p instanceof PlayerComputer){
+			Latency[] other = ((PlayerComputer) p).latency;
+			for (int i=0; i<latency.length; i++){
+				latency[i].draw.merge(other[i].draw);
+				latency[i].play.merge(other[i].play);
+			}
+		}
+	}
+	@Override
+	public void resetStats(){
+		super.resetStats();
+		for (Latency l: latency){
+			l.draw.reset();
+			l.play.reset();
+		}
+	}
 }
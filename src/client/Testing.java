@@ -1,12 +1,24 @@
 package client;
 
+import NeuralNetworks.Inference;
+import NeuralNetworks.InferenceNetwork;
+import NeuralNetworks.Network;
 import interfaces.Model;
 import interfaces.Player;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
 import models.*;
+import racko.DeckMetric;
 import racko.Game;
+import racko.GameRecorder;
+import racko.GameReplay;
 import racko.Rack;
 
 /**
@@ -14,9 +26,16 @@ import racko.Rack;
  * @author isaac
  */
 public class Testing {
-	private static final Random rand = new Random();
 	public static void main(String[] args){
 		//testSuite();
+		//testAllocations();
+		//testReplay("tournaments/games.log");
+		//testLUS();
+		//testProbabilities();
+		//testNetwork();
+		//testInference("weights/diablo/diablo2_weights.txt", "tournaments/inference.log");
+		//testHogwild("weights/diablo/diablo_hogwild.txt", 0, 20000);
+		//testBatcher("weights/diablo/diablo2_weights.txt", 64, 2000);
 		//if (true) return;
 		//http://www.spellensite.nl/spellen-spelen.php?type=spellen&spellen=Tower+blaster&id=1291
 		
@@ -34,10 +53,16 @@ public class Testing {
 			train_games = 0,		//if play_human = true, how many games to train the AI's beforehand
 			play_games = 1000000,	//how many games to play (after training, if playing a human)
 			epoch_every = 100,		//epoch after how many games?
-			move_limit = 5000;		//moves before calling a draw (0 for unlimited)
+			move_limit = 5000,		//moves per round before calling a draw (0 for unlimited)
+			threads = 0;			//worker threads for playing games (0 for one per processor)
+		long seed = System.currentTimeMillis();	//random seed; reuse a seed to replay a run exactly
+		String record_file = null;	//binary log of every move (see racko.GameRecorder); null to disable
 		boolean
 			bonus_mode = false,		//use bonus scoring
-			play_human = true;		//play against the AI's in a terminal
+			play_human = true,		//play against the AI's in a terminal
+			timing = false,			//print decision latencies for each model every epoch
+			events = false,			//emit Flight Recorder events (run with -XX:StartFlightRecording)
+			batch_inference = false;	//score every worker's Diablo in shared batches (see InferenceBatcher)
 		
 		/*
 		ModelAI ai_smart = new ModelAI(
@@ -50,8 +75,6 @@ public class Testing {
 		);
 		*/
 		//Model baltar = null, casandra = null, ensemble = null;
-		//Model diablo1 = new ModelDiablo("weights/diablo/diablo_weights10_2_0frozen.txt", false);
-		ModelDiablo diablo2 = new ModelDiablo("weights/diablo/diablo2_weights.txt", false);
 		/*
 		try{
 			baltar = new ModelBaltar();
@@ -66,60 +89,64 @@ public class Testing {
 		}
 		*/
 		
-		Player[] players = new Player[]{
-			//new PlayerComputer(ensemble),
-			//new PlayerComputer(new ModelKyle(false)),
-			new PlayerComputer(diablo2)
-			//new PlayerComputer(new ModelDiablo(diablo2, true))
-			//new PlayerComputer(new ModelKyle(true)),
-			//new PlayerComputer(new ModelMax())
+		//Batches are run once they have 256 rows, or a request has waited 20us
+		final InferenceBatcher batcher = !batch_inference ? null : new InferenceBatcher(
+			InferenceNetwork.deploy(new ModelDiablo("weights/diablo/diablo2_weights.txt", false).score_net), 256, 20000
+		);
+		//Each worker thread gets its own copy of the players
+		final boolean human = play_human;
+		Tournament.PlayerFactory factory = new Tournament.PlayerFactory(){
+			@Override
+			public Player[] create(){
+				//Model diablo1 = new ModelDiablo("weights/diablo/diablo_weights10_2_0frozen.txt", false);
+				ModelDiablo diablo2 = new ModelDiablo("weights/diablo/diablo2_weights.txt", false);
+				if (batcher != null)
+					diablo2.setScorer(batcher.client());
+				Player[] players = new Player[]{
+					//new PlayerComputer(ensemble),
+					//new PlayerComputer(new ModelKyle(false)),
+					new PlayerComputer(diablo2)
+					//new PlayerComputer(new ModelDiablo(diablo2, true))
+					//new PlayerComputer(new ModelKyle(true)),
+					//new PlayerComputer(new ModelMax())
+				};
+				if (human){
+					players = Arrays.copyOf(players, players.length+1);
+					players[players.length-1] = new PlayerConsole();
+				}
+				return players;
+			}
 		};
 
 		//TRAINING & TESTING
 		if (play_human){
 			System.out.println("\n--------  RACKO  --------");
-			System.out.println("Cards go from 1 to "+(rack_size*3+rack_size*players.length+"\n"));
 			Game.verbose = true;
 			if (args.length != 0 && args[0].equals("spymode"))
 				Game.spymode = true;
-			players = Arrays.copyOf(players, players.length+1);
-			players[players.length-1] = new PlayerConsole();
-		}
-			
-		Game g = Game.create(players, rack_size, streak_min, bonus_mode);
-		g.limitMoves(move_limit);
-		int epochs = 0;
-		for (int i = 0; i < play_games; i++){
-			g.play(rand.nextInt(players.length));
-			if (i > 0 && i % epoch_every == 0){
-				epochs++;
-				//Notify players of epoch
-				for (Player p: players)
-					p.epoch();
-				
-				//Print statistics to console
-				System.out.println("EPOCH #"+epochs+":");
-				System.out.println(
-					"\tMoves:\t\t"+
-					"Random:\t\t"+
-					"Wins:\t\t"+
-					"Moves All:\t"+
-					"Random All:\t"+
-					"Wins All:"
-				);
-				for (Player p: players){
-					System.out.println(
-						"P"+p.playerNumber+"\t"+
-						round(p.EPOCH_allmoves)+"\t\t"+
-						round(p.EPOCH_badmoves*100)+"%\t\t"+
-						round(p.EPOCH_wins*100)+"%\t\t"+
-						round(p.MODEL_allmoves)+"\t\t"+
-						round(p.MODEL_badmoves*100)+"%\t\t"+
-						round(p.MODEL_wins*100)+"%"
-					);
-				}
+		}
+		
+		//Humans play in the terminal, so they only get one thread
+		System.out.println("Seed: "+seed);
+		Tournament t = new Tournament(factory, rack_size, streak_min, bonus_mode, play_human ? 1 : threads, seed);
+		if (play_human)
+			System.out.println("Cards go from 1 to "+(rack_size*2+rack_size*t.getPlayers().length+"\n"));
+		t.limitMoves(move_limit);
+		PlayerComputer.timing = timing;
+		Game.events = events;
+		if (record_file != null){
+			try{
+				t.record(record_file);
+			} catch (IOException e){
+				System.out.println("Warning!!! Could not create game log: "+e.getMessage());
 			}
 		}
+		t.play(play_games, epoch_every);
+		t.shutdown();
+		if (batcher != null){
+			System.out.println("Batched inference: "+batcher);
+			batcher.shutdown();
+		}
 		//*/
 	}
 	
@@ -172,7 +199,747 @@ public class Testing {
 			//*/
 		}
 	}
-	private static double round(double val){
-		return Math.round(val*100)/100.0;
+	
+	/**
+	 * Checks that games don't allocate anything once they've warmed up;
+	 * run with assertions enabled (-ea) to fail on any allocation
+	 */
+	private static void testAllocations(){
+		int rack_size = 10,
+			warmup_games = 5000,
+			test_games = 200;
+		Player[] players = new Player[]{
+			new PlayerComputer(new ModelDiablo("weights/diablo/diablo2_weights.txt", true)),
+			new PlayerComputer(new ModelMax()),
+			new ModelTD(),
+			new PlayerComputer(new ModelRandom())
+		};
+		Game g = Game.create(players, rack_size, 1, false, 0);
+		g.limitMoves(5000);
+		for (int i=0; i<warmup_games; i++)
+			g.play(i % players.length);
+		
+		//Allocated bytes are counted per-thread, so other threads don't interfere
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId(),
+			rounds = players[0].STAT_rounds,
+			start = mx.getThreadAllocatedBytes(thread);
+		for (int i=0; i<test_games; i++)
+			g.play(i % players.length);
+		long bytes = mx.getThreadAllocatedBytes(thread) - start;
+		rounds = players[0].STAT_rounds - rounds;
+		
+		System.out.println("Allocated "+bytes+" bytes over "+rounds+" rounds ("+(bytes/(double) rounds)+" bytes/round)");
+		assert(bytes == 0);
+	}
+	
+	/**
+	 * Checks the deck's card counts, probabilities and estimates in the middle of real
+	 * games, against checking each card or scanning every rack; run with assertions
+	 * enabled (-ea) to fail on any mismatch
+	 */
+	private static void testProbabilities(){
+		final Player[] players = new Player[4];
+		final boolean[] valid = {true};
+		final int[] checks = {0};
+		for (int i=0; i<players.length; i++){
+			players[i] = new PlayerComputer(new ModelMax(){
+				@Override
+				public boolean decideDraw(int turn){
+					//Probabilities for the whole rack, at once
+					double[][] probs = rack.getProbabilities(true, 0);
+					int[] cards = rack.getCards();
+					for (int j=0; j<cards.length; j++){
+						valid[0] &= probs[j][0] == game.deck.getRealProbability(cards[j], true) &&
+							probs[j][1] == game.deck.getRealProbability(cards[j], false);
+					}
+					//Estimates, with different memory limits
+					for (int mem=0; mem<=5; mem+=1+mem){
+						probs = rack.getProbabilities(false, mem);
+						for (int j=0; j<cards.length; j++){
+							valid[0] &= probs[j][0] == game.deck.getProbability(cards[j], true, rack, mem) &&
+								probs[j][1] == game.deck.getProbability(cards[j], false, rack, mem) &&
+								probs[j][0] >= 0 && probs[j][0] <= 1 && probs[j][1] >= 0 && probs[j][1] <= 1;
+						}
+					}
+					//Cards outside of the racks
+					int max = game.deck.getMaxCard();
+					for (int lo=0; lo<=max; lo+=3){
+						for (int hi=lo+1; hi<=max+1; hi+=5){
+							int unseen = hi-lo-1;
+							for (Player p: players){
+								for (int card: p.rack.getCards()){
+									if (card > lo && card < hi)
+										unseen--;
+								}
+							}
+							valid[0] &= game.deck.countUnseen(lo, hi) == unseen;
+						}
+					}
+					checks[0]++;
+					return super.decideDraw(turn);
+				}
+			});
+		}
+		Game g = Game.create(players, 10, 1, false, 0);
+		g.limitMoves(5000);
+		for (int i=0; i<200; i++)
+			g.play(i % players.length);
+		if (!valid[0])
+			System.out.println("Probability mismatch");
+		assert(valid[0]);
+		System.out.println("Deck probabilities match over "+checks[0]+" turns");
+	}
+	
+	/**
+	 * Checks Rack.getLUSLength and getLongestLUS against the LUS tree, on random racks,
+	 * and checks that the LUS caches are still correct after swapping/unswapping cards;
+	 * run with assertions enabled (-ea) to fail on any mismatch
+	 */
+	private static void testLUS(){
+		int trials = 20000;
+		Random rand = new Random(0);
+		for (int rack_size=3; rack_size<=30; rack_size++){
+			Player[] players = new Player[]{
+				new PlayerComputer(new ModelRandom()),
+				new PlayerComputer(new ModelRandom())
+			};
+			Game g = Game.create(players, rack_size, 1, false, 0);
+			Rack r = players[0].rack, fresh = players[1].rack;
+			int[] deck = new int[g.card_count], hand = new int[rack_size],
+				lengths = new int[rack_size], prefixes = new int[rack_size], points = new int[rack_size];
+			for (int i=0; i<deck.length; i++)
+				deck[i] = i+1;
+			int max_key = g.card_count-rack_size+1;
+			for (int t=0; t<trials; t++){
+				//Random hand; every other trial is mostly sorted, so there are long sequences
+				for (int i=0; i<rack_size; i++){
+					int j = i+rand.nextInt(deck.length-i), card = deck[j];
+					deck[j] = deck[i];
+					deck[i] = card;
+				}
+				System.arraycopy(deck, 0, hand, 0, rack_size);
+				if (t % 2 == 0){
+					Arrays.sort(hand);
+					for (int s=rand.nextInt(4); s>=0; s--){
+						int a = rand.nextInt(rack_size), b = rand.nextInt(rack_size), card = hand[a];
+						hand[a] = hand[b];
+						hand[b] = card;
+					}
+				}
+				r.deal(hand);
+				
+				int tree_length = 0;
+				for (Rack.LUS l: r.getLUS(false))
+					tree_length = Math.max(tree_length, l.cards.length);
+				Rack.LUS best = r.getLongestLUS();
+				boolean valid = r.getLUSLength() == tree_length && best.cards.length == tree_length;
+				//Every card must be usable, with enough room between each pair
+				for (int i=0; i<best.cards.length; i++){
+					int key = best.cards[i]-best.indexes[i];
+					valid &= best.cards[i] == r.getCardAt(best.indexes[i]) && key >= 1 && key <= max_key;
+					if (i > 0)
+						valid &= best.indexes[i] > best.indexes[i-1] && key >= best.cards[i-1]-best.indexes[i-1];
+				}
+				if (!valid)
+					System.out.println("Mismatch: "+r+"; tree = "+tree_length+", length = "+r.getLUSLength()+", LUS = "+Arrays.toString(best.cards));
+				assert(valid);
+				
+				//Evaluating every swap at once should match doing each swap
+				int card = deck[rack_size+rand.nextInt(deck.length-rack_size)];
+				boolean bonus = t % 4 < 2;
+				r.evaluateSwaps(card, lengths, prefixes, points, bonus);
+				for (int i=0; i<rack_size; i++){
+					int old = r.swap(card, i);
+					valid &= lengths[i] == r.getLUSLength() && prefixes[i] == r.sortedPrefix() && points[i] == r.scorePoints(bonus);
+					r.swap(old, i);
+				}
+				if (!valid)
+					System.out.println("Swap mismatch: "+r+" with "+card+"; "+Arrays.toString(lengths)+", "+Arrays.toString(prefixes)+", "+Arrays.toString(points));
+				assert(valid);
+				
+				//Even the smallest search budget finds a longest sequence
+				valid &= r.getBestLUS(false, 4, 0, null).get(0).cards.length == tree_length;
+				if (rack_size <= 12 && t % 10 == 0)
+					valid &= sameBestLUS(r, t % 20 == 0, t % 40 < 20 ? null : Rack.RANK_CLUMP_DE);
+				if (!valid)
+					System.out.println("Best LUS mismatch: "+r);
+				assert(valid);
+				
+				//Try out cards from the deck, like a model would; some swaps are kept
+				//Comparing every sequence is slow, so this is only done for some racks
+				for (int s=0; t % 20 == 0 && s<rack_size; s++){
+					int slot = rand.nextInt(rack_size), j = rack_size+rand.nextInt(deck.length-rack_size),
+						old = r.swap(deck[j], slot);
+					valid = sameLUS(r, fresh);
+					if (rand.nextInt(4) == 0){
+						for (int k=0; k<rack_size; k++){
+							if (deck[k] == old){
+								deck[k] = deck[j];
+								deck[j] = old;
+								break;
+							}
+						}
+					}
+					else{
+						r.swap(old, slot);
+						valid &= sameLUS(r, fresh);
+					}
+					if (!valid)
+						System.out.println("Cached LUS mismatch: "+r);
+					assert(valid);
+				}
+			}
+		}
+		System.out.println("LUS lengths match the tree");
+		
+		//Cache statistics for ModelMax, which tries the drawn card in every slot
+		Player[] players = new Player[]{
+			new PlayerComputer(new ModelMax()),
+			new PlayerComputer(new ModelMax())
+		};
+		Game g = Game.create(players, 10, 1, false, 0);
+		g.limitMoves(5000);
+		for (int i=0; i<200; i++)
+			g.play(i % players.length);
+		Rack r = players[0].rack;
+		System.out.println("ModelMax LUS cache: "+r.STAT_lus_queries+" queries, "+
+			r.STAT_lus_hits*100/r.STAT_lus_queries+"% hits, "+
+			r.STAT_lus_restores+" swaps undone, "+
+			r.STAT_lus_slots/(double) r.STAT_lus_rebuilds+" slots per rebuild");
+		
+		//Sequences pruned by the deck, for ModelDiablo
+		Rack.UsableMetric metric = new DeckMetric(g, r);
+		boolean valid = true;
+		r.resetLUSStats();
+		for (int i=0; i<50; i++){
+			g.play(i % players.length);
+			r.setLUSMetric(metric);
+			for (Rack.LUS l: r.getLUS(false)){
+				for (int j=0; j<l.cards.length; j++){
+					valid &= metric.above(l.cards[j], l.indexes[j]) && metric.below(l.cards[j], l.indexes[j]);
+					if (j > 0)
+						valid &= metric.between(l.cards[j], l.indexes[j], l.cards[j-1], l.indexes[j-1]);
+				}
+			}
+			r.setLUSMetric(null);
+		}
+		if (!valid)
+			System.out.println("Deck metric wasn't applied: "+r);
+		assert(valid);
+		System.out.println("Deck metric: "+r.STAT_lus_pruned+" of "+r.STAT_lus_nodes+" cards/branches pruned");
+	}
+	/**
+	 * Compares a rack's cached LUS results to ones computed from scratch
+	 * @param r the rack
+	 * @param fresh a rack of the same size to compute from scratch with
+	 * @return true, if they match
+	 */
+	private static boolean sameLUS(Rack r, Rack fresh){
+		fresh.deal(r.getCards());
+		if (r.getLUSLength() != fresh.getLUSLength())
+			return false;
+		//Combinations blow up on large racks, so they are only checked for small ones
+		for (int combos=0; combos<(r.getCards().length <= 12 ? 2 : 1); combos++){
+			ArrayList<Rack.LUS> a = r.getLUS(combos == 1), b = fresh.getLUS(combos == 1);
+			if (a.size() != b.size())
+				return false;
+			for (int i=0; i<a.size(); i++){
+				if (!Arrays.equals(a.get(i).cards, b.get(i).cards) || !Arrays.equals(a.get(i).indexes, b.get(i).indexes))
+					return false;
+			}
+			//Streaming the sequences should give the same ones, from scratch or from the caches
+			fresh.deal(r.getCards());
+			if (!sameSlots(fresh, combos == 1, b) || !sameSlots(r, combos == 1, a))
+				return false;
+		}
+		return true;
+	}
+	/**
+	 * Checks that Rack.getBestLUS gives the best of all the sequences
+	 * @param r the rack
+	 * @param use_combos include all combinations of sequences as well
+	 * @param ranker ranks sequences of the same length, or null
+	 * @return true, if they match
+	 */
+	private static boolean sameBestLUS(Rack r, boolean use_combos, Rack.LUSRanker ranker){
+		ArrayList<Rack.LUS> all = r.getLUS(use_combos);
+		int k = 3;
+		ArrayList<Rack.LUS> best = r.getBestLUS(use_combos, k, Integer.MAX_VALUE, ranker);
+		//The lengths should be the k longest
+		int[] lengths = new int[all.size()];
+		for (int i=0; i<lengths.length; i++)
+			lengths[i] = all.get(i).cards.length;
+		Arrays.sort(lengths);
+		if (best.size() != Math.min(k, lengths.length))
+			return false;
+		for (int i=0; i<best.size(); i++){
+			Rack.LUS seq = best.get(i);
+			if (seq.cards.length != lengths[lengths.length-1-i])
+				return false;
+			//Each one should be a real sequence, and only given once
+			boolean found = false;
+			for (Rack.LUS l: all)
+				found |= Arrays.equals(l.indexes, seq.indexes);
+			for (int j=0; j<i; j++)
+				found &= !Arrays.equals(best.get(j).indexes, seq.indexes);
+			if (!found)
+				return false;
+		}
+		//The first should have the best rank, of the longest sequences
+		if (ranker != null){
+			double rank = ranker.rank(r, best.get(0));
+			for (Rack.LUS l: all){
+				if (l.cards.length == best.get(0).cards.length && ranker.rank(r, l) > rank)
+					return false;
+			}
+		}
+		return true;
+	}
+	/**
+	 * Checks that Rack.visitLUS gives the same sequences as a list, in the same order
+	 * @param r the rack to visit
+	 * @param use_combos include all combinations of sequences as well
+	 * @param list sequences from Rack.getLUS
+	 * @return true, if they match
+	 */
+	private static boolean sameSlots(Rack r, boolean use_combos, ArrayList<Rack.LUS> list){
+		final ArrayList<Long> visited = new ArrayList<>();
+		int count = r.visitLUS(use_combos, new Rack.LUSVisitor(){
+			@Override
+			public void visit(long slots){
+				visited.add(slots);
+			}
+		});
+		if (count != list.size() || visited.size() != count)
+			return false;
+		for (int i=0; i<count; i++){
+			Rack.LUS seq = r.toLUS(visited.get(i));
+			if (!Arrays.equals(seq.cards, list.get(i).cards) || !Arrays.equals(seq.indexes, list.get(i).indexes))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Checks batched inference and training against doing one input at a time, on
+	 * networks with added and frozen layers: computeBatch must give exactly what
+	 * compute does, and trainBatch with one input exactly the weights that compute
+	 * and trainBackprop do; with more inputs, it must match adding up the weight
+	 * changes of each input on its own. Also checks that networks saved as text, then
+	 * binary, then text again come back the same, and that truncated or corrupted
+	 * binary files won't load. Run with assertions enabled (-ea) to fail on any mismatch
+	 */
+	private static void testNetwork(){
+		//Hidden layers added to a 12-8-3 network, and how many layers are frozen
+		int[][] added = {{}, {5}, {5}, {5, 4}};
+		int[] frozen = {0, 0, 1, 2};
+		int inputs = 12, outputs = 3, max_rows = 13, checks = 0;
+		Random rand = new Random(0);
+		File dir = null;
+		try{
+			dir = Files.createTempDirectory("network").toFile();
+			File bin = new File(dir, "weights"+Network.BINARY_EXTENSION);
+			for (int n=0; n<added.length; n++){
+				double[] data = new double[max_rows*inputs], targets = new double[max_rows*outputs],
+					rates = new double[max_rows], batch = new double[max_rows*outputs];
+				for (int i=0; i<data.length; i++)
+					data[i] = rand.nextDouble();
+				for (int i=0; i<targets.length; i++)
+					targets[i] = rand.nextDouble();
+				for (int r=0; r<max_rows; r++)
+					rates[r] = 0.05 + rand.nextDouble()/2;
+				boolean valid = true;
+				
+				//Batches of every size, so there are leftover rows after each block of four
+				Network net = sampleNetwork(added[n], frozen[n]);
+				for (int rows=1; rows<=max_rows; rows++){
+					net.computeBatch(data, rows, batch);
+					for (int r=0; r<rows; r++){
+						net.compute(Arrays.copyOfRange(data, r*inputs, (r+1)*inputs));
+						for (int o=0; o<outputs; o++)
+							valid &= batch[r*outputs + o] == net.getOutput(o);
+					}
+					checks++;
+				}
+				//The outputs cached for getOutput are left alone
+				double last = net.getOutput(0);
+				net.computeBatch(data, 1, batch);
+				valid &= net.getOutput(0) == last;
+				if (!valid)
+					System.out.println("computeBatch mismatch: layers "+layers(net)+", frozen "+frozen[n]);
+				assert(valid);
+				
+				double[] start = networkWeights(net, bin);
+				int fixed = frozenWeights(net, frozen[n]);
+				for (int rows: new int[]{1, 2, 4, 5, 13}){
+					//Each input's weight changes, from the same starting weights
+					double[] expected = start.clone();
+					for (int r=0; r<rows; r++){
+						Network single = sampleNetwork(added[n], frozen[n]);
+						single.compute(Arrays.copyOfRange(data, r*inputs, (r+1)*inputs));
+						single.trainBackprop(rates[r], Arrays.copyOfRange(targets, r*outputs, (r+1)*outputs));
+						double[] w = networkWeights(single, bin);
+						for (int k=0; k<w.length; k++)
+							expected[k] += w[k]-start[k];
+						if (rows == 1)
+							expected = w;
+					}
+					Network trained = sampleNetwork(added[n], frozen[n]);
+					trained.trainBatch(data, targets, rates, rows);
+					double[] w = networkWeights(trained, bin);
+					//A single input is exact; otherwise the changes are added up in another order
+					for (int k=0; k<w.length; k++)
+						valid &= rows == 1 ? w[k] == expected[k] : Math.abs(w[k]-expected[k]) <= 1e-12;
+					//Frozen layers don't change at all, but the rest do
+					for (int k=0; k<fixed; k++)
+						valid &= w[k] == start[k];
+					valid &= !Arrays.equals(w, start);
+					if (!valid)
+						System.out.println("trainBatch mismatch: layers "+layers(net)+", frozen "+frozen[n]+", "+rows+" rows");
+					assert(valid);
+					checks++;
+				}
+				
+				//Text, then binary, then text again; each file is only loaded once, since
+				//binary files stay mapped
+				Network trained = sampleNetwork(added[n], frozen[n]);
+				trained.trainBatch(data, targets, rates, max_rows);
+				File text = new File(dir, "network"+n+".txt"), copy = new File(dir, "copy"+n+".txt"),
+					saved = new File(dir, "network"+n+Network.BINARY_EXTENSION);
+				try{
+					valid &= trained.export(text.getPath());
+					valid &= new Network(text.getPath()).exportBinary(saved.getPath(), false);
+					Network loaded = new Network(saved.getPath());
+					valid &= loaded.export(copy.getPath());
+					valid &= Arrays.equals(Files.readAllBytes(text.toPath()), Files.readAllBytes(copy.toPath()));
+					valid &= Arrays.equals(networkWeights(loaded, bin), networkWeights(trained, bin));
+					valid &= Arrays.equals(Files.readAllBytes(bin.toPath()), Files.readAllBytes(saved.toPath()));
+				} catch (Exception e){
+					System.out.println("Could not load network: "+e.getMessage());
+					valid = false;
+				}
+				if (!valid)
+					System.out.println("Saved network mismatch: layers "+layers(trained)+", frozen "+frozen[n]);
+				assert(valid);
+				
+				//Damaged files: cut off in the weights or the header, or a byte flipped in the
+				//weights or the checksum
+				byte[] bytes = Files.readAllBytes(saved.toPath()), flipped = bytes.clone();
+				int header = bytes.length - networkWeights(trained, bin).length*8;
+				flipped[header + rand.nextInt(bytes.length-header)] ^= 1 << rand.nextInt(8);
+				valid &= loadError(new File(dir, "cut"+n+Network.BINARY_EXTENSION), Arrays.copyOf(bytes, bytes.length-3)).startsWith("Truncated");
+				//Cut off in the layer sizes, the layer count doesn't fit, so it's reported as corrupt
+				valid &= !loadError(new File(dir, "short"+n+Network.BINARY_EXTENSION), Arrays.copyOf(bytes, header-6)).isEmpty();
+				valid &= loadError(new File(dir, "flipped"+n+Network.BINARY_EXTENSION), flipped).contains("checksum");
+				flipped = bytes.clone();
+				flipped[header-1-rand.nextInt(4)] ^= 1 << rand.nextInt(8);
+				valid &= loadError(new File(dir, "checksum"+n+Network.BINARY_EXTENSION), flipped).contains("checksum");
+				if (!valid)
+					System.out.println("Damaged network file loaded: layers "+layers(trained)+", frozen "+frozen[n]);
+				assert(valid);
+				checks += 5;
+			}
+			System.out.println("Batched networks match over "+checks+" checks");
+		} catch (IOException e){
+			System.out.println("Could not test networks: "+e.getMessage());
+		} finally{
+			if (dir != null){
+				for (File f: dir.listFiles())
+					f.delete();
+				dir.delete();
+			}
+		}
+	}
+	/**
+	 * Makes a 12-8-3 network, always with the same starting weights
+	 * @param added sizes of the hidden layers to add
+	 * @param frozen layer to freeze
+	 * @return the network
+	 */
+	private static Network sampleNetwork(int[] added, int frozen){
+		Network net = new Network(new int[]{12, 8, 3}, new Random(1));
+		for (int nodes: added)
+			net.addHiddenLayer(nodes);
+		net.freeze(frozen);
+		return net;
+	}
+	/**
+	 * Gets all of a network's weights, by reading them back from the binary format
+	 * @param net the network
+	 * @param file where to export it
+	 * @return the weights, in the order they're stored
+	 * @throws IOException if the network couldn't be exported
+	 */
+	private static double[] networkWeights(Network net, File file) throws IOException{
+		if (!net.exportBinary(file.getPath(), false))
+			throw new IOException("Could not export network to "+file);
+		ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		//The weights come after the layer sizes and the checksum
+		buf.position(16 + 4*buf.getInt(12) + 4);
+		double[] w = new double[buf.remaining()/8];
+		buf.asDoubleBuffer().get(w);
+		return w;
+	}
+	/**
+	 * Tries to load a damaged network file
+	 * @param file where to save it
+	 * @param bytes the file's contents
+	 * @return why it couldn't be loaded; empty if it loaded
+	 * @throws IOException if the file couldn't be saved
+	 */
+	private static String loadError(File file, byte[] bytes) throws IOException{
+		Files.write(file.toPath(), bytes);
+		try{
+			new Network(file.getPath());
+			return "";
+		} catch (Exception e){
+			return e.getMessage() == null ? e.toString() : e.getMessage();
+		}
+	}
+	/**
+	 * How many weights go out of the frozen layers; they come first (see networkWeights)
+	 */
+	private static int frozenWeights(Network net, int frozen){
+		int count = 0, output = net.hiddenLayers()+1;
+		for (int l=0; l<frozen; l++)
+			count += net.layerNodes(l)*(net.layerNodes(l+1) - (l+1 == output ? 0 : 1));
+		return count;
+	}
+	private static String layers(Network net){
+		StringBuilder sb = new StringBuilder();
+		for (int l=0; l<=net.hiddenLayers()+1; l++)
+			sb.append(l == 0 ? "" : "-").append(l == net.hiddenLayers()+1 ? net.layerNodes(l) : net.layerNodes(l)-1);
+		return sb.toString();
+	}
+	/**
+	 * Checks how much reduced precision networks (see NeuralNetworks.InferenceNetwork)
+	 * change Diablo's decisions; positions are replayed from a game log, which is
+	 * recorded first (from Diablo using the full precision network) if it doesn't exist
+	 * For each precision, reports how often the moves match the recorded ones, the
+	 * worst-case output drift, and how long the replay took
+	 * @param weights Diablo's network weights
+	 * @param log the game log to replay
+	 */
+	private static void testInference(String weights, String log){
+		int rack_size = 10, games = 2000;
+		int old_precision = InferenceNetwork.deploy_precision;
+		try{
+			if (!new java.io.File(log).isFile()){
+				InferenceNetwork.deploy_precision = InferenceNetwork.DOUBLE;
+				Player[] players = new Player[]{
+					new PlayerComputer(new ModelDiablo(weights, false)),
+					new PlayerComputer(new ModelDiablo(weights, false))
+				};
+				Game g = Game.create(players, rack_size, 1, false, 1);
+				g.limitMoves(5000);
+				GameRecorder recorder = new GameRecorder(log, g);
+				g.record(recorder);
+				for (int i=0; i<games; i++)
+					g.play(i % players.length);
+				g.record(null);
+				recorder.close();
+			}
+			String[] names = {"double", "float", "int8"};
+			for (int precision=InferenceNetwork.DOUBLE; precision<=InferenceNetwork.INT8; precision++){
+				//Decisions and speed
+				InferenceNetwork.deploy_precision = precision;
+				GameReplay replay = new GameReplay(log);
+				Model[] candidates = new Model[replay.players];
+				for (int i=0; i<candidates.length; i++)
+					candidates[i] = new ModelDiablo(weights, false);
+				long start = System.nanoTime();
+				replay.replay(candidates);
+				long time = System.nanoTime()-start;
+				replay.close();
+				//Output drift, checking every output against the full precision network
+				double drift = 0;
+				long outputs = 0, flips = 0;
+				if (precision != InferenceNetwork.DOUBLE){
+					GameReplay check = new GameReplay(log);
+					DriftProbe[] probes = new DriftProbe[check.players];
+					for (int i=0; i<candidates.length; i++){
+						ModelDiablo d = new ModelDiablo(weights, false);
+						probes[i] = new DriftProbe(d.score_net, new InferenceNetwork(d.score_net, precision));
+						d.setScorer(probes[i]);
+						candidates[i] = d;
+					}
+					check.replay(candidates);
+					check.close();
+					for (DriftProbe probe: probes){
+						drift = Math.max(drift, probe.drift);
+						outputs += probe.outputs;
+						flips += probe.flips;
+					}
+				}
+				System.out.println(names[precision]+": move agreement "+Math.round(replay.getMoveAgreement()*100000)/1000.0+
+					"% of "+replay.getPositions()+" positions, replayed in "+time/1e9+"s");
+				if (precision != InferenceNetwork.DOUBLE)
+					System.out.println("	worst output drift "+drift+" over "+outputs+" outputs; best sequence changed in "+flips+" batches");
+			}
+		} catch (IOException e){
+			System.out.println("Could not replay game log: "+e.getMessage());
+		} finally{
+			InferenceNetwork.deploy_precision = old_precision;
+		}
+	}
+	/**
+	 * Scores with a reduced precision network, comparing every output to the original
+	 */
+	private static class DriftProbe implements Inference{
+		private final Network reference;
+		private final Inference test;
+		private double[] expected = new double[0];
+		private double drift = 0;
+		private long outputs = 0, flips = 0;
+
+		public DriftProbe(Network reference, Inference test){
+			this.reference = reference;
+			this.test = test;
+		}
+		@Override
+		public void computeBatch(double[] data, int rows, double[] out){
+			test.computeBatch(data, rows, out);
+			if (expected.length < out.length)
+				expected = new double[out.length];
+			reference.computeBatch(data, rows, expected);
+			int count = rows*test.outputNodes(), best = 0, best_expected = 0;
+			for (int i=0; i<count; i++){
+				drift = Math.max(drift, Math.abs(out[i]-expected[i]));
+				if (out[i] > out[best])
+					best = i;
+				if (expected[i] > expected[best_expected])
+					best_expected = i;
+			}
+			outputs += count;
+			if (best != best_expected)
+				flips++;
+		}
+		@Override
+		public void compute(double[] data){
+			test.compute(data);
+		}
+		@Override
+		public int getOutput(){
+			return test.getOutput();
+		}
+		@Override
+		public double getOutput(int node){
+			return test.getOutput(node);
+		}
+		@Override
+		public int inputNodes(){
+			return test.inputNodes();
+		}
+		@Override
+		public int outputNodes(){
+			return test.outputNodes();
+		}
+	}
+	/**
+	 * Trains Diablo against Max, with every worker thread training the same network
+	 * at once (see NeuralNetworks.Network.share); the network is exported at every
+	 * epoch. Reports how many games were trained per second, and how often the
+	 * trained network beats Max afterwards; run with different thread counts to
+	 * check that training converges about as well as it does sequentially
+	 * @param weights where to save the network; if it doesn't exist, a new network is trained
+	 * @param threads worker threads
+	 * @param games how many games to train for
+	 */
+	private static void testHogwild(String weights, int threads, int games){
+		int rack_size = 10, test_games = 2000;
+		final ModelDiablo shared = new ModelDiablo(weights, true);
+		Tournament.PlayerFactory factory = new Tournament.PlayerFactory(){
+			@Override
+			public Player[] create(){
+				return new Player[]{
+					new PlayerComputer(new ModelDiablo(shared, true, false)),
+					new PlayerComputer(new ModelMax())
+				};
+			}
+		};
+		boolean verbose = Tournament.verbose;
+		Tournament.verbose = false;
+		Tournament t = new Tournament(factory, rack_size, 1, false, threads, 1);
+		t.limitMoves(5000);
+		long start = System.nanoTime();
+		t.play(games, 100);
+		double time = (System.nanoTime()-start)/1e9;
+		t.shutdown();
+		Tournament.verbose = verbose;
+		System.out.println(threads+" threads: trained "+games+" games in "+time+"s ("+Math.round(games/time*10)/10.0+" games/s)");
+		
+		//Test the exported network, without training
+		Player[] players = new Player[]{
+			new PlayerComputer(new ModelDiablo(weights, false)),
+			new PlayerComputer(new ModelMax())
+		};
+		Game g = Game.create(players, rack_size, 1, false, 2);
+		g.limitMoves(5000);
+		for (int i=0; i<test_games; i++)
+			g.play(i % players.length);
+		System.out.println("\tbeats Max in "+Math.round(players[0].STAT_wins*1000.0/players[0].STAT_rounds)/10.0+"% of rounds");
+	}
+	/**
+	 * Plays Diablo against itself on many worker threads, first with each model
+	 * scoring on its own thread, then with every model scoring through one
+	 * InferenceBatcher; reports games per second for each, and the batcher's statistics
+	 * @param weights Diablo's network weights
+	 * @param threads worker threads, i.e. games running at once
+	 * @param games how many games to play
+	 */
+	private static void testBatcher(String weights, int threads, int games){
+		int rack_size = 10;
+		final ModelDiablo shared = new ModelDiablo(weights, false);
+		boolean verbose = Tournament.verbose;
+		Tournament.verbose = false;
+		for (int run=0; run<2; run++){
+			final InferenceBatcher batcher = run == 0 ? null :
+				new InferenceBatcher(InferenceNetwork.deploy(shared.score_net), 256, 20000);
+			Tournament.PlayerFactory factory = new Tournament.PlayerFactory(){
+				@Override
+				public Player[] create(){
+					Player[] players = new Player[2];
+					for (int i=0; i<players.length; i++){
+						ModelDiablo d = new ModelDiablo(shared, false, false);
+						if (batcher != null)
+							d.setScorer(batcher.client());
+						players[i] = new PlayerComputer(d);
+					}
+					return players;
+				}
+			};
+			Tournament t = new Tournament(factory, rack_size, 1, false, threads, 1);
+			t.limitMoves(5000);
+			long start = System.nanoTime();
+			t.play(games, 0);
+			double time = (System.nanoTime()-start)/1e9;
+			t.shutdown();
+			System.out.println((batcher == null ? "Unbatched" : "Batched")+": "+games+" games in "+time+"s ("+Math.round(games/time*10)/10.0+" games/s)");
+			if (batcher != null){
+				System.out.println("\t"+batcher.toString().replace("\n", "\n\t"));
+				batcher.shutdown();
+			}
+		}
+		Tournament.verbose = verbose;
+	}
+	/**
+	 * Re-scores a game log (see Tournament.record) against a candidate model
+	 * @param filename the game log
+	 */
+	private static void testReplay(String filename){
+		try{
+			GameReplay replay = new GameReplay(filename);
+			Model[] candidates = new Model[replay.players];
+			for (int i=0; i<candidates.length; i++)
+				candidates[i] = new ModelDiablo("weights/diablo/diablo2_weights.txt", false);
+			long start = System.nanoTime();
+			replay.replay(candidates);
+			replay.close();
+			System.out.println(replay);
+			System.out.println("Replayed in "+(System.nanoTime()-start)/1e9+"s");
+		} catch (IOException e){
+			System.out.println("Could not replay game log: "+e.getMessage());
+		}
 	}
 }
@@ -0,0 +1,277 @@
+package client;
+
+import interfaces.Player;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import racko.Game;
+import racko.GameRecorder;
+import racko.SplitRandom;
+
+/**
+ * Plays a large number of games, split across a pool of worker threads
+ * Each worker owns its own Game (and thus Deck/Racks) and its own copy of the
+ * players, so nothing is shared while games are being played; at every epoch
+ * the workers' statistics are merged, so EPOCH/MODEL statistics come out the
+ * same as they would for a single, sequential run
+ * @author isaac
+ */
+public class Tournament {
+	/**
+	 * Creates a set of players for a single worker
+	 */
+	public interface PlayerFactory{
+		/**
+		 * Create a fresh set of players; called once per worker
+		 * @return list of players, in seat order
+		 */
+		public Player[] create();
+	}
+
+	//Print epoch statistics to the console
+	public static boolean verbose = true;
+	//Workers
+	private final int threads;
+	private final Game[] games;
+	private final Player[][] players;
+	private final Random[] rands;
+	private final ExecutorService pool;
+	private GameRecorder[] recorders = null;
+	private int epochs = 0;
+
+	/**
+	 * Creates a new tournament
+	 * @param factory creates each worker's players
+	 * @param rackSize how large each rack should be
+	 * @param minStreak minimum streak to win the game (use 1 for standard rules)
+	 * @param bonusMode allow bonus points for streaks
+	 * @param threads how many worker threads to use; use 0 for one per processor
+	 */
+	public Tournament(PlayerFactory factory, int rackSize, int minStreak, boolean bonusMode, int threads){
+		this(factory, rackSize, minStreak, bonusMode, threads, new SplitRandom().nextLong());
+	}
+	/**
+	 * Creates a new tournament with a fixed random seed; each worker's game
+	 * is seeded from this, so runs with the same seed and thread count
+	 * will give the exact same results
+	 * @param factory creates each worker's players
+	 * @param rackSize how large each rack should be
+	 * @param minStreak minimum streak to win the game (use 1 for standard rules)
+	 * @param bonusMode allow bonus points for streaks
+	 * @param threads how many worker threads to use; use 0 for one per processor
+	 * @param seed root random seed
+	 */
+	public Tournament(PlayerFactory factory, int rackSize, int minStreak, boolean bonusMode, int threads, long seed){
+		if (threads < 1)
+			threads = Runtime.getRuntime().availableProcessors();
+		this.threads = threads;
+		games = new Game[threads];
+		players = new Player[threads][];
+		rands = new Random[threads];
+		//Players are numbered as they're created; rewind the count for each
+		//worker, so the copies are numbered the same as a sequential run
+		int player_count = Player.playerCount;
+		SplitRandom root = new SplitRandom(seed);
+		for (int i=0; i<threads; i++){
+			Player.playerCount = player_count;
+			players[i] = factory.create();
+			games[i] = Game.create(players[i], rackSize, minStreak, bonusMode, root.nextLong());
+			//Picks who starts each game
+			rands[i] = games[i].split();
+		}
+		//A single worker just plays on the calling thread
+		pool = threads == 1 ? null : Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Limits the number of moves in a round before calling a draw
+	 * @param limit move limit; use 0 for unlimited
+	 */
+	public void limitMoves(int limit){
+		for (Game g: games)
+			g.limitMoves(limit);
+	}
+	/**
+	 * Records every move to a binary log (see racko.GameRecorder); with more
+	 * than one worker, each worker gets its own log, named "filename.N"
+	 * The logs are closed by shutdown()
+	 * @param filename the log file
+	 * @throws IOException if a log couldn't be created
+	 */
+	public void record(String filename) throws IOException{
+		recorders = new GameRecorder[threads];
+		for (int i=0; i<threads; i++){
+			recorders[i] = new GameRecorder(threads == 1 ? filename : filename+"."+i, games[i]);
+			games[i].record(recorders[i]);
+		}
+	}
+	/**
+	 * Get the first worker's players; these are the ones whose statistics
+	 * are reported at each epoch (all workers share the same statistics)
+	 * @return list of players
+	 */
+	public Player[] getPlayers(){
+		return players[0];
+	}
+	/**
+	 * How many worker threads this tournament uses
+	 * @return thread count
+	 */
+	public int getThreads(){
+		return threads;
+	}
+
+	/**
+	 * Play games; epochs are triggered at the same points as a sequential
+	 * loop that calls epoch after game "i", when i > 0 and i % epochEvery == 0
+	 * @param count how many games to play
+	 * @param epochEvery epoch after how many games? (0 to disable epochs)
+	 */
+	public void play(int count, int epochEvery){
+		int played = 0;
+		while (played < count){
+			//Play up until the next epoch boundary
+			int chunk = count - played;
+			boolean epoch = false;
+			if (epochEvery > 0){
+				int next = (played/epochEvery + 1)*epochEvery;
+				if (next < count){
+					chunk = next+1 - played;
+					epoch = true;
+				}
+			}
+			playChunk(chunk);
+			played += chunk;
+			if (epoch)
+				epoch();
+		}
+	}
+	/**
+	 * Splits games evenly between the workers and waits for them to finish
+	 * @param count how many games to play
+	 */
+	private void playChunk(int count){
+		if (pool == null){
+			playWorker(0, count);
+			return;
+		}
+		List<Callable<Void>> tasks = new ArrayList<>(threads);
+		for (int i=0; i<threads; i++){
+			final int worker = i,
+				worker_count = count/threads + (i < count%threads ? 1 : 0);
+			if (worker_count == 0)
+				continue;
+			tasks.add(new Callable<Void>(){
+				@Override
+				public Void call(){
+					playWorker(worker, worker_count);
+					return null;
+				}
+			});
+		}
+		try{
+			for (Future<Void> f: pool.invokeAll(tasks))
+				f.get();
+		} catch (InterruptedException | ExecutionException e){
+			throw new RuntimeException("Tournament worker failed", e);
+		}
+	}
+	private void playWorker(int worker, int count){
+		Game g = games[worker];
+		Random rand = rands[worker];
+		int player_count = players[worker].length;
+		for (int i=0; i<count; i++)
+			g.play(rand.nextInt(player_count));
+	}
+	/**
+	 * Merges worker statistics and notifies all players of the epoch
+	 */
+	private void epoch(){
+		epochs++;
+		Player[] merged = players[0];
+		for (int s=0; s<merged.length; s++){
+			for (int i=1; i<threads; i++)
+				merged[s].mergeStats(players[i][s]);
+			//Every worker's copy sees the merged statistics, so learning
+			//models and stopping criteria behave the same in each worker
+			for (int i=1; i<threads; i++){
+				Player p = players[i][s];
+				p.resetStats();
+				p.mergeStats(merged[s]);
+				p.epoch();
+			}
+			merged[s].epoch();
+		}
+		if (verbose)
+			printEpoch(epochs, merged);
+	}
+	/**
+	 * Stops the worker threads; the tournament can't be used afterwards
+	 */
+	public void shutdown(){
+		if (pool != null)
+			pool.shutdown();
+		if (recorders != null){
+			for (int i=0; i<threads; i++){
+				games[i].record(null);
+				try{
+					recorders[i].close();
+				} catch (IOException e){
+					System.out.println("Warning!!! Could not close game log: "+e.getMessage());
+				}
+			}
+			recorders = null;
+		}
+	}
+
+	/**
+	 * Prints epoch statistics to the console
+	 * @param epochs the epoch number
+	 * @param players players to print statistics for
+	 */
+	public static void printEpoch(int epochs, Player[] players){
+		System.out.println("EPOCH #"+epochs+":");
+		System.out.println(
+			"\tMoves:\t\t"+
+			"Random:\t\t"+
+			"Wins:\t\t"+
+			"Moves All:\t"+
+			"Random All:\t"+
+			"Wins All:"
+		);
+		for (Player p: players){
+			System.out.println(
+				"P"+p.playerNumber+"\t"+
+				round(p.EPOCH_allmoves)+"\t\t"+
+				round(p.EPOCH_badmoves*100)+"%\t\t"+
+				round(p.EPOCH_wins*100)+"%\t\t"+
+				round(p.MODEL_allmoves)+"\t\t"+
+				round(p.MODEL_badmoves*100)+"%\t\t"+
+				round(p.MODEL_wins*100)+"%"
+			);
+		}
+		//Decision latencies, for each model a player used this epoch
+		if (PlayerComputer.timing){
+			System.out.println("\tLatency:");
+			for (Player p: players){
+				if (!(p instanceof PlayerComputer))
+					continue;
+				for (PlayerComputer.Latency l: ((PlayerComputer) p).getLatency()){
+					if (l.EPOCH_draw.count() == 0)
+						continue;
+					System.out.println("P"+p.playerNumber+"\t"+l.model+"\tdraw: "+l.EPOCH_draw+"\tmax="+l.EPOCH_draw.max()/1000+"us");
+					System.out.println("P"+p.playerNumber+"\t"+l.model+"\tplay: "+l.EPOCH_play+"\tmax="+l.EPOCH_play.max()/1000+"us");
+				}
+			}
+		}
+	}
+	private static double round(double val){
+		return Math.round(val*100)/100.0;
+	}
+}
@@ -11,6 +11,8 @@ import racko.Rack;
 public abstract class Player {
 	public Game game;
 	public Rack rack;
+	//Used to number players; client.Tournament rewinds this for each worker's
+	//copy of the players, so every worker numbers its players the same way
 	public static int playerCount = 0;
 	public final int playerNumber;
 	public final String name;
@@ -117,10 +119,22 @@ public abstract class Player {
 	public void resetModel(){
 		first_epoch = true;
 	}
+	/**
+	 * Adds another player's statistics to this player's; use this to combine
+	 * statistics from games played in parallel before calling epoch()
+	 * @param p the player whose statistics should be added
+	 */
+	public void mergeStats(Player p){
+		STAT_allmoves += p.STAT_allmoves;
+		STAT_badmoves += p.STAT_badmoves;
+		STAT_rounds += p.STAT_rounds;
+		STAT_wins += p.STAT_wins;
+		STAT_score += p.STAT_score;
+	}
 	/**
 	 * Resets statistics back to zero
 	 */
-	private void resetStats(){
+	public void resetStats(){
 		STAT_allmoves = 0;
 		STAT_badmoves = 0;
 		STAT_rounds = 0;
@@ -11,6 +11,13 @@ public class DataInstance {
 	public DataInstance(int features){
 		inputs = new double[features];
 	}
+	/**
+	 * Clears the instance, so it can be reused for new features
+	 */
+	public void reset(){
+		loc = 0;
+		output = 0;
+	}
 	
 	//Integer features
 	public void addFeature(int[] vals, double normalize){
@@ -1,6 +1,9 @@
 package models;
 
+import NeuralNetworks.Inference;
+import NeuralNetworks.InferenceNetwork;
 import NeuralNetworks.Network;
+import NeuralNetworks.TrainingBatch;
 import interfaces.Model;
 import interfaces.Player;
 import java.io.File;
@@ -14,7 +17,7 @@ import racko.Rack;
  */
 public class ModelAI extends Model{
 	private static final double LEARN_RATE = .1, EPSILON = 0.0001;
-	private static final Random RAND = new Random();
+	private Random RAND;
 	//Playing history
 	private final ArrayList<DataInstance> drawHistory;
 	private final ArrayList<DataInstance> playHistory;
@@ -23,6 +26,17 @@ public class ModelAI extends Model{
 	private final boolean USE_RAND, USE_PROB_DRAW = false, USE_PROB_PLAY = false;
 	private final int RAND_LIMIT = 20, RAND_ROUNDS = 0;
 	public Network drawNet = null, playNet = null;
+	//Networks used for deciding; reduced precision copies, if this player doesn't train
+	private Inference draw_eval, play_eval;
+	//Instances trained at once (see NeuralNetworks.TrainingBatch)
+	private static final int TRAIN_BATCH = 16;
+	private TrainingBatch drawBatch, playBatch;
+	//Networks get seeded when one of the players sharing them is first registered;
+	//new ones are randomized, and loaded ones get a generator for added layers
+	private boolean fresh_draw = false, fresh_play = false, seeded = false;
+	private ModelAI seeder = this;
+	//Only one of the players sharing the networks exports them: the first to reach an epoch
+	private ModelAI exporter;
 	private final String drawNet_file, playNet_file;
 	private final boolean TRAIN;
 	//Deep learning
@@ -91,7 +105,8 @@ public class ModelAI extends Model{
 		}
 	}
 	/**
-	 * Create AI using preexisting networks
+	 * Create AI using preexisting networks; the networks' weights are shared, so
+	 * copies can play (and train) on different threads at once
 	 * @param copy AI to copy networks from
 	 * @param train train the networks
 	 * @param random play random moves, to explore the feature space
@@ -100,9 +115,13 @@ public class ModelAI extends Model{
 		USE_RAND = random;
 		drawNet_file = copy.drawNet_file;
 		playNet_file = copy.playNet_file;
-		drawNet = copy.drawNet;
-		playNet = copy.playNet;
+		//Random AI's don't have networks
+		if (copy.drawNet != null){
+			drawNet = copy.drawNet.share();
+			playNet = copy.playNet.share();
+		}
 		rack_size = copy.rack_size;
+		seeder = copy.seeder;
 		
 		//Training
 		TRAIN = train;
@@ -146,6 +165,7 @@ public class ModelAI extends Model{
 			1
 		};
 		drawNet = new Network(layers);
+		fresh_draw = true;
 	}
 	private void newPlayNetwork(){
 		System.out.println("ModelAI: Creating new play network");
@@ -156,11 +176,12 @@ public class ModelAI extends Model{
 			rack_size+1
 		};
 		playNet = new Network(layers);
+		fresh_play = true;
 	}
 	private void initDeepLearning(){
-		int draw_hf = drawNet.layers.get(1).length,
+		int draw_hf = drawNet.layerNodes(1),
 			draw_hl = drawNet.outputNodes(),
-			play_hf = playNet.layers.get(1).length,
+			play_hf = playNet.layerNodes(1),
 			play_hl = playNet.outputNodes();
 		
 		DL_layers = Math.max(drawNet.hiddenLayers(), playNet.hiddenLayers())-1;
@@ -183,6 +204,21 @@ public class ModelAI extends Model{
 	@Override
 	public boolean register(Game g, Rack r){
 		super.register(g, r);
+		RAND = g.split();
+		if (!seeder.seeded && drawNet != null){
+			seeder.seeded = true;
+			Random draw_rand = g.split(), play_rand = g.split();
+			if (seeder.fresh_draw)
+				seeder.drawNet.randomize(draw_rand);
+			else seeder.drawNet.setRandom(draw_rand);
+			if (seeder.fresh_play)
+				seeder.playNet.randomize(play_rand);
+			else seeder.playNet.setRandom(play_rand);
+		}
+		if (draw_eval == null && drawNet != null){
+			draw_eval = TRAIN ? drawNet : InferenceNetwork.deploy(drawNet);
+			play_eval = TRAIN ? playNet : InferenceNetwork.deploy(playNet);
+		}
 		return rack_size == g.rack_size;
 	}
 	@Override
@@ -194,8 +230,8 @@ public class ModelAI extends Model{
 		//We only add the draw instnace if the decidePlay outcome is good
 		createDrawHistory();
 		if (!USE_RAND && net_play_count < RAND_LIMIT && games_played > RAND_ROUNDS){
-			drawNet.compute(draw_instance.inputs);
-			rval = drawNet.getOutput() > .5;
+			draw_eval.compute(draw_instance.inputs);
+			rval = draw_eval.getOutput() > .5;
 		}
 		else{
 			//Wait until decidePlay before resetting play_count
@@ -211,8 +247,8 @@ public class ModelAI extends Model{
 		
 		createPlayHistory(drawn);
 		if (!USE_RAND && net_play_count < RAND_LIMIT && games_played > RAND_ROUNDS){
-			playNet.compute(play_instance.inputs);
-			rval = playNet.getOutput()-1;
+			play_eval.compute(play_instance.inputs);
+			rval = play_eval.getOutput()-1;
 		}
 		else{
 			rand_count++;
@@ -239,6 +275,11 @@ public class ModelAI extends Model{
 	}
 	@Override
 	public void beginRound(){
+		//The networks may be shared with a player that trains them
+		if (draw_eval instanceof InferenceNetwork){
+			((InferenceNetwork) draw_eval).update();
+			((InferenceNetwork) play_eval).update();
+		}
 		net_play_count = 0;
 		moves_in_round = 0;
 		rand_count = 0;
@@ -299,16 +340,18 @@ public class ModelAI extends Model{
 		
 		if (rate > .0001){
 			//System.out.println("Training with "+drawHistory.size()+" instances");
-			//Train for drawing
-			for (DataInstance d: drawHistory){
-				drawNet.compute(d.inputs);
-				drawNet.trainBackprop(rate, (int) d.output);
+			if (drawBatch == null){
+				drawBatch = new TrainingBatch(drawNet, TRAIN_BATCH);
+				playBatch = new TrainingBatch(playNet, TRAIN_BATCH);
 			}
+			//Train for drawing
+			for (DataInstance d: drawHistory)
+				drawBatch.addClass(d.inputs, (int) d.output, rate);
+			drawBatch.flush();
 			//Train for playing
-			for (DataInstance p: playHistory){			
-				playNet.compute(p.inputs);
-				playNet.trainBackprop(rate, (int) p.output);
-			}
+			for (DataInstance p: playHistory)
+				playBatch.addClass(p.inputs, (int) p.output, rate);
+			playBatch.flush();
 		}
 	}
 	
@@ -323,15 +366,22 @@ public class ModelAI extends Model{
 	//DEEP LEARNING
 	@Override
 	public void epoch(Player p){
-		if (TRAIN && !USE_RAND){
-			drawNet.export(drawNet_file);
-			playNet.export(playNet_file);
+		if (!TRAIN || USE_RAND)
+			return;
+		synchronized (seeder){
+			if (seeder.exporter == null)
+				seeder.exporter = this;
 		}
+		if (seeder.exporter != this)
+			return;
+		drawNet.export(drawNet_file);
+		playNet.export(playNet_file);
 			
 		//Deep learning stopping criteria
 		//Don't use the random player for stopping criteria
-		//If no improvement, add another deep learning layer
-		if (false && TRAIN && !USE_RAND && DL_layers <= DL_maxlayers && DL_stop.epoch(p)){
+		//If no improvement, add another deep learning layer; layers can't be added
+		//to networks that copies on other threads share, so not while they do
+		if (false && !drawNet.isShared() && DL_layers <= DL_maxlayers && DL_stop.epoch(p)){
 			DL_stop.reset();
 			p.resetModel();
 			deepLearn();
@@ -341,8 +391,8 @@ public class ModelAI extends Model{
 		DL_layers++;
 		//Add another layer
 		if (DL_layers < DL_maxlayers){
-			int dl = drawNet.layers.get(1).length - DL_layers*DL_drawdelta,
-				pl = playNet.layers.get(1).length - DL_layers*DL_playdelta;
+			int dl = drawNet.layerNodes(1) - DL_layers*DL_drawdelta,
+				pl = playNet.layerNodes(1) - DL_layers*DL_playdelta;
 			//if (Game.verbose)
 				System.out.println("PlayerAI: Adding DEEP LEARNING layer #"+DL_layers+" ("+dl+", "+pl+" nodes)");
 			drawNet.addHiddenLayer(dl);
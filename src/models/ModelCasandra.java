@@ -1,5 +1,7 @@
 package models;
 
+import NeuralNetworks.Inference;
+import NeuralNetworks.InferenceNetwork;
 import NeuralNetworks.Network;
 import client.PlayerComputer;
 import interfaces.Model;
@@ -14,16 +16,23 @@ import racko.Rack;
  * @author chris
  */
 public class ModelCasandra extends Model{
-	private static final Random RAND = new Random();
 	//Neural Network
 	private final Model model_mimic;
 	private final boolean USE_PROB_DRAW = false, USE_PROB_PLAY = false;
 	public Network drawNet, playNet;
+	//Networks used for deciding; reduced precision copies, if this player doesn't train
+	private Inference draw_eval, play_eval;
 	private String drawNet_file, playNet_file;
 	//Deep learning
 	private final int DL_maxlayers = 4, rack_size;
 	private int DL_drawdelta, DL_playdelta, DL_layers = 0;
 	private final StoppingCriteria DL_stop = new StoppingCriteria(.04, 100);
+	//Networks get seeded when one of the players sharing them is first registered;
+	//ones that weren't loaded from file are randomized
+	private boolean fresh_draw, fresh_play, seeded = false;
+	private ModelCasandra seeder = this;
+	//Only one of the players sharing the networks exports them: the first to reach an epoch
+	private ModelCasandra exporter;
 	
 	/**
 	 * Loads a Casandra from file or trains a new one
@@ -40,19 +49,21 @@ public class ModelCasandra extends Model{
 			throw new Exception("Invalid network configuration for Casandra");
 	}
 	/**
-	 * Copies the specified model, using a predefined network
+	 * Copies the specified model, using a predefined network; the network's weights
+	 * are shared, so copies can play (and train) on different threads at once
 	 * @param copy model to copy data from
 	 * @param mimic model to train against (null, to not train)
 	 */
 	public ModelCasandra(ModelCasandra copy, Model mimic){
 		rack_size = copy.rack_size;
-		drawNet = copy.drawNet;
-		playNet = copy.playNet;
+		drawNet = copy.drawNet.share();
+		playNet = copy.playNet.share();
 		drawNet_file = copy.drawNet_file;
 		playNet_file = copy.playNet_file;
 		DL_drawdelta = copy.DL_drawdelta;
 		DL_playdelta = copy.DL_playdelta;
 		DL_layers = copy.DL_layers;
+		seeder = copy.seeder;
 		model_mimic = mimic;
 	}
 	private boolean loadNetwork(String file, boolean forDraw){
@@ -82,10 +93,12 @@ public class ModelCasandra extends Model{
 		if (forDraw){
 			drawNet = net;
 			drawNet_file = file;
+			fresh_draw = !loaded;
 		}
 		else{
 			playNet = net;
 			playNet_file = file;
+			fresh_play = !loaded;
 		}
 		return true;
 	}
@@ -93,13 +106,36 @@ public class ModelCasandra extends Model{
 	@Override
 	public boolean register(Game g, Rack r) {
 		super.register(g, r);
-		return model_mimic.register(g, r) && g.rack_size == rack_size;
+		if (!seeder.seeded){
+			seeder.seeded = true;
+			Random draw_rand = g.split(), play_rand = g.split();
+			if (seeder.fresh_draw)
+				seeder.drawNet.randomize(draw_rand);
+			else seeder.drawNet.setRandom(draw_rand);
+			if (seeder.fresh_play)
+				seeder.playNet.randomize(play_rand);
+			else seeder.playNet.setRandom(play_rand);
+		}
+		if (draw_eval == null){
+			//Without a model to mimic, the networks aren't trained
+			draw_eval = model_mimic != null ? drawNet : InferenceNetwork.deploy(drawNet);
+			play_eval = model_mimic != null ? playNet : InferenceNetwork.deploy(playNet);
+		}
+		return (model_mimic == null || model_mimic.register(g, r)) && g.rack_size == rack_size;
+	}
+	@Override
+	public void beginRound(){
+		//The networks may be shared with a player that trains them
+		if (draw_eval instanceof InferenceNetwork){
+			((InferenceNetwork) draw_eval).update();
+			((InferenceNetwork) play_eval).update();
+		}
 	}
 	@Override
 	public boolean decideDraw(int turn){
 		DataInstance d = getHistory(game.deck.peek(true), true);
-		drawNet.compute(d.inputs);
-		boolean actual = drawNet.getOutput() > .5;
+		draw_eval.compute(d.inputs);
+		boolean actual = draw_eval.getOutput() > .5;
 		//Train
 		if (model_mimic != null){
 			boolean target = model_mimic.decideDraw(turn);
@@ -110,8 +146,8 @@ public class ModelCasandra extends Model{
 	@Override
 	public int decidePlay(int turn, int drawn, boolean fromDiscard) {
 		DataInstance d = getHistory(drawn, false);
-		playNet.compute(d.inputs);
-		int actual = playNet.getOutput()-1;
+		play_eval.compute(d.inputs);
+		int actual = play_eval.getOutput()-1;
 		//Train
 		if (model_mimic != null){
 			int target = model_mimic.decidePlay(turn, drawn, fromDiscard);
@@ -160,16 +196,23 @@ public class ModelCasandra extends Model{
 	//DEEP LEARNING
 	@Override
 	public void epoch(Player p) {
+		if (model_mimic == null)
+			return;
+		synchronized (seeder){
+			if (seeder.exporter == null)
+				seeder.exporter = this;
+		}
 		//Save the network
-		if (model_mimic != null){
+		if (seeder.exporter == this){
 			if (drawNet_file != null)
 				drawNet.export(drawNet_file);
 			if (playNet_file != null)
 				playNet.export(playNet_file);
 
 			//Deep learning stopping criteria
-			//If no improvement, add another deep learning layer
-			if (DL_layers <= DL_maxlayers && DL_stop.epoch(p)){
+			//If no improvement, add another deep learning layer; layers can't be added
+			//to networks that copies on other threads share, so not while they do
+			if (!drawNet.isShared() && DL_layers <= DL_maxlayers && DL_stop.epoch(p)){
 				DL_stop.reset();
 				p.resetModel();
 				deepLearn();
@@ -180,8 +223,8 @@ public class ModelCasandra extends Model{
 		DL_layers++;
 		//Add another layer
 		if (DL_layers < DL_maxlayers){
-			int dl = drawNet.layers.get(1).length - DL_layers*DL_drawdelta,
-				pl = playNet.layers.get(1).length - DL_layers*DL_playdelta;
+			int dl = drawNet.layerNodes(1) - DL_layers*DL_drawdelta,
+				pl = playNet.layerNodes(1) - DL_layers*DL_playdelta;
 			//if (Game.verbose)
 				System.out.println("Casandra: Adding DEEP LEARNING layer #"+DL_layers+" ("+dl+", "+pl+" nodes)");
 			drawNet.addHiddenLayer(dl);
@@ -1,10 +1,14 @@
 package models;
 
+import NeuralNetworks.Inference;
+import NeuralNetworks.InferenceNetwork;
 import NeuralNetworks.Network;
+import NeuralNetworks.TrainingBatch;
 import interfaces.Model;
 import interfaces.Player;
 import java.io.File;
 import java.util.ArrayList;
+import racko.DeckMetric;
 import racko.Game;
 import racko.Rack;
 
@@ -14,7 +18,14 @@ import racko.Rack;
  */
 public class ModelDiablo extends Model {
 	private static final boolean USE_COMBOS = false;
+	//Prune sequences that can't be filled in with the cards left to draw (see racko.DeckMetric);
+	//this changes the features, so networks trained without it (like the ones that ship)
+	//would score racks differently than they were trained to
+	public static boolean USE_METRIC = false;
 	private static final int FEATURES = 17;
+	//Larger racks have too many sequences to score them all, so only the best few are
+	//scored; this bounds the work for each rack (see Rack.getBestLUS)
+	private static final int BOUNDED_RACK = 10, BOUNDED_SEQS = 8, BOUNDED_BUDGET = 4096;
 	//Maximum points that can be won in a game
 	private double max_points;
 	//Last max-score, computed in scoreCard()
@@ -22,11 +33,38 @@ public class ModelDiablo extends Model {
 	private int cache_pos, cache_turn = -1;
 	//Neural network
 	private static final double LEARN_RATE = 0.1;
+	//Instances trained at once (see NeuralNetworks.TrainingBatch)
+	private static final int TRAIN_BATCH = 16;
 	private final String score_file;
 	private boolean TRAIN_score = true;
 	private final ArrayList<DataInstance> train_data = new ArrayList();
+	//Instances that aren't in use, so scoring racks doesn't allocate
+	private final ArrayList<DataInstance> data_pool = new ArrayList<>();
+	private TrainingBatch train_batch;
 	private double discard_threshold, learn_rate_decay;
 	public Network score_net;
+	//Network used for scoring; a reduced precision copy, if this player doesn't train
+	private Inference score_eval;
+	//Networks get seeded when one of the players sharing it is first registered;
+	//new ones are randomized, and loaded ones get a generator for added layers
+	private boolean fresh_net = false, seeded = false;
+	private ModelDiablo seeder = this;
+	//Only one of the players sharing the network exports it: the first to reach an epoch
+	private ModelDiablo exporter;
+	//Scoring state while visiting a rack's sequences (see collectRack); the features
+	//for every sequence are collected, then run through the network in one batch
+	private final ArrayList<DataInstance> seq_batch = new ArrayList<>();
+	private double[] batch_inputs = new double[0], batch_outputs = new double[0];
+	//Slot for each move tested in findBestMove, and where its sequences end in seq_batch
+	private int[] move_slots, move_ends;
+	private int seq_turns;
+	private double seq_rack_de, seq_rack_de_skew;
+	private final Rack.LUSVisitor seq_scorer = new Rack.LUSVisitor(){
+		@Override
+		public void visit(long slots){
+			scoreSequence(rack.toLUS(slots));
+		}
+	};
 	
 	/**
 	 * Create new Diablo AI, loading score_network weights from file
@@ -54,30 +92,57 @@ public class ModelDiablo extends Model {
 		//net.freeze(0);
 	}
 	/**
-	 * Create a new Diablo AI, using a predefined score_network
+	 * Create a new Diablo AI, using a predefined score_network; the network's weights
+	 * are shared, so copies can play (and train) on different threads at once
 	 * @param diablo the score_network to use
 	 * @param train_score should we train the score network?
 	 * @param train_draw should we train the draw network
 	 */
 	public ModelDiablo(ModelDiablo diablo, boolean train_score, boolean train_draw){
 		score_file = diablo.score_file;
-		score_net = diablo.score_net;
+		score_net = diablo.score_net.share();
 		TRAIN_score = train_score;
+		seeder = diablo.seeder;
 	}
 	private void newNetwork(){
 		System.out.println("Diablo: Creating a new network...");
 		score_net = new Network(new int[]{FEATURES, FEATURES*2, 1});
+		fresh_net = true;
 	}
 
 	@Override
 	public boolean register(Game g, Rack r){
 		super.register(g, r);
+		if (!seeder.seeded){
+			seeder.seeded = true;
+			if (seeder.fresh_net)
+				seeder.score_net.randomize(g.split());
+			else seeder.score_net.setRandom(g.split());
+		}
+		if (score_eval == null)
+			score_eval = TRAIN_score ? score_net : InferenceNetwork.deploy(score_net);
+		r.setLUSMetric(USE_METRIC ? new DeckMetric(g, r) : null);
+		move_slots = new int[g.rack_size];
+		move_ends = new int[g.rack_size];
 		max_points = g.maxPoints();
 		discard_threshold = 1/(double) (game.rack_size*2.8169);
 		learn_rate_decay = LEARN_RATE / (double) (game.rack_size*4);
 		//Diablo works for any game configuration
 		return true;
 	}
+	/**
+	 * Scores racks with a different network, e.g. a reduced precision copy of score_net
+	 * @param scorer the network to use; null to pick one when registered
+	 */
+	public void setScorer(Inference scorer){
+		score_eval = scorer;
+	}
+	@Override
+	public void beginRound(){
+		//The network may be shared with a player that trains it
+		if (score_eval instanceof InferenceNetwork)
+			((InferenceNetwork) score_eval).update();
+	}
 	@Override
 	public void scoreRound(boolean won, int score) {
 		if (TRAIN_score && old_score != null){
@@ -86,31 +151,45 @@ public class ModelDiablo extends Model {
 			//old_score.output = won ? 1 : 0;
 			train_data.add(old_score);
 
-			//Train the network
+			//Train the network, in mini-batches
+			if (train_batch == null)
+				train_batch = new TrainingBatch(score_net, TRAIN_BATCH);
 			//Give higher learning rate to more recent data
 			double rate = LEARN_RATE - train_data.size()*learn_rate_decay;
 			//double rate = .01;
-			double[] target = new double[1];
-			for (DataInstance d: train_data){
+			for (int i=0, l=train_data.size(); i<l; i++){
+				DataInstance d = train_data.get(i);
 				//Wait until learning rate breaks above zero
 				rate += learn_rate_decay;
 				if (rate <= 0) continue;
 				//Train this data
-				target[0] = d.output;
-				score_net.compute(d.inputs);
-				score_net.trainBackprop(rate, target);
+				train_batch.add(d.inputs, d.output, rate);
+			}
+			train_batch.flush();
+			//The last score is used again next round
+			for (int i=0, l=train_data.size(); i<l; i++){
+				DataInstance d = train_data.get(i);
+				if (d != old_score)
+					release(d);
 			}
 			train_data.clear();
 		}
 	}
 	@Override
 	public void epoch(Player p) {
-		if (TRAIN_score && score_file != null)
+		if (!TRAIN_score || score_file == null)
+			return;
+		synchronized (seeder){
+			if (seeder.exporter == null)
+				seeder.exporter = this;
+		}
+		if (seeder.exporter == this)
 			score_net.export(score_file);
 	}
 	@Override
 	public boolean decideDraw(int turn) {
 		//Get a base score for this rack
+		release(base_score);
 		base_score = scoreRack(turn);
 		cache_turn = turn;
 		
@@ -150,24 +229,36 @@ public class ModelDiablo extends Model {
 	 *  actual scores are saved to "last_score" variable
 	 */
 	private int findBestMove(int turns, int card){
-		int max_pos = 0, discard;
+		int max_pos = 0, discard, moves = 0;
+		//The last score is still needed if it is being trained
+		if (last_score != old_score)
+			release(last_score);
 		last_score = null;
-		//Test every possible move
+		//Collect the sequences for every possible move
 		for (int i=0; i<game.rack_size; i++){
 			//See if the card is usable in this position
 			if (game.card_count-card < game.rack_size-i-1 || card-1 < i)
 				continue;
 			//Swap card with this position
 			discard = rack.swap(card, i);
-			//Score the rack
-			DataInstance d = scoreRack(turns);
-			if (last_score == null || d.output > last_score.output){
-				last_score = d;
-				max_pos = i;
-			}
+			collectRack(turns);
+			move_slots[moves] = i;
+			move_ends[moves++] = seq_batch.size();
 			//Undo the swap
 			rack.swap(discard, i);
 		}
+		//Score them all at once, and keep the best
+		scoreBatch();
+		int best = -1;
+		for (int m=0, s=0; m<moves; m++){
+			for (; s<move_ends[m]; s++){
+				if (best == -1 || seq_batch.get(s).output > seq_batch.get(best).output){
+					best = s;
+					max_pos = move_slots[m];
+				}
+			}
+		}
+		last_score = keepBatch(best);
 		return max_pos;
 	}
 	/**
@@ -176,71 +267,142 @@ public class ModelDiablo extends Model {
 	 * @return features used, and the max score given from them
 	 */
 	private DataInstance scoreRack(int turns){
-		DataInstance max_score = null;
-		double rack_size = game.rack_size;
+		collectRack(turns);
+		scoreBatch();
+		int best = -1;
+		for (int s=0, l=seq_batch.size(); s<l; s++){
+			if (best == -1 || seq_batch.get(s).output > seq_batch.get(best).output)
+				best = s;
+		}
+		return keepBatch(best);
+	}
+	/**
+	 * Adds features for each of the rack's usable sequences to seq_batch
+	 * @param turns turns made this round (by this player)
+	 */
+	private void collectRack(int turns){
+		seq_turns = turns;
+		seq_rack_de = rack.scoreRackDE(game.dist_flat, null);
+		seq_rack_de_skew = rack.scoreRackDE(game.dist_flat, game.dist_skew);
 		
-		//Loop through every long usable sequence for this rack
-		double rack_de = rack.scoreRackDE(game.dist_flat, null),
-				rack_de_skew = rack.scoreRackDE(game.dist_flat, game.dist_skew);
-		for (Rack.LUS lus: rack.getLUS(USE_COMBOS)){
-			/* Other features to consider:
-				- scoreDensityAdjacent weighted by probabilities or distribution-error
-				- scoreClumpDE weighted by probabilities or density
-				- scoreProbability weighted by distribution-error
-				- bonusMode: may optimize for denser clumps to get bonus points
-				- min_streak/rack_size: optimize for dense clumps to actually win the game
+		//Loop through every long usable sequence for this rack; they're streamed
+		//as slot bitmasks, unless the rack is too large to score them all
+		if (game.rack_size <= BOUNDED_RACK)
+			rack.visitLUS(USE_COMBOS, seq_scorer);
+		else{
+			ArrayList<Rack.LUS> seqs = rack.getBestLUS(USE_COMBOS, BOUNDED_SEQS, BOUNDED_BUDGET, Rack.RANK_CLUMP_DE);
+			for (int s=0, l=seqs.size(); s<l; s++)
+				scoreSequence(seqs.get(s));
+		}
+	}
+	/**
+	 * Runs every instance in seq_batch through the network, setting their outputs
+	 */
+	private void scoreBatch(){
+		int rows = seq_batch.size();
+		if (batch_outputs.length < rows){
+			int capacity = Math.max(rows, batch_outputs.length*2);
+			batch_inputs = new double[capacity*FEATURES];
+			batch_outputs = new double[capacity];
+		}
+		for (int s=0; s<rows; s++)
+			System.arraycopy(seq_batch.get(s).inputs, 0, batch_inputs, s*FEATURES, FEATURES);
+		score_eval.computeBatch(batch_inputs, rows, batch_outputs);
+		for (int s=0; s<rows; s++)
+			seq_batch.get(s).output = batch_outputs[s];
+	}
+	/**
+	 * Empties seq_batch, releasing every instance but one
+	 * @param keep index of the instance to keep; -1 to release them all
+	 * @return the kept instance, or null
+	 */
+	private DataInstance keepBatch(int keep){
+		DataInstance kept = null;
+		for (int s=0, l=seq_batch.size(); s<l; s++){
+			if (s == keep)
+				kept = seq_batch.get(s);
+			else release(seq_batch.get(s));
+		}
+		seq_batch.clear();
+		return kept;
+	}
+	/**
+	 * Gets the features for one of the rack's usable sequences, adding them to seq_batch
+	 * @param lus the sequence
+	 */
+	private void scoreSequence(Rack.LUS lus){
+		double rack_size = game.rack_size;
+		/* Other features to consider:
+			- scoreDensityAdjacent weighted by probabilities or distribution-error
+			- scoreClumpDE weighted by probabilities or density
+			- scoreProbability weighted by distribution-error
+			- bonusMode: may optimize for denser clumps to get bonus points
+			- min_streak/rack_size: optimize for dense clumps to actually win the game
 
-				Tree traversal techniques:
-				- just take output of getLSU()
-				- use probabilities/density/clumpDE as a UsableMetric for getLSU()
-				- use probabilties/... to generate new sequences from getLSU() output
-			
-				TODO:
-				- use other player's visible cards in rack to see if discarding would lose the game
-				- train with deep learning enabled
-				- fix probability calculator
-				- train with bonus_mode & min_streak features
-			*/
-			DataInstance d = new DataInstance(FEATURES);
-			//if closer to one, the game is close to ending; may want to get more points before game ends
-			d.addFeature(turns > rack_size*2 ? rack_size*2 : turns, rack_size);
-			//maximize points scored (possibly, when turn_ratio is high and sequence length is low)
-			d.addFeature(rack.scorePoints(game.bonus_mode), max_points);
-			//maximize usable sequence length
-			d.addFeature(lus.cards.length, rack_size);
-			//get a rack with flat, spread out distribution
-			d.addFeature(rack_de, 1);
-			//same as previous, except ignoring unusable cards
-			d.addFeature(rack.scoreClumpDE(lus, game.dist_flat, null), 1);
-			//maximize probability of getting a larger sequence
-			d.addFeature(rack.scoreProbability(lus, null, false, true, 0), 1);
-			//same as previous, except does not penalize as much for low probabilities
-			d.addFeature(rack.scoreProbability(lus, null, true, true, 0), 1);
-			//minimize density error of adjacent cards of clumps in a sequence
-			d.addFeature(rack.scoreDensityAdjacent(lus, null, 0), 1);
-			//same as previous, except penalizes for clumps of only length 1
-			d.addFeature(rack.scoreDensityAdjacent(lus, null, 1), 1);
-			//minimize density error of cards to clump centroids
-			d.addFeature(rack.scoreDensityCenter(lus, null), 1);
+			Tree traversal techniques:
+			- just take output of getLSU()
+			- use probabilities/density/clumpDE as a UsableMetric for getLSU()
+			- use probabilties/... to generate new sequences from getLSU() output
+		
+			TODO:
+			- use other player's visible cards in rack to see if discarding would lose the game
+			- train with deep learning enabled
+			- fix probability calculator
+			- train with bonus_mode & min_streak features
+		*/
+		DataInstance d = newInstance();
+		//if closer to one, the game is close to ending; may want to get more points before game ends
+		d.addFeature(seq_turns > rack_size*2 ? rack_size*2 : seq_turns, rack_size);
+		//maximize points scored (possibly, when turn_ratio is high and sequence length is low)
+		d.addFeature(rack.scorePoints(game.bonus_mode), max_points);
+		//maximize usable sequence length
+		d.addFeature(lus.cards.length, rack_size);
+		//get a rack with flat, spread out distribution
+		d.addFeature(seq_rack_de, 1);
+		//same as previous, except ignoring unusable cards
+		d.addFeature(rack.scoreClumpDE(lus, game.dist_flat, null), 1);
+		//maximize probability of getting a larger sequence
+		d.addFeature(rack.scoreProbability(lus, null, false, true, 0), 1);
+		//same as previous, except does not penalize as much for low probabilities
+		d.addFeature(rack.scoreProbability(lus, null, true, true, 0), 1);
+		//minimize density error of adjacent cards of clumps in a sequence
+		d.addFeature(rack.scoreDensityAdjacent(lus, null, 0), 1);
+		//same as previous, except penalizes for clumps of only length 1
+		d.addFeature(rack.scoreDensityAdjacent(lus, null, 1), 1);
+		//minimize density error of cards to clump centroids
+		d.addFeature(rack.scoreDensityCenter(lus, null), 1);
 
-			//SKEWED FEATURES
-			//All the same as before, except optimizes for a higher score if the player doesn't win
-			d.addFeature(rack_de_skew, 1);
-			d.addFeature(rack.scoreClumpDE(lus, game.dist_flat, game.dist_skew), 1);
-			d.addFeature(rack.scoreProbability(lus, game.dist_skew, false, true, 0), 1);
-			d.addFeature(rack.scoreProbability(lus, game.dist_skew, true, true, 0), 1);
-			d.addFeature(rack.scoreDensityAdjacent(lus, game.dist_skew, 0), 1);
-			d.addFeature(rack.scoreDensityAdjacent(lus, game.dist_skew, 1), 1);
-			d.addFeature(rack.scoreDensityCenter(lus, game.dist_skew), 1);
+		//SKEWED FEATURES
+		//All the same as before, except optimizes for a higher score if the player doesn't win
+		d.addFeature(seq_rack_de_skew, 1);
+		d.addFeature(rack.scoreClumpDE(lus, game.dist_flat, game.dist_skew), 1);
+		d.addFeature(rack.scoreProbability(lus, game.dist_skew, false, true, 0), 1);
+		d.addFeature(rack.scoreProbability(lus, game.dist_skew, true, true, 0), 1);
+		d.addFeature(rack.scoreDensityAdjacent(lus, game.dist_skew, 0), 1);
+		d.addFeature(rack.scoreDensityAdjacent(lus, game.dist_skew, 1), 1);
+		d.addFeature(rack.scoreDensityCenter(lus, game.dist_skew), 1);
 
-			//Run it through the neural network
-			score_net.compute(d.inputs);
-			d.output = score_net.getOutput(0);
-			if (max_score == null || d.output > max_score.output)
-				max_score = d;
-		}
-		
-		return max_score;
+		//Scored by the neural network later, along with the rest of the batch
+		seq_batch.add(d);
+	}
+	/**
+	 * Get an empty instance, reusing a released one if possible
+	 * @return the instance
+	 */
+	private DataInstance newInstance(){
+		if (data_pool.isEmpty())
+			return new DataInstance(FEATURES);
+		DataInstance d = data_pool.remove(data_pool.size()-1);
+		d.reset();
+		return d;
+	}
+	/**
+	 * Return an instance that is no longer used, so it can be reused
+	 * @param d the instance; ignored if null
+	 */
+	private void release(DataInstance d){
+		if (d != null)
+			data_pool.add(d);
 	}
 
 	@Override
@@ -1,6 +1,8 @@
 package models;
 
 import interfaces.Model;
+import racko.BatchGame;
+import racko.Game;
 import racko.Rack;
 
 /**
@@ -10,49 +12,113 @@ import racko.Rack;
 public class ModelMax extends Model{
 	//Cached maxes
 	private int cache_pos, cache_turn;
+	//LUS length for each swap (see maxSequence)
+	private int[] lengths;
 	
 	public ModelMax(){}
 	
+	@Override
+	public boolean register(Game g, Rack r){
+		super.register(g, r);
+		lengths = new int[r.getCards().length];
+		return true;
+	}
 	@Override
 	public boolean decideDraw(int turn) {
 		cache_turn = turn;
 		//Check if taking from the discard pile will improve our score
 		int peek = game.deck.peek(true);
-		cache_pos = maxSequence(rack, game.rack_size, peek, true);
+		cache_pos = maxSequence(rack, peek, true, lengths);
 		return cache_pos != -1;
 	}
 	@Override
 	public int decidePlay(int turn, int drawn, boolean fromDiscard) {		
 		//Compute the best position for the newly drawn card (if not cached)
 		if (!fromDiscard || cache_turn != turn)
-			cache_pos = maxSequence(rack, game.rack_size, drawn, false);
+			cache_pos = maxSequence(rack, drawn, false, lengths);
 		return cache_pos;
 	}
 	
 	/**
 	 * Maximization algorithm for scoreSequence, for a given rack/game
 	 * @param r the player's rack
-	 * @param rack_size the size of the rack
 	 * @param drawn the card that was drawn
 	 * @param forceBetter discard, if it doesn't improve score
+	 * @param lengths scratch space, one for each slot in the rack
 	 * @return the position to swap with or -1, if the card should be discarded
 	 */
-	public static int maxSequence(Rack r, int rack_size, int drawn, boolean forceBetter){
-		//Replace the drawn card with each value in rack
+	public static int maxSequence(Rack r, int drawn, boolean forceBetter, int[] lengths){
+		//Score the drawn card in every slot at once
 		int prev_score = r.getLUSLength();
 		int max_pos = 0, max_score = 0;
-		for (int i=0; i<rack_size; i++){
-			int swapped = r.swap(drawn, i);
-			int temp_score = r.getLUSLength();
-			if (temp_score > max_score){
-				max_score = temp_score;
+		r.evaluateSwaps(drawn, lengths, null, null, false);
+		for (int i=0; i<lengths.length; i++){
+			if (lengths[i] > max_score){
+				max_score = lengths[i];
 				max_pos = i;
 			}
-			r.swap(swapped, i);
 		}
 		return max_score > prev_score || (!forceBetter && max_score == prev_score) ? max_pos : -1;
 	}
 
+	/**
+	 * Creates a policy that plays the same as this model, for racko.BatchGame;
+	 * it scores swaps straight from the batch's arrays (see BatchGame.evaluateSwaps)
+	 * @return the policy
+	 */
+	public static BatchGame.Policy batchPolicy(){
+		return new BatchGame.Policy(){
+			//Cards to evaluate, and the results, for each of the games (see BatchGame.evaluateSwaps)
+			private int[] cards = new int[0], lengths = new int[0], prev_scores = new int[0];
+			//Position picked by decideDraw in each game, for when the discard is taken
+			private int[] draw_pos = new int[0];
+			
+			@Override
+			public void decideDraw(BatchGame b, int[] games, int count, int player, boolean[] fromDiscard){
+				if (draw_pos.length != b.games){
+					cards = new int[b.games];
+					lengths = new int[b.games*b.rack_size];
+					prev_scores = new int[b.games];
+					draw_pos = new int[b.games];
+				}
+				for (int i=0; i<count; i++)
+					cards[i] = b.peek(games[i], true);
+				b.evaluateSwaps(games, count, player, cards, lengths, prev_scores);
+				for (int i=0; i<count; i++){
+					int g = games[i];
+					draw_pos[g] = maxSequence(b, i, count, true);
+					fromDiscard[g] = draw_pos[g] != -1;
+				}
+			}
+			@Override
+			public void decidePlay(BatchGame b, int[] games, int count, int player, int[] drawn, boolean[] fromDiscard, int[] pos){
+				//Every game is evaluated, even those where the discard was taken,
+				//since the racks were already loaded for these games by decideDraw
+				for (int i=0; i<count; i++)
+					cards[i] = drawn[games[i]];
+				b.evaluateSwaps(games, count, player, cards, lengths, prev_scores);
+				for (int i=0; i<count; i++){
+					int g = games[i];
+					pos[g] = fromDiscard[g] ? draw_pos[g] : maxSequence(b, i, count, false);
+				}
+			}
+			/**
+			 * Same as ModelMax.maxSequence, for the i'th game given to evaluateSwaps
+			 */
+			private int maxSequence(BatchGame b, int i, int count, boolean forceBetter){
+				int max_pos = 0, max_score = 0;
+				for (int slot=0; slot<b.rack_size; slot++){
+					int score = lengths[slot*count+i];
+					if (score > max_score){
+						max_score = score;
+						max_pos = slot;
+					}
+				}
+				return max_score > prev_scores[i] || (!forceBetter && max_score == prev_scores[i]) ? max_pos : -1;
+			}
+		};
+	}
+
 	@Override
 	public String toString() {
 		return "Max";
@@ -2,6 +2,7 @@ package models;
 
 import interfaces.Model;
 import java.util.Random;
+import racko.BatchGame;
 import racko.Game;
 import racko.Rack;
 
@@ -9,12 +10,13 @@ import racko.Rack;
  * Plays random moves
  */
 public class ModelRandom extends Model{
-	private static final Random RAND = new Random();
+	private Random RAND;
 	private int rack_size;
 	
 	@Override
 	public boolean register(Game g, Rack r){
 		super.register(g, r);
+		RAND = g.split();
 		rack_size = g.rack_size;
 		return true;
 	}
@@ -27,6 +29,26 @@ public class ModelRandom extends Model{
 		return RAND.nextInt(rack_size+1)-1;
 	}
 
+	/**
+	 * Creates a policy that plays random moves, for racko.BatchGame
+	 * @param rand random number generator for the policy
+	 * @return the policy
+	 */
+	public static BatchGame.Policy batchPolicy(final Random rand){
+		return new BatchGame.Policy(){
+			@Override
+			public void decideDraw(BatchGame b, int[] games, int count, int player, boolean[] fromDiscard){
+				for (int i=0; i<count; i++)
+					fromDiscard[games[i]] = rand.nextBoolean();
+			}
+			@Override
+			public void decidePlay(BatchGame b, int[] games, int count, int player, int[] drawn, boolean[] fromDiscard, int[] pos){
+				for (int i=0; i<count; i++)
+					pos[games[i]] = rand.nextInt(b.rack_size+1)-1;
+			}
+		};
+	}
+
 	@Override
 	public String toString() {
 		return "Random";
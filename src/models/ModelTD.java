@@ -2,7 +2,6 @@ package models;
 
 import NeuralNetworks.Network;
 import interfaces.Player;
-import java.util.Arrays;
 import java.util.Random;
 import racko.Game;
 import racko.Rack;
@@ -14,35 +13,59 @@ import racko.Rack;
  */
 public class ModelTD extends Player{
 	private static final boolean USE_PROB = false;
-	private static final Random RAND = new Random();
-	//TD network
+	private Random RAND;
+	//TD network; shared by every TD player in a game (see TDNetwork)
 	private static final double LEARN_RATE = .15;
-	private static int[] net_layers;
-	private static Network net = null;
-	private static int rack_size;
+	private TDNetwork shared = null;
+	private Network net = null;
+	private int rack_size;
 	//Deep learning
-	private static final StoppingCriteria DL_stop = new StoppingCriteria();
 	private static final int DL_maxlayers = 10;
-	private static int DL_delta, DL_layers = 0;
 	//Stored score values
 	private boolean biased_play = false;
 	private DataInstance data_prev = null, data_cur;
+	//Reusable buffers, so a turn doesn't allocate; data_cur alternates between
+	//the two instances, since data_prev still holds the last turn's inputs
+	private DataInstance[] data_buffers;
+	private double[] move_inputs, move_scores, prob_high, prob_low;
+	private int[] lengths;
+	private final double[] target = new double[1];
 	private double score_prev, score_cur;
 	private int net_play_count, games_played;
 
 	@Override
 	public boolean register(Game g, Rack r) {
 		super.register(g, r);
+		RAND = g.split();
 		
-		//TODO: fix this here!!!
+		//TD players in the same game train the same network, e.g. for self-play
+		TDNetwork peer = null;
+		for (int i=0; i<g.player_count && g.getPlayer(i) != this; i++){
+			Player p = g.getPlayer(i);
+			if (p instanceof ModelTD && ((ModelTD) p).rack_size == g.rack_size)
+				peer = ((ModelTD) p).shared;
+		}
+		if (peer != null){
+			shared = peer;
+			net = peer.net;
+		}
 		//Change game configuration
 		if (net == null || rack_size != g.rack_size){
 			rack_size = g.rack_size;
 			int inputs = USE_PROB ? rack_size : rack_size*3,
 				hidden = USE_PROB ? rack_size*2 : rack_size*4;
-			net_layers = new int[]{inputs, hidden, 1};
-			DL_delta = (net_layers[1]-net_layers[2])/DL_maxlayers;
-			net = new Network(net_layers);
+			if (peer == null){
+				shared = new TDNetwork(new int[]{inputs, hidden, 1}, g.split());
+				net = shared.net;
+			}
+			data_buffers = new DataInstance[]{
+				new DataInstance(inputs), new DataInstance(inputs)
+			};
+			move_inputs = new double[rack_size*inputs];
+			move_scores = new double[rack_size];
+			prob_high = new double[rack_size];
+			prob_low = new double[rack_size];
+			lengths = new int[rack_size];
 		}
 		
 		return true;
@@ -65,7 +88,8 @@ public class ModelTD extends Player{
 		int drawn = game.deck.draw(fromDiscard);
 		
 		//Get current scores
-		data_cur = getInputs();
+		data_cur = data_prev == data_buffers[0] ? data_buffers[1] : data_buffers[0];
+		getInputs(data_cur);
 		net.compute(data_cur.inputs);
 		score_cur = net.getOutput(0);
 				
@@ -73,7 +97,8 @@ public class ModelTD extends Player{
 		if (data_prev != null){
 			double output = biased_play ? rack.getLUSLength() / (double) game.rack_size : score_cur;
 			net.compute(data_prev.inputs);
-			net.trainBackprop(LEARN_RATE, new double[]{output});
+			target[0] = output;
+			net.trainBackprop(LEARN_RATE, target);
 		}
 		data_prev = data_cur;
 		score_prev = score_cur;
@@ -91,40 +116,33 @@ public class ModelTD extends Player{
 		if (games_played < 100000 && (net_play_count == 20 || games_played % 10 == 0)){
 			STAT_badmoves++;
 			biased_play = true;
-			int swap = ModelMax.maxSequence(rack, game.rack_size, drawn, false);
+			int swap = ModelMax.maxSequence(rack, drawn, false, lengths);
 			return swap == -1 ? drawn : rack.swap(drawn, swap, fromDiscard);
 		}
 		//*/
 		
 		//Find the move that maximizes predicted score
-		int max_slot = 0;
+		int max_slot = 0, features = data_cur.inputs.length;
 		double max_score = 0,
 				probHi = game.deck.getRealProbability(drawn, true),
 				probLo = game.deck.getRealProbability(drawn, false);
-		double[] inputs = Arrays.copyOf(data_cur.inputs, data_cur.inputs.length);
-		//Replace the drawn card with each value in the rack
+		//Replace the drawn card with each value in the rack; one row of inputs for each move
 		for (int i=0; i<game.rack_size; i++){
-			int i1 = game.rack_size + i,
-				i2 = game.rack_size*2 + i;
-			//Swap the card and replace input features
-			int swapped = rack.swap(drawn, i);
+			int row = i*features;
+			System.arraycopy(data_cur.inputs, 0, move_inputs, row, features);
+			move_inputs[row+i] = drawn / (double) game.card_count;
 			if (USE_PROB){
-				inputs[i1] = probHi;
-				inputs[i2] = probLo;
+				move_inputs[row+game.rack_size+i] = probHi;
+				move_inputs[row+game.rack_size*2+i] = probLo;
 			}
-			//Score of this move
-			net.compute(inputs);
-			double temp_score = net.getOutput(0);
-			if (temp_score > max_score){
-				max_score = temp_score;
+		}
+		//Score every move at once
+		net.computeBatch(move_inputs, game.rack_size, move_scores);
+		for (int i=0; i<game.rack_size; i++){
+			if (move_scores[i] > max_score){
+				max_score = move_scores[i];
 				max_slot = i;
 			}
-			//Undo the swap
-			rack.swap(swapped, i);
-			if (USE_PROB){
-				inputs[i1] = data_cur.inputs[i1];
-				inputs[i2] = data_cur.inputs[i2];
-			}
 		}
 		
 		//Make the actual move
@@ -139,33 +157,30 @@ public class ModelTD extends Player{
 		games_played++;
 		
 		//Train based on win/loss
-		double[] output = new double[]{won ? 1 : 0};
+		target[0] = won ? 1 : 0;
 		/*
 		net.compute(data_prev.inputs);
-		net.trainBackprop(LEARN_RATE, output);
+		net.trainBackprop(LEARN_RATE, target);
 		*/
 		
 		net.compute(data_cur.inputs);
-		net.trainBackprop(LEARN_RATE, output);
+		net.trainBackprop(LEARN_RATE, target);
 	}
 	
-	private DataInstance getInputs(){
-		DataInstance data = new DataInstance(net_layers[0]);
+	private void getInputs(DataInstance data){
+		data.reset();
 		//Rack
 		int[] cur_rack = rack.getCards();
 		data.addFeature(cur_rack, game.card_count);
 		//Probabilities
 		if (USE_PROB){
-			double[] pHigh = new double[game.rack_size],
-					pLow = new double[game.rack_size];
 			for (int i=0; i < game.rack_size; i++){
-				pHigh[i] = game.deck.getProbability(cur_rack[i], true, rack, 0);
-				pLow[i] = game.deck.getProbability(cur_rack[i], false, rack, 0);
+				prob_high[i] = game.deck.getProbability(cur_rack[i], true, rack, 0);
+				prob_low[i] = game.deck.getProbability(cur_rack[i], false, rack, 0);
 			}
-			data.addFeature(pHigh, 1);
-			data.addFeature(pLow, 1);
-		}		
-		return data;
+			data.addFeature(prob_high, 1);
+			data.addFeature(prob_low, 1);
+		}
 	}
 	
 	//DEEP LEARNING
@@ -175,27 +190,45 @@ public class ModelTD extends Player{
 		
 		//Deep learning stopping criteria
 		//If no improvement, add another deep learning layer
-		if (DL_layers <= DL_maxlayers && DL_stop.epoch(this)){
-			DL_stop.reset();
+		if (shared.layers <= DL_maxlayers && shared.stop.epoch(this)){
+			shared.stop.reset();
 			resetModel();
-			deepLearn();
+			shared.deepLearn();
 		}
 	}
-	private static void deepLearn(){
-		DL_layers++;
-		//Add another layer
-		if (DL_layers < DL_maxlayers){
-			int dl = net_layers[1] - DL_layers*DL_delta;
-			//if (Game.verbose)
-				System.out.println("PlayerTD: Adding DEEP LEARNING layer #"+DL_layers+" ("+dl+" nodes)");
-			net.addHiddenLayer(dl);
-			net.freeze(DL_layers);
+	/**
+	 * The TD network and its deep learning state; every TD player in a game shares
+	 * one, as they all trained the same network before games ran in parallel.
+	 * Each Tournament worker has its own game, so each trains its own network
+	 */
+	private static final class TDNetwork{
+		private final int[] net_layers;
+		private final Network net;
+		private final StoppingCriteria stop = new StoppingCriteria();
+		private final int delta;
+		private int layers = 0;
+		
+		private TDNetwork(int[] net_layers, Random rand){
+			this.net_layers = net_layers;
+			net = new Network(net_layers, rand);
+			delta = (net_layers[1]-net_layers[2])/DL_maxlayers;
 		}
-		//Unfreeze all layers (refinement stage)
-		else{
-			net.freeze(0);
-			//if (Game.verbose)
-				System.out.println("PlayerTD: Beginning DEEP LEARNING refinement stage");
+		private void deepLearn(){
+			layers++;
+			//Add another layer
+			if (layers < DL_maxlayers){
+				int dl = net_layers[1] - layers*delta;
+				//if (Game.verbose)
+					System.out.println("PlayerTD: Adding DEEP LEARNING layer #"+layers+" ("+dl+" nodes)");
+				net.addHiddenLayer(dl);
+				net.freeze(layers);
+			}
+			//Unfreeze all layers (refinement stage)
+			else{
+				net.freeze(0);
+				//if (Game.verbose)
+					System.out.println("PlayerTD: Beginning DEEP LEARNING refinement stage");
+			}
 		}
 	}
 
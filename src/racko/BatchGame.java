@@ -0,0 +1,733 @@
+package racko;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Simulates a large batch of Racko games at the same time, for bulk
+ * evaluation of cheap policies (see ModelMax.batchPolicy, ModelRandom.batchPolicy)
+ * Rather than a Game/Deck/Rack object graph for each game, every game is
+ * stored in flat primitive arrays, indexed by game number:
+ *	racks: byte[games*players*rack_size], the cards in each rack, unsigned
+ *	piles: byte[games*rack_size*2], the draw pile grows up from the start of
+ *		a game's block, the discard pile grows down from the end; they always
+ *		hold rack_size*2 cards between them, so they never overlap
+ *	exposed: long[games*players], bitmask of slots visible to other players
+ *	descents: byte[games*players], adjacent pairs that are out of order in
+ *		each rack, kept up to date on every swap, so checking for a win is O(1)
+ * This comes to tens of bytes per game, plus (5*rack_size+4)*4 bytes per game
+ * once the batch evaluateSwaps is used. Each step plays a turn in every game,
+ * one phase at a time: a pass over the games to see whose turn it is, then a
+ * single call per player to decide, and a pass to apply the moves. Policies
+ * that read the arrays directly (e.g. evaluateSwaps) don't need a Rack at all;
+ * ModelMax plays about 3x as many rounds per second as it does with Game, and
+ * ModelRandom 3-4x. That's the most to expect: the policies' own work (scoring
+ * swaps, or drawing random numbers) is most of each turn, and is the same
+ * here as with Game. Games are played with standard rules (no minimum streak
+ * or bonus mode), using the scores in Game
+ * Not thread safe; use one batch per thread
+ * @author isaac
+ */
+public class BatchGame {
+	/**
+	 * Decides how to play a turn in a batch game; same as interfaces.Model,
+	 * except each call decides for every game where it is this player's turn,
+	 * and racks are given by game/player index (see getTurn for the turn number)
+	 * Results are written to arrays indexed by game number
+	 */
+	public interface Policy{
+		/**
+		 * Decide whether to draw from the discard pile, in several games
+		 * @param b the batch
+		 * @param games which games in the batch; only the first "count" are used
+		 * @param count how many games
+		 * @param player the player whose turn it is, in each of the games
+		 * @param fromDiscard set fromDiscard[game] to true, if we should draw
+		 * from discard in that game, or false otherwise
+		 */
+		public void decideDraw(BatchGame b, int[] games, int count, int player, boolean[] fromDiscard);
+		/**
+		 * Decide where to place the drawn cards, in the same games as the last decideDraw
+		 * @param b the batch
+		 * @param games which games in the batch; only the first "count" are used
+		 * @param count how many games
+		 * @param player the player whose turn it is, in each of the games
+		 * @param drawn card that was drawn in each game
+		 * @param fromDiscard was it drawn from the discard pile, in each game?
+		 * @param pos set pos[game] to the location to place the card in that
+		 * game; -1 indicates it should be discarded
+		 */
+		public void decidePlay(BatchGame b, int[] games, int count, int player, int[] drawn, boolean[] fromDiscard, int[] pos);
+	}
+	/**
+	 * Adapts a policy that works on Rack objects; the batch rack is copied
+	 * into a scratch Rack before every decision, so caches only last for a
+	 * single decision
+	 */
+	public static abstract class RackPolicy implements Policy{
+		private Rack rack;
+		private int[] hand;
+
+		/**
+		 * Decide whether to draw from the discard pile
+		 * @param r the player's rack
+		 * @param discard the card on top of the discard pile
+		 * @param turn what turn is this for the player in the round?
+		 * @return true, if we should draw from discard
+		 */
+		protected abstract boolean decideDraw(Rack r, int discard, int turn);
+		/**
+		 * Decide where to place the drawn card
+		 * @param r the player's rack
+		 * @param turn what turn is this for the player in the round?
+		 * @param drawn card that was drawn
+		 * @param fromDiscard was it drawn from the discard pile?
+		 * @return location to place card; -1 indicates it should be discarded
+		 */
+		protected abstract int decidePlay(Rack r, int turn, int drawn, boolean fromDiscard);
+
+		@Override
+		public void decideDraw(BatchGame b, int[] games, int count, int player, boolean[] fromDiscard){
+			for (int i=0; i<count; i++){
+				int g = games[i];
+				fromDiscard[g] = decideDraw(load(b, g, player), b.peek(g, true), b.getTurn(g, player));
+			}
+		}
+		@Override
+		public void decidePlay(BatchGame b, int[] games, int count, int player, int[] drawn, boolean[] fromDiscard, int[] pos){
+			for (int i=0; i<count; i++){
+				int g = games[i];
+				pos[g] = decidePlay(load(b, g, player), b.getTurn(g, player), drawn[g], fromDiscard[g]);
+			}
+		}
+		private Rack load(BatchGame b, int game, int player){
+			if (rack == null || hand.length != b.rack_size){
+				hand = new int[b.rack_size];
+				rack = new Rack(b.rack_size, b.shell);
+			}
+			b.getCards(game, player, hand);
+			rack.deal(hand);
+			return rack;
+		}
+	}
+
+	//Game constants
+	public final int games, players, rack_size, card_count;
+	private final int pile_size;
+	//An unplayable game with the same settings, for RackPolicy's racks
+	private final Game shell;
+	private final Random rand;
+	private final Policy[] policies;
+	private final int[] deck_scratch;
+	//Scratch space for evaluateSwaps, for the rack it was last used on (game*players+player);
+	//a policy usually evaluates the same rack twice per turn, so that's kept until it changes
+	private final int[] swap_keys, swap_up, swap_down, swap_critical;
+	private int swap_rack = -1, swap_longest;
+	//Scratch space for the batch evaluateSwaps, for the games it was last used on; values
+	//for the i'th game are at [slot*count + i], so each pass is over contiguous games.
+	//These are allocated when first used, and kept until a rack changes
+	private int[] batch_keys, batch_up, batch_down, batch_on, batch_without,
+		batch_longest, batch_key, batch_left, batch_right;
+	private int[] batch_games;
+	private int batch_count, batch_player;
+	private int move_limit = 0;
+	//The turn being played in each game; step() fills these in one phase at a time
+	private final int[][] turn_games;	//games where it is each player's turn, except random moves
+	private final int[] turn_count, turn_drawn, turn_pos;
+	private final boolean[] turn_discard;
+	//Per-game state
+	private final byte[] racks, piles,
+		descents,						//out of order pairs in each rack
+		active;							//whose turn it is
+	private final short[] draw_count, discard_count;	//cards in each game's draw/discard pile
+	private final long[] exposed;
+	private final int[] moves;			//moves made this round
+	private final short[] scores,		//score for each player this game
+		round_wins,						//rounds each player has won this game
+		turns,							//turns each player has made this round
+		until_random;					//turns until each player makes a random move
+	//Statistics, per player
+	private final long[] STAT_rounds_won, STAT_games_won;
+	private long STAT_rounds, STAT_games, STAT_moves;
+
+	/**
+	 * Creates a batch of games; call deal() before stepping through them
+	 * @param games how many games to play at once
+	 * @param players players in each game; must be greater than 1
+	 * @param rackSize how many cards per rack; must be greater than 1, and at most 64
+	 * (exposed slots are a bitmask); there are rackSize*(players+2) cards, which
+	 * must be at most 255, since they are stored as unsigned bytes
+	 * @param seed random seed for shuffling
+	 * @throws IllegalArgumentException if the settings are out of range
+	 */
+	public BatchGame(int games, int players, int rackSize, long seed){
+		if (games < 1 || players < 2 || rackSize < 2 || rackSize > 64)
+			throw new IllegalArgumentException("Invalid batch: "+games+" games, "+players+" players, rack size "+rackSize);
+		if (rackSize*(players+2) > 255)
+			throw new IllegalArgumentException("Too many cards for a batch: "+rackSize*(players+2)+" (at most 255)");
+		this.games = games;
+		this.players = players;
+		rack_size = rackSize;
+		card_count = rackSize*players + rackSize*2;
+		pile_size = rackSize*2;
+		shell = Game.createShell(players, rackSize);
+		rand = new SplitRandom(seed);
+		policies = new Policy[players];
+		deck_scratch = new int[card_count];
+		swap_keys = new int[rackSize];
+		swap_up = new int[rackSize];
+		swap_down = new int[rackSize];
+		swap_critical = new int[rackSize+1];
+		turn_games = new int[players][games];
+		turn_count = new int[players];
+		turn_drawn = new int[games];
+		turn_pos = new int[games];
+		turn_discard = new boolean[games];
+
+		racks = new byte[games*players*rackSize];
+		piles = new byte[games*pile_size];
+		draw_count = new short[games];
+		discard_count = new short[games];
+		descents = new byte[games*players];
+		active = new byte[games];
+		until_random = new short[games*players];
+		turns = new short[games*players];
+		exposed = new long[games*players];
+		moves = new int[games];
+		scores = new short[games*players];
+		round_wins = new short[games*players];
+		STAT_rounds_won = new long[players];
+		STAT_games_won = new long[players];
+	}
+	/**
+	 * Sets the policy for a player, in every game
+	 * @param player the player
+	 * @param p their policy
+	 */
+	public void setPolicy(int player, Policy p){
+		policies[player] = p;
+	}
+	/**
+	 * Limits the number of moves in a round before calling a draw
+	 * @param limit move limit (counting every player's moves); use 0 for unlimited
+	 */
+	public void limitMoves(int limit){
+		move_limit = limit;
+	}
+
+	/**
+	 * Starts a new game in every slot of the batch
+	 */
+	public void deal(){
+		for (int g=0; g<games; g++)
+			newGame(g);
+	}
+	private void newGame(int g){
+		for (int p=0, i=g*players; p<players; p++, i++){
+			scores[i] = 0;
+			round_wins[i] = 0;
+		}
+		newRound(g, rand.nextInt(players));
+	}
+	/**
+	 * Deals a new round; same order as Deck.deal
+	 * @param g the game
+	 * @param first the player that goes first
+	 */
+	private void newRound(int g, int first){
+		//The whole deck doesn't fit in the piles, so shuffle it in a scratch array
+		int pile = g*pile_size, rack = g*players*rack_size;
+		int[] deck = deck_scratch;
+		for (int i=0; i<card_count; i++)
+			deck[i] = i+1;
+		//Simple Fisher-Yates shuffle
+		for (int i=card_count-1, idx; i>0; i--){
+			idx = rand.nextInt(i + 1);
+			int temp = deck[idx];
+			deck[idx] = deck[i];
+			deck[i] = temp;
+		}
+		int top = card_count;
+		//First card starts the discard pile
+		piles[pile+pile_size-1] = (byte) deck[--top];
+		discard_count[g] = 1;
+		//Fill each rack from top to bottom
+		for (int p=0; p<players; p++){
+			int base = rack+p*rack_size, out_of_order = 0;
+			for (int j=rack_size-1; j>=0; j--)
+				racks[base+j] = (byte) deck[--top];
+			for (int j=1; j<rack_size; j++)
+				out_of_order += deck[top+j] < deck[top+j-1] ? 1 : 0;
+			descents[g*players+p] = (byte) out_of_order;
+			exposed[g*players+p] = 0;
+			turns[g*players+p] = 0;
+			until_random[g*players+p] = (short) pile_size;
+		}
+		//The rest stay in the draw pile
+		for (int i=0; i<top; i++)
+			piles[pile+i] = (byte) deck[i];
+		draw_count[g] = (short) top;
+		active[g] = (byte) first;
+		moves[g] = 0;
+		if (swap_rack/players == g)
+			swap_rack = -1;
+		batch_games = null;
+	}
+
+	/**
+	 * Plays one turn in every game of the batch; games that finish are
+	 * immediately restarted. Each phase of the turn is a pass over the games,
+	 * and each player's policy decides for all of their games at once
+	 */
+	public void step(){
+		//Whose turn it is; same as PlayerComputer, every rack_size*2 turns a
+		//player does a random move, to break deadlocks, so those are drawn now
+		Arrays.fill(turn_count, 0);
+		batch_games = null;
+		for (int g=0; g<games; g++){
+			int p = active[g], gp = g*players+p;
+			turns[gp]++;
+			if (--until_random[gp] == 0){
+				until_random[gp] = (short) pile_size;
+				turn_discard[g] = rand.nextBoolean();
+				turn_drawn[g] = draw(g, turn_discard[g]);
+				turn_pos[g] = rand.nextInt(rack_size+1)-1;
+			}
+			else turn_games[p][turn_count[p]++] = g;
+		}
+		//Racks don't change until every player has decided, so a policy can
+		//reuse what it found out about its racks in decideDraw (see evaluateSwaps)
+		for (int p=0; p<players; p++){
+			int[] list = turn_games[p];
+			int count = turn_count[p];
+			if (count == 0)
+				continue;
+			policies[p].decideDraw(this, list, count, p, turn_discard);
+			for (int i=0; i<count; i++){
+				int g = list[i];
+				turn_drawn[g] = draw(g, turn_discard[g]);
+			}
+			policies[p].decidePlay(this, list, count, p, turn_drawn, turn_discard, turn_pos);
+		}
+		for (int g=0; g<games; g++)
+			play(g, turn_drawn[g], turn_pos[g], turn_discard[g]);
+		STAT_moves += games;
+	}
+	/**
+	 * Makes the active player's move in a game; the round is scored if it
+	 * ended, otherwise the turn passes to the next player
+	 * @param g the game
+	 * @param drawn card that was drawn
+	 * @param pos location to place the card; -1 to discard it
+	 * @param fromDiscard was it drawn from the discard pile?
+	 */
+	private void play(int g, int drawn, int pos, boolean fromDiscard){
+		int gp = g*players+active[g], discard = drawn;
+		if (pos != -1){
+			int base = gp*rack_size, slot = base+pos;
+			discard = racks[slot] & 0xff;
+			//Only the pairs on either side of the slot can change order
+			int out_of_order = descents[gp];
+			if (pos > 0){
+				int left = racks[slot-1] & 0xff;
+				out_of_order += (drawn < left ? 1 : 0) - (discard < left ? 1 : 0);
+			}
+			if (pos+1 < rack_size){
+				int right = racks[slot+1] & 0xff;
+				out_of_order += (right < drawn ? 1 : 0) - (right < discard ? 1 : 0);
+			}
+			descents[gp] = (byte) out_of_order;
+			racks[slot] = (byte) drawn;
+			if (gp == swap_rack)
+				swap_rack = -1;
+			batch_games = null;
+			if (fromDiscard)
+				exposed[gp] |= 1L << pos;
+			else exposed[gp] &= ~(1L << pos);
+		}
+		discard(g, discard);
+		moves[g]++;
+
+		boolean won = descents[gp] == 0,
+			draw = move_limit > 0 && moves[g] >= move_limit && !won;
+		if (won || draw)
+			scoreRound(g, won);
+		else if (++active[g] == players)
+			active[g] = 0;
+	}
+	/**
+	 * Plays until a number of rounds have finished, counting every game
+	 * @param rounds how many rounds to play
+	 */
+	public void playRounds(long rounds){
+		long target = STAT_rounds + rounds;
+		while (STAT_rounds < target)
+			step();
+	}
+	private int draw(int g, boolean fromDiscard){
+		int pile = g*pile_size;
+		if (fromDiscard)
+			return piles[pile+pile_size-discard_count[g]--] & 0xff;
+		return piles[pile + --draw_count[g]] & 0xff;
+	}
+	private void discard(int g, int card){
+		int pile = g*pile_size;
+		//Reshuffle, if no cards in draw pile; same as Deck.discard
+		if (draw_count[g] == 0){
+			int count = discard_count[g];
+			//Regions may overlap; arraycopy handles that
+			System.arraycopy(piles, pile+pile_size-count, piles, pile, count);
+			for (int i=count-1, idx; i>0; i--){
+				idx = rand.nextInt(i + 1);
+				byte temp = piles[pile+idx];
+				piles[pile+idx] = piles[pile+i];
+				piles[pile+i] = temp;
+			}
+			draw_count[g] = (short) count;
+			discard_count[g] = 0;
+		}
+		piles[pile+pile_size-(++discard_count[g])] = (byte) card;
+	}
+	/**
+	 * Scores a round; same as Game.play, with standard rules
+	 */
+	private void scoreRound(int g, boolean won){
+		int winner = active[g];
+		STAT_rounds++;
+		if (won){
+			STAT_rounds_won[winner]++;
+			round_wins[g*players+winner]++;
+		}
+		int lowest_score = -1, lowest_score_player = 0,
+			max_score = 0, max_idx = 0;
+		for (int p=0; p<players; p++){
+			int i = g*players+p,
+				score = scorePoints(i*rack_size);
+			if (lowest_score == -1 || score < lowest_score){
+				lowest_score = score;
+				lowest_score_player = p;
+			}
+			scores[i] += score;
+			if (scores[i] >= Game.score_win && (scores[i] > max_score ||
+				scores[i] == max_score && round_wins[i] > round_wins[g*players+max_idx]))
+			{
+				max_score = scores[i];
+				max_idx = p;
+			}
+		}
+		//No one has reached "score_win" points; play next round
+		if (max_score == 0)
+			newRound(g, lowest_score_player);
+		else{
+			STAT_games++;
+			STAT_games_won[max_idx]++;
+			newGame(g);
+		}
+	}
+	/**
+	 * Same as Rack.scorePoints, with standard rules
+	 */
+	private int scorePoints(int base){
+		int i = 1;
+		while (i < rack_size && (racks[base+i] & 0xff) > (racks[base+i-1] & 0xff))
+			i++;
+		return i*Game.score_single + (i == rack_size ? Game.score_all : 0);
+	}
+
+	//STATE
+	/**
+	 * Peek at the top of a pile
+	 * @param game which game in the batch
+	 * @param fromDiscard if true, peeks at the top of the discard pile
+	 * @return the card on the top of the pile
+	 */
+	public int peek(int game, boolean fromDiscard){
+		int pile = game*pile_size;
+		if (fromDiscard)
+			return piles[pile+pile_size-discard_count[game]] & 0xff;
+		return piles[pile+draw_count[game]-1] & 0xff;
+	}
+	/**
+	 * What turn it is for a player in the current round
+	 * @param game which game in the batch
+	 * @param player the player
+	 * @return turns the player has started this round, including the current one
+	 */
+	public int getTurn(int game, int player){
+		return turns[game*players+player];
+	}
+	/**
+	 * Gets a card from a player's rack
+	 * @param game which game in the batch
+	 * @param player the player
+	 * @param slot the slot in the rack
+	 * @return the card
+	 */
+	public int getCardAt(int game, int player, int slot){
+		return racks[(game*players+player)*rack_size+slot] & 0xff;
+	}
+	/**
+	 * Copies a player's rack
+	 * @param game which game in the batch
+	 * @param player the player
+	 * @param out array of length rack_size to copy the cards to
+	 */
+	public void getCards(int game, int player, int[] out){
+		int base = (game*players+player)*rack_size;
+		for (int i=0; i<rack_size; i++)
+			out[i] = racks[base+i] & 0xff;
+	}
+	/**
+	 * Is a card visible to other players?
+	 * @param game which game in the batch
+	 * @param player the player
+	 * @param slot the slot in the rack
+	 * @return true, if the card was taken from the discard pile
+	 */
+	public boolean isVisible(int game, int player, int slot){
+		return (exposed[game*players+player] & (1L << slot)) != 0;
+	}
+	/**
+	 * Scores every possible swap of a card into a player's rack, straight from the
+	 * batch's arrays; same as Rack.getLUSLength and Rack.evaluateSwaps, with the
+	 * default rules, but without loading a Rack. Racks are short, so this just
+	 * compares every pair of slots, rather than using a Fenwick tree
+	 * @param game which game in the batch
+	 * @param player the player
+	 * @param card the card to swap in
+	 * @param lus_length LUS length for each slot the card could go in
+	 * @return LUS length of the rack as it is
+	 */
+	public int evaluateSwaps(int game, int player, int card, int[] lus_length){
+		int gp = game*players+player, n = rack_size, max_key = card_count-n+1;
+		if (gp != swap_rack){
+			loadSwaps(gp*rack_size, max_key);
+			swap_rack = gp;
+		}
+		int longest = swap_longest;
+		int[] keys = swap_keys, up = swap_up, down = swap_down, critical = swap_critical;
+		//Replacing a slot loses it from the longest sequences, if it is the only one
+		//that can be at its position; the new card might make a longer one, though
+		for (int i=0; i<n; i++){
+			int without = longest;
+			if (up[i] != 0 && up[i]+down[i]-1 == longest && critical[up[i]] == 1)
+				without--;
+			int key = card-i, through = 0;
+			if (key >= 1 && key <= max_key){
+				int left = 0, right = 0;
+				for (int j=0; j<i; j++)
+					left = Math.max(left, up[j] & ~(key-keys[j] >> 31));
+				for (int j=i+1; j<n; j++)
+					right = Math.max(right, down[j] & ~(keys[j]-key >> 31));
+				through = left+1+right;
+			}
+			lus_length[i] = Math.max(without, through);
+		}
+		return longest;
+	}
+	/**
+	 * Finds the longest sequences ending and starting at each slot of a rack, for evaluateSwaps
+	 * @param base index of the rack in racks
+	 * @param max_key largest usable key
+	 */
+	private void loadSwaps(int base, int max_key){
+		int n = rack_size, longest = 0;
+		int[] keys = swap_keys, up = swap_up, down = swap_down, critical = swap_critical;
+		//Longest sequence ending at each slot (see Rack.LUSCache.longestUsable); unusable
+		//slots get 0, so they never extend a sequence, whatever their key
+		for (int i=0; i<n; i++){
+			int key = (racks[base+i] & 0xff)-i, best = 0;
+			keys[i] = key;
+			if (key >= 1 && key <= max_key){
+				//Comparisons are masked rather than branched on, since they're unpredictable
+				for (int j=0; j<i; j++)
+					best = Math.max(best, up[j] & ~(key-keys[j] >> 31));
+				up[i] = best+1;
+				longest = Math.max(longest, up[i]);
+			}
+			else up[i] = 0;
+		}
+		//Longest sequence starting at each slot
+		Arrays.fill(critical, 0);
+		for (int i=n-1; i>=0; i--){
+			int key = keys[i], best = 0;
+			if (up[i] != 0){
+				for (int j=i+1; j<n; j++)
+					best = Math.max(best, down[j] & ~(keys[j]-key >> 31));
+				down[i] = best+1;
+				//Count the slots that are part of a longest sequence, by position in the sequence
+				if (up[i]+down[i]-1 == longest)
+					critical[up[i]]++;
+			}
+			else down[i] = 0;
+		}
+		swap_longest = longest;
+	}
+
+	/**
+	 * Scores every possible swap of a card into a player's rack, in several games at
+	 * once; same as the single game evaluateSwaps, except each step is a pass over all
+	 * of the games, over arrays laid out by slot, so C2 can vectorize the passes. What it
+	 * finds out about the racks is kept until one changes, so calling this again for the
+	 * same games and player (e.g. in Policy.decideDraw, then decidePlay) is cheaper
+	 * @param games which games in the batch; only the first "count" are used
+	 * @param count how many games
+	 * @param player the player
+	 * @param cards the card to swap in, for each game; the i'th game's is at [i]
+	 * @param lus_length LUS length for each slot the card could go in; the i'th game's
+	 * length for a slot is at [slot*count + i], so this must hold rack_size*count values
+	 * @param longest LUS length of each rack as it is; the i'th game's is at [i]
+	 */
+	public void evaluateSwaps(int[] games, int count, int player, int[] cards, int[] lus_length, int[] longest){
+		int n = rack_size, max_key = card_count-n+1;
+		if (batch_games != games || batch_count != count || batch_player != player){
+			loadSwaps(games, count, player, max_key);
+			batch_games = games;
+			batch_count = count;
+			batch_player = player;
+		}
+		int[] keys = batch_keys, up = batch_up, down = batch_down, without = batch_without,
+			key = batch_key, left = batch_left, right = batch_right;
+		System.arraycopy(batch_longest, 0, longest, 0, count);
+		//Masks are used rather than branches, so the passes can be vectorized;
+		//"x >> 31" is -1 if x is negative, otherwise 0
+		for (int i=0; i<n; i++){
+			int slot = i*count;
+			for (int k=0; k<count; k++){
+				key[k] = cards[k]-i;
+				left[k] = 0;
+				right[k] = 0;
+			}
+			for (int j=0; j<i; j++){
+				int other = j*count;
+				for (int k=0; k<count; k++)
+					left[k] = Math.max(left[k], up[other+k] & ~(key[k]-keys[other+k] >> 31));
+			}
+			for (int j=i+1; j<n; j++){
+				int other = j*count;
+				for (int k=0; k<count; k++)
+					right[k] = Math.max(right[k], down[other+k] & ~(keys[other+k]-key[k] >> 31));
+			}
+			//The new card only makes a sequence through the slot if its key is usable
+			for (int k=0; k<count; k++){
+				int usable = ~(key[k]-1 | max_key-key[k]) >> 31;
+				lus_length[slot+k] = Math.max(without[slot+k], left[k]+1+right[k] & usable);
+			}
+		}
+	}
+	/**
+	 * Finds the longest sequences ending and starting at each slot of several racks,
+	 * for the batch evaluateSwaps; same as the single rack loadSwaps
+	 * @param games which games in the batch
+	 * @param count how many games
+	 * @param player the player
+	 * @param max_key largest usable key
+	 */
+	private void loadSwaps(int[] games, int count, int player, int max_key){
+		int n = rack_size;
+		if (batch_keys == null){
+			int size = n*this.games;
+			batch_keys = new int[size];
+			batch_up = new int[size];
+			batch_down = new int[size];
+			batch_on = new int[size];
+			batch_without = new int[size];
+			batch_longest = new int[this.games];
+			batch_key = new int[this.games];
+			batch_left = new int[this.games];
+			batch_right = new int[this.games];
+		}
+		int[] keys = batch_keys, up = batch_up, down = batch_down, on = batch_on, without = batch_without,
+			longest = batch_longest, best = batch_left, shared = batch_right;
+		//This is the only pass that reads the racks
+		for (int k=0; k<count; k++){
+			int base = (games[k]*players+player)*n;
+			for (int i=0; i<n; i++)
+				keys[i*count+k] = (racks[base+i] & 0xff)-i;
+			longest[k] = 0;
+		}
+		//Longest sequence ending at each slot; unusable slots get 0
+		for (int i=0; i<n; i++){
+			int slot = i*count;
+			Arrays.fill(best, 0, count, 0);
+			for (int j=0; j<i; j++){
+				int other = j*count;
+				for (int k=0; k<count; k++)
+					best[k] = Math.max(best[k], up[other+k] & ~(keys[slot+k]-keys[other+k] >> 31));
+			}
+			for (int k=0; k<count; k++){
+				int key = keys[slot+k];
+				up[slot+k] = best[k]+1 & ~(key-1 | max_key-key) >> 31;
+				longest[k] = Math.max(longest[k], up[slot+k]);
+			}
+		}
+		//Longest sequence starting at each slot
+		for (int i=n-1; i>=0; i--){
+			int slot = i*count;
+			Arrays.fill(best, 0, count, 0);
+			for (int j=i+1; j<n; j++){
+				int other = j*count;
+				for (int k=0; k<count; k++)
+					best[k] = Math.max(best[k], down[other+k] & ~(keys[other+k]-keys[slot+k] >> 31));
+			}
+			for (int k=0; k<count; k++)
+				down[slot+k] = best[k]+1 & -up[slot+k] >> 31;
+		}
+		//Slots that are part of a longest sequence; "(a^b)-1 >> 31" is -1 if a == b,
+		//since the values are never negative
+		for (int i=0; i<n; i++){
+			int slot = i*count;
+			for (int k=0; k<count; k++)
+				on[slot+k] = (up[slot+k]+down[slot+k]-1 ^ longest[k])-1 >> 31 & -up[slot+k] >> 31;
+		}
+		//Replacing a slot loses it from the longest sequences, if it is the only
+		//one of them that can be at its position
+		for (int i=0; i<n; i++){
+			int slot = i*count;
+			Arrays.fill(shared, 0, count, 0);
+			for (int j=0; j<n; j++){
+				int other = j*count;
+				if (j != i){
+					for (int k=0; k<count; k++)
+						shared[k] |= on[other+k] & (up[other+k]^up[slot+k])-1 >> 31;
+				}
+			}
+			for (int k=0; k<count; k++)
+				without[slot+k] = longest[k] + (on[slot+k] & ~shared[k]);
+		}
+	}
+
+	//STATISTICS
+	/**
+	 * @return rounds finished, counting every game in the batch
+	 */
+	public long getRounds(){
+		return STAT_rounds;
+	}
+	/**
+	 * @return games finished, counting every game in the batch
+	 */
+	public long getGames(){
+		return STAT_games;
+	}
+	/**
+	 * @return moves made, counting every game in the batch
+	 */
+	public long getMoves(){
+		return STAT_moves;
+	}
+	/**
+	 * @param player the player
+	 * @return rounds won by this player
+	 */
+	public long getRoundWins(int player){
+		return STAT_rounds_won[player];
+	}
+	/**
+	 * @param player the player
+	 * @return games won by this player
+	 */
+	public long getGameWins(int player){
+		return STAT_games_won[player];
+	}
+}
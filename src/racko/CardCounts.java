@@ -0,0 +1,129 @@
+package racko;
+
+import java.util.Arrays;
+
+/**
+ * A set of cards, that can count how many cards are below/between any cards
+ * in O(log n); this is a binary indexed (Fenwick) tree over the card numbers
+ * Used by Deck for the cards in the draw pile, the cards not in anyone's rack,
+ * and the discard pile cards a player remembers; and by Rack for its cards
+ * A card can be added more than once (racks can be given duplicates for testing),
+ * in which case it is counted more than once
+ * @author isaac
+ */
+final class CardCounts {
+	private final int[] present;
+	//tree[i] counts the cards in (i - lowest bit of i, i]
+	private final int[] tree;
+	private int size = 0;
+
+	/**
+	 * Creates an empty set
+	 * @param cards the highest card
+	 */
+	public CardCounts(int cards){
+		present = new int[cards];
+		tree = new int[cards+1];
+	}
+
+	/**
+	 * Adds a card
+	 * @param card the card
+	 */
+	public void add(int card){
+		present[card-1]++;
+		size++;
+		for (int i=card; i<tree.length; i+=i & -i)
+			tree[i]++;
+	}
+	/**
+	 * Removes a card; it must be in the set
+	 * @param card the card
+	 */
+	public void remove(int card){
+		assert(present[card-1] > 0);
+		present[card-1]--;
+		size--;
+		for (int i=card; i<tree.length; i+=i & -i)
+			tree[i]--;
+	}
+	/**
+	 * Replaces the set with a list of cards, in O(n)
+	 * @param cards the cards
+	 * @param count how many cards are in the list
+	 */
+	public void reset(int[] cards, int count){
+		Arrays.fill(present, 0);
+		Arrays.fill(tree, 0);
+		for (int i=0; i<count; i++){
+			present[cards[i]-1]++;
+			tree[cards[i]]++;
+		}
+		size = count;
+		build();
+	}
+	/**
+	 * Replaces the set with every card, in O(n)
+	 */
+	public void fill(){
+		Arrays.fill(present, 1);
+		Arrays.fill(tree, 1);
+		tree[0] = 0;
+		size = present.length;
+		build();
+	}
+	/**
+	 * Removes every card
+	 */
+	public void clear(){
+		Arrays.fill(present, 0);
+		Arrays.fill(tree, 0);
+		size = 0;
+	}
+	/**
+	 * Turns the counts for each card into tree counts; each node adds itself to its parent
+	 */
+	private void build(){
+		for (int i=1; i<tree.length; i++){
+			int parent = i + (i & -i);
+			if (parent < tree.length)
+				tree[parent] += tree[i];
+		}
+	}
+
+	/**
+	 * @param card the card
+	 * @return true, if the card is in the set
+	 */
+	public boolean contains(int card){
+		return present[card-1] != 0;
+	}
+	/**
+	 * @return number of cards in the set
+	 */
+	public int size(){
+		return size;
+	}
+	/**
+	 * Counts the cards up to and including a card
+	 * @param card the card; anything from 0 to the highest card
+	 * @return number of cards <= card
+	 */
+	public int countTo(int card){
+		int count = 0;
+		for (int i=card; i>0; i-=i & -i)
+			count += tree[i];
+		return count;
+	}
+	/**
+	 * Counts the cards between two cards
+	 * @param lo the lower card; use 0 for no lower bound
+	 * @param hi the higher card; use the highest card+1 for no upper bound
+	 * @return number of cards strictly between lo and hi
+	 */
+	public int countBetween(int lo, int hi){
+		if (hi-1 <= lo)
+			return 0;
+		return countTo(hi-1) - countTo(lo);
+	}
+}
@@ -19,30 +19,48 @@ public class Deck {
 	private int draw_count, discard_count;	//cards in draw/discard pile
 	private final int[] draw, discard;		//draw and discard piles
 	private final boolean[] in_play;		//which cards are in play?
+	private final int[] hand;				//scratch array for dealing racks
+	//Cards in the draw pile, and cards not in anyone's rack, kept up to date
+	//on every move, so probabilities/counts don't need to scan the piles
+	private final CardCounts draw_counts, unseen_counts;
+	private int moves;						//draws and discards, so callers can tell when the piles change
+	private int[] sweep_order;				//scratch array for getRealProbabilities
 	private boolean
 		action = false,						//false = expect draw, true = expect discard
 		dealing = false,					//remove assertions if dealing cards
-		has_shuffled = false,				//have we gone through all the cards in the draw pile?
 		shuffling = false;					//are we currently shuffling the deck
-	//Memory variables
-	private final int[] memory,				//keeps track of which cards were drawn last; 0 values should be ignored
-		memory_hash;						//where each card is located in the memory array; -1, if it isn't in memory
-	private int memory_head,				//memory[] is a circular buffer; where does it start?
-		memory_count;						//how many cards are stored in memory? (non-zero entries)
-	//Random number generator:
-	private static final Random rand = new Random();
+	//Memory variables, for estimating probabilities (see getProbability); a player
+	//remembers the most recent discards, which are the top of the discard pile, so
+	//memories[m] holds the top m cards of the discard pile, for each limit m that
+	//has been asked for (memory_limits lists them, so they can be kept up to date)
+	private final CardCounts[] memories;
+	private final int[] memory_limits;
+	private int memory_count;
+	//Random number generator; one per deck, so games on different threads never share it
+	//Each shuffle gets its own seed from this, so a recorded round can be
+	//re-dealt from its seed alone (see GameRecorder)
+	private final Random rand;
+	private final SplitRandom shuffle_rand = new SplitRandom(0);
+	private long shuffle_seed, forced_seed;
+	private boolean seed_forced = false;
+	//Optional move log, and the last draw (for the log)
+	protected GameRecorder recorder = null;
+	private int last_drawn;
+	private boolean last_from_discard;
 	
 	/**
 	 * Creates a new racko deck
 	 * @param rackSize how many cards per rack; must be greater than 1
 	 * @param players how many players are there; must be greater than 1
+	 * @param rand random number generator for shuffling
 	 */
-	public Deck(Player[] players, int rackSize){
+	public Deck(Player[] players, int rackSize, Random rand){
 		//Official rules are 2-4 players and rack_size == 10
 		//However, we'll relax these restrictions...
 		assert(players.length > 1 && rackSize > 1);
 		this.rack_size = rackSize;
 		this.players = players;
+		this.rand = rand;
 		cards = rackSize*players.length + rackSize*2;
 		
 		//Initialize deck; counts are all zero, since we haven't called "deal()" yet
@@ -52,12 +70,14 @@ public class Deck {
 		draw = new int[cards];
 		discard = new int[cards];
 		in_play = new boolean[cards];
+		hand = new int[rackSize];
+		draw_counts = new CardCounts(cards);
+		unseen_counts = new CardCounts(cards);
+		unseen_counts.fill();
 		//Initialize memory
-		memory = new int[cards];
-		memory_hash = new int[cards];
-		memory_head = 0;
+		memories = new CardCounts[cards+1];
+		memory_limits = new int[cards];
 		memory_count = 0;
-		has_shuffled = false;
 	}
 	/**
 	 * Register a gui
@@ -78,25 +98,21 @@ public class Deck {
 		turns = 0;
 		//First, reset all deck variables
 		Arrays.fill(in_play, false);
-		Arrays.fill(memory, 0);
+		unseen_counts.fill();
 		draw_count = 0;
 		discard_count = cards;
 		for (int i=0; i<cards; i++)
 			discard[i] = i+1;
 		shuffle(true);
-		//Reset memory variables
-		Arrays.fill(memory_hash, -1);
-		memory_head = 0;
-		memory_count = 0;
-		has_shuffled = false;
 		//Deal out the cards
 		for (Player p: players){
-			//Fill each rack from top to bottom
-			int[] hand = new int[rack_size];
+			//Fill each rack from top to bottom; the rack copies the hand
 			for (int j=rack_size-1; j>=0; j--){
 				//We could call the "draw()" function here, but this is more efficient
 				hand[j] = draw[--draw_count];
 				in_play[hand[j]-1] = true;
+				draw_counts.remove(hand[j]);
+				unseen_counts.remove(hand[j]);
 			}
 			p.rack.deal(hand);
 			p.beginRound();
@@ -114,9 +130,12 @@ public class Deck {
 		assert(draw_count == 0 && discard_count != 0);
 		shuffling = true;
 		System.arraycopy(discard, 0, draw, 0, discard_count);
+		shuffle_seed = seed_forced ? forced_seed : rand.nextLong();
+		seed_forced = false;
+		shuffle_rand.setSeed(shuffle_seed);
 		//Simple Fisher-Yates shuffle
 		for (int i=discard_count-1, idx; i>0; i--){
-			idx = rand.nextInt(i + 1);
+			idx = shuffle_rand.nextInt(i + 1);
 			int temp = draw[idx];
 			draw[idx] = draw[i];
 			draw[i] = temp;
@@ -124,6 +143,10 @@ public class Deck {
 		//Put first draw card in discard pile
 		draw_count = discard_count;
 		discard_count = 0;
+		draw_counts.reset(draw, draw_count);
+		//The discard pile is gone, so nothing in it is remembered
+		for (int i=0; i<memory_count; i++)
+			memories[memory_limits[i]].clear();
 		if (new_discard)
 			discard(draw(false));
 		shuffling = false;
@@ -148,17 +171,30 @@ public class Deck {
 		//Make sure there are the correct number of cards in play
 		assert(dealing || (draw_count+discard_count == rack_size*2 && !action));
 		turns++;
+		moves++;
 		action = true;
 		int card;
 		if (fromDiscard){
 			assert(discard_count != 0);
 			card = discard[--discard_count];
+			//The next card down comes back into memory
+			for (int i=0; i<memory_count; i++){
+				int limit = memory_limits[i];
+				CardCounts mem = memories[limit];
+				mem.remove(card);
+				if (discard_count >= limit)
+					mem.add(discard[discard_count-limit]);
+			}
 		}
 		else{
 			assert(draw_count != 0);
 			card = draw[--draw_count];
+			draw_counts.remove(card);
 		}
 		in_play[card-1]	= true;
+		unseen_counts.remove(card);
+		last_drawn = card;
+		last_from_discard = fromDiscard;
 		if (!shuffling && gui != null)
 			gui.draw(card, fromDiscard);
 		return card;
@@ -170,30 +206,36 @@ public class Deck {
 	protected void discard(int card){
 		assert(in_play[card-1] && action);
 		action = false;
+		moves++;
 		in_play[card-1] = false;
+		unseen_counts.add(card);
 		//Reshuffle, if no cards in draw pile
 		if (draw_count == 0){
-			has_shuffled = true;
 			shuffle(false);
+			if (recorder != null)
+				recorder.shuffle(shuffle_seed);
 		}
 		//Push to stack
 		discard[discard_count++] = card;
-		//Remove old reference to this card in memory
-		int old_loc = memory_hash[card-1];
-		if (old_loc >= 0)
-			memory[old_loc] = 0;
-		else if (memory_count < rack_size*2)
-			memory_count++;
-		//Add new reference to memory
-		memory_hash[card-1] = memory_head;
-		memory[memory_head] = card;
-		memory_head = (memory_head + 1) % cards;
+		//The oldest remembered card is forgotten
+		for (int i=0; i<memory_count; i++){
+			int limit = memory_limits[i];
+			CardCounts mem = memories[limit];
+			mem.add(card);
+			if (discard_count > limit)
+				mem.remove(discard[discard_count-1-limit]);
+		}
 		if (!shuffling && gui != null)
 			gui.discard(card);
 	}
 	
 	/**
-	 * Returns the estimated probability of drawing lower/higher than the given card
+	 * Returns the estimated probability of drawing lower/higher than the given card,
+	 * using only what the player could know: their own rack, and the cards they
+	 * remember from the discard pile. Every other card could be in the draw pile:
+		E = unknown lower/higher / unknown
+		unknown: cards that aren't in the player's rack or remembered
+	 * Counts are kept up to date as cards move, so this is O(log n)
 	 * @param card the card
 	 * @param higher if true, gets the probability of drawing higher; otherwise, probability of drawing lower
 	 * @return probability of drawing a lower/higher card
@@ -203,52 +245,47 @@ public class Deck {
 	 */
 	public double getProbability(int card, boolean higher, Rack rack, int mem_limit){
 		assert(card >= 0 && rack != null);
-		
-		//TODO: fix the probability calculator
-		//TODO: make this compute probabilities for an entire rack at once
-		if (true)
-			return getRealProbability(card, higher);
-		
-		//If we've seen every card, we know exactly what the probabilities should be
-		if ((mem_limit < 1 || mem_limit >= rack_size*2) && has_shuffled)
-			return getRealProbability(card, higher);
-		
-		/*
-			Without knowing any additional info, what is the probabity of drawing a higher/lower card?
-			We can represent our estimate as:
-				E = (baseline - known) / (total - visible)
-				baseline: number of cards lower/higher than a card in the entire deck  (where hi or lo is user specified)
-				known: number of cards lower/higher we know are not in the draw pile (where hi or lo is user specified)
-				total: number of cards in the deck
-				visible: number of cards that we know the values of (either from people's racks, or from the discard pile)
-		*/
-		int baseline = higher ? cards-card : card-1,
-			total = cards - rack_size;
-		
-		//get visible cards from current player
-		int[] players_cards = rack.getCards();
-		for (int i=0; i<rack_size; i++){
-			if (higher ? players_cards[i] > card : players_cards[i] < card)
-				baseline--;
+		CardCounts mem = memory(mem_limit), held = rack.card_counts;
+		int unknown = cards - held.size() - mem.size();
+		if (unknown <= 0)
+			return 0;
+		//Like getRealProbability, higher includes the card itself, as does lower
+		int count = higher ?
+			unknown - (card-1 - held.countTo(card-1) - mem.countTo(card-1)) :
+			card - held.countTo(card) - mem.countTo(card);
+		return count / (double) unknown;
+	}
+	/**
+	 * Gets the estimated probabilities of drawing higher/lower than each card in
+	 * a rack (see getProbability), all at once
+	 * @param rack the current player's rack
+	 * @param mem_limit see getProbability
+	 * @param probs where to put the probabilities, double[rack size][2], where
+	 *  [0] = probability of drawing higher, [1] = drawing lower
+	 */
+	public void getProbabilities(Rack rack, int mem_limit, double[][] probs){
+		int[] rack_cards = rack.getCards();
+		for (int i=0; i<rack_cards.length; i++){
+			probs[i][0] = getProbability(rack_cards[i], true, rack, mem_limit);
+			probs[i][1] = getProbability(rack_cards[i], false, rack, mem_limit);
 		}
-		
-		//get memorized cards from discard pile
-		if (mem_limit > memory_count)
-			mem_limit = memory_count;
-		total -= mem_limit;
-		int viewed = 0, i = memory_head;
-		while (true){
-			if (memory[i] != 0){
-				if (higher ? memory[i] > card : memory[i] < card)
-					baseline--;
-				if (++viewed == mem_limit)
-					break;
-			}
-			i = i == 0 ? memory.length : i-1;
+	}
+	/**
+	 * Gets the cards remembered with a memory limit; the first time a limit
+	 * is used, it starts being kept up to date
+	 * @param mem_limit see getProbability
+	 * @return the top cards of the discard pile
+	 */
+	private CardCounts memory(int mem_limit){
+		int limit = mem_limit < 1 || mem_limit > cards ? cards : mem_limit;
+		CardCounts mem = memories[limit];
+		if (mem == null){
+			mem = memories[limit] = new CardCounts(cards);
+			memory_limits[memory_count++] = limit;
+			for (int i=Math.max(discard_count-limit, 0); i<discard_count; i++)
+				mem.add(discard[i]);
 		}
-		
-		assert(baseline >= 0 && total >= draw_count);
-		return baseline / (double) cards;
+		return mem;
 	}
 	/**
 	 * Gets the actual probability of drawing higher/lower than the given card
@@ -260,14 +297,93 @@ public class Deck {
 		//We haven't dealt yet, so this is just probabilities for the entire deck
 		if (draw_count == 0)
 			return (higher ? cards - card : card - 1) / (double) (cards-1);
-		//Otherwise, get real probability
-		int total = draw_count;
-		for (int i=0; i<draw_count; i++){
-			if (higher ? draw[i] < card : draw[i] > card)
-				total--;
-		}
+		//Otherwise, get real probability; higher includes the card itself, as does lower
+		int total = higher ? draw_count - draw_counts.countTo(card-1) : draw_counts.countTo(card);
 		return total / (double) draw_count;
 	}
+	/**
+	 * Gets the actual probabilities of drawing higher/lower than each card in
+	 * a rack, all at once; the same as calling getRealProbability for each,
+	 * but the cards are sorted and the draw pile is counted in one sweep
+	 * @param cards the rack's cards
+	 * @param probs where to put the probabilities, double[cards.length][2], where
+	 *  [0] = probability of drawing higher, [1] = drawing lower
+	 */
+	public void getRealProbabilities(int[] cards, double[][] probs){
+		int n = cards.length;
+		if (draw_count == 0){
+			for (int i=0; i<n; i++){
+				probs[i][0] = getRealProbability(cards[i], true);
+				probs[i][1] = getRealProbability(cards[i], false);
+			}
+			return;
+		}
+		//Sort the slots by card; racks are mostly sorted, so insertion sort is quick
+		if (sweep_order == null || sweep_order.length < n)
+			sweep_order = new int[n];
+		int[] order = sweep_order;
+		for (int i=0; i<n; i++){
+			int j = i;
+			for (; j>0 && cards[order[j-1]] > cards[i]; j--)
+				order[j] = order[j-1];
+			order[j] = i;
+		}
+		//Count the draw pile cards below each card, from lowest to highest
+		int below = 0, next = 1;
+		for (int k=0; k<n; k++){
+			int slot = order[k], card = cards[slot];
+			for (; next<card; next++){
+				if (draw_counts.contains(next))
+					below++;
+			}
+			probs[slot][0] = (draw_count - below) / (double) draw_count;
+			probs[slot][1] = (below + (draw_counts.contains(card) ? 1 : 0)) / (double) draw_count;
+		}
+	}
+	
+	/**
+	 * Counts the cards between two cards that aren't in anyone's rack; these are
+	 * in the draw or discard pile, so they can still be drawn this round
+	 * (the discard pile is reshuffled into the draw pile when it runs out)
+	 * @param lo the lower card; use 0 for no lower bound
+	 * @param hi the higher card; use getMaxCard()+1 for no upper bound
+	 * @return number of cards strictly between lo and hi
+	 */
+	public int countUnseen(int lo, int hi){
+		return unseen_counts.countBetween(lo, hi);
+	}
+	
+	/**
+	 * Seed used for the last shuffle; this is the seed for the current
+	 * round, until the draw pile runs out and the deck is reshuffled
+	 * @return the shuffle seed
+	 */
+	public long getShuffleSeed(){
+		return shuffle_seed;
+	}
+	/**
+	 * Forces the seed for the next shuffle; for replaying a recorded game
+	 * (see GameReplay), where seeds come from the log
+	 * @param seed the shuffle seed
+	 */
+	protected void forceShuffleSeed(long seed){
+		forced_seed = seed;
+		seed_forced = true;
+	}
+	/**
+	 * The last card that was drawn
+	 * @return the card
+	 */
+	public int getLastDrawn(){
+		return last_drawn;
+	}
+	/**
+	 * Was the last card drawn from the discard pile?
+	 * @return true, if it came from the discard pile
+	 */
+	public boolean isLastFromDiscard(){
+		return last_from_discard;
+	}
 	
 	/**
 	 * Gets the total number of cards in the deck, or synonymously, 
@@ -277,6 +393,14 @@ public class Deck {
 	public int getMaxCard(){
 		return cards;
 	}
+	/**
+	 * How many draws and discards there have been; if this hasn't changed,
+	 * neither have the piles
+	 * @return the move count
+	 */
+	public int getMoves(){
+		return moves;
+	}
 	/**
 	 * How many turns have gone since the last call to deal();
 	 * @return 
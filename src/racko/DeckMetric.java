@@ -0,0 +1,55 @@
+package racko;
+
+/**
+ * Usability metric backed by the deck (see Rack.setLUSMetric)
+ * A card can only be used in a winning rack if there are enough cards to
+ * fill the slots around it; the default rules only check that there are
+ * enough card numbers, even if the other players are holding them. Slots
+ * can be filled with cards still left to draw (see Deck.countUnseen), or
+ * with cards that are already in those slots. Like Deck.getRealProbability,
+ * this knows where every card is
+ * @author isaac
+ */
+public class DeckMetric implements Rack.UsableMetric{
+	private final Deck deck;
+	private final int[] cards;
+	
+	/**
+	 * Creates a metric for a rack
+	 * @param g the rack's game
+	 * @param r the rack
+	 */
+	public DeckMetric(Game g, Rack r){
+		deck = g.deck;
+		cards = r.getCards();
+	}
+	/**
+	 * Cards that could fill a range of slots
+	 * @param lo the lower card
+	 * @param hi the higher card
+	 * @param from first slot
+	 * @param to last slot (exclusive)
+	 * @return number of cards strictly between lo and hi, that are left to draw or in those slots
+	 */
+	private int available(int lo, int hi, int from, int to){
+		int count = deck.countUnseen(lo, hi);
+		for (int i=from; i<to; i++){
+			if (cards[i] > lo && cards[i] < hi)
+				count++;
+		}
+		return count;
+	}
+
+	@Override
+	public boolean above(int card, int idx){
+		return available(card, deck.getMaxCard()+1, idx+1, cards.length) >= cards.length-idx-1;
+	}
+	@Override
+	public boolean below(int card, int idx){
+		return available(0, card, 0, idx) >= idx;
+	}
+	@Override
+	public boolean between(int card_hi, int idx_hi, int card_lo, int idx_lo){
+		return available(card_lo, card_hi, idx_lo+1, idx_hi) >= idx_hi-idx_lo-1;
+	}
+}
@@ -0,0 +1,141 @@
+package racko;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JDK Flight Recorder events for each phase of Game.play (see GameEvents)
+ * The event types are made through jdk.jfr.EventFactory, by reflection, so the
+ * project doesn't need jdk.jfr to build; they are only loaded once Game.events is
+ * on, and if the JVM doesn't have them (Java 8 and older), no events are emitted
+ * Record with: java -XX:StartFlightRecording=filename=racko.jfr ...
+ * @author isaac
+ */
+final class FlightRecorderEvents implements GameEvents {
+	//Event types (jdk.jfr.EventFactory); null if they couldn't be loaded
+	private static Object deal_type, turn_type, scoring_type;
+	private static Method new_event, begin_event, set_field, commit_event;
+	private static boolean loaded = false;
+	//Events in progress (jdk.jfr.Event)
+	private Object deal, turn, scoring;
+
+	private FlightRecorderEvents(){}
+
+	/**
+	 * Gets the events for a game, loading the event types the first time
+	 * @return Flight Recorder events, or NONE if they aren't available
+	 */
+	static synchronized GameEvents load(){
+		if (!loaded){
+			loaded = true;
+			try{
+				Class<?> factory = Class.forName("jdk.jfr.EventFactory"),
+					event = Class.forName("jdk.jfr.Event");
+				new_event = factory.getMethod("newEvent");
+				begin_event = event.getMethod("begin");
+				set_field = event.getMethod("set", int.class, Object.class);
+				commit_event = event.getMethod("commit");
+				deal_type = eventType("racko.Deal", "Deal", "Shuffling and dealing a new round",
+					int.class, "round", "Round",
+					int.class, "players", "Players",
+					int.class, "rack_size", "Rack Size"
+				);
+				turn_type = eventType("racko.Turn", "Turn", "A player's turn: drawing, deciding and discarding",
+					int.class, "round", "Round",
+					int.class, "player", "Player",
+					String.class, "name", "Player Name",
+					boolean.class, "won", "Won"
+				);
+				scoring_type = eventType("racko.Scoring", "Scoring", "Scoring a finished round",
+					int.class, "round", "Round",
+					int.class, "winner", "Winner",
+					boolean.class, "draw", "Draw",
+					boolean.class, "game_over", "Game Over"
+				);
+			} catch (ReflectiveOperationException | RuntimeException | LinkageError e){
+				System.out.println("Warning!!! Flight Recorder events aren't available: "+e);
+				deal_type = turn_type = scoring_type = null;
+			}
+		}
+		return deal_type == null ? GameEvents.NONE : new FlightRecorderEvents();
+	}
+	/**
+	 * Makes an event type in the "Racko" category
+	 * @param fields the type, name and label of each field, one after the other
+	 * @return the event factory
+	 */
+	private static Object eventType(String name, String label, String description, Object... fields) throws ReflectiveOperationException{
+		Class<?> element = Class.forName("jdk.jfr.AnnotationElement"),
+			descriptor = Class.forName("jdk.jfr.ValueDescriptor");
+		Constructor<?> annotate = element.getConstructor(Class.class, Object.class),
+			field = descriptor.getConstructor(Class.class, String.class, List.class);
+		Class<?> name_type = Class.forName("jdk.jfr.Name"),
+			label_type = Class.forName("jdk.jfr.Label");
+		List<Object> annotations = Arrays.asList(
+			annotate.newInstance(name_type, name),
+			annotate.newInstance(label_type, label),
+			annotate.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"Racko"}),
+			annotate.newInstance(Class.forName("jdk.jfr.Description"), description)
+		);
+		List<Object> values = new ArrayList<>();
+		for (int i=0; i<fields.length; i+=3){
+			List<Object> field_label = Arrays.asList(annotate.newInstance(label_type, fields[i+2]));
+			values.add(field.newInstance(fields[i], fields[i+1], field_label));
+		}
+		return Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class)
+			.invoke(null, annotations, values);
+	}
+
+	/**
+	 * Creates and begins an event
+	 */
+	private static Object begin(Object type){
+		Object event = invoke(new_event, type);
+		invoke(begin_event, event);
+		return event;
+	}
+	/**
+	 * Sets an event's fields, in order, and commits it
+	 */
+	private static void commit(Object event, Object... values){
+		for (int i=0; i<values.length; i++)
+			invoke(set_field, event, i, values[i]);
+		invoke(commit_event, event);
+	}
+	private static Object invoke(Method m, Object target, Object... args){
+		try{
+			return m.invoke(target, args);
+		} catch (IllegalAccessException | InvocationTargetException e){
+			throw new IllegalStateException("Could not emit Flight Recorder event", e);
+		}
+	}
+
+	@Override
+	public void beginDeal(){
+		deal = begin(deal_type);
+	}
+	@Override
+	public void endDeal(int round, int players, int rack_size){
+		commit(deal, round, players, rack_size);
+	}
+	@Override
+	public void beginTurn(){
+		turn = begin(turn_type);
+	}
+	@Override
+	public void endTurn(int round, int player, String name, boolean won){
+		commit(turn, round, player, name, won);
+	}
+	@Override
+	public void beginScoring(){
+		scoring = begin(scoring_type);
+	}
+	@Override
+	public void endScoring(int round, int winner, boolean draw, boolean game_over){
+		commit(scoring, round, winner, draw, game_over);
+	}
+}
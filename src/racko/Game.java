@@ -13,6 +13,8 @@ import interfaces.Player;
 public class Game {
 	//Shows rack output for each move
 	public static boolean verbose = false, spymode = false;
+	//Emits JDK Flight Recorder events for each deal, turn and scoring (see GameEvents)
+	public static boolean events = false;
 	
 	//Scoring constants
 	public static int
@@ -32,7 +34,13 @@ public class Game {
 	public final boolean bonus_mode;
 	public final Deck deck;
 	private final Player[] players;
-	private int active_player, move_limit;
+	//Root random number generator; every other generator is split from this one
+	private final SplitRandom rand;
+	private int active_player, move_limit, round_moves;
+	//Optional move log
+	private GameRecorder recorder = null;
+	//Zobrist keys for hashing racks, [(card*rack_size + slot)*2 + exposed]
+	final long[] zobrist;
 	
 	/**
 	 * Creates a new racko game
@@ -40,8 +48,9 @@ public class Game {
 	 * @param rackSize how large each rack should be
 	 * @param minStreak minimum streak to win the game (use 1 for standard rules)
 	 * @param bonusMode allow bonus points for streaks
+	 * @param seed root random seed
 	 */
-	private Game(Player[] playerList, int rackSize, int minStreak, boolean bonusMode){
+	private Game(Player[] playerList, int rackSize, int minStreak, boolean bonusMode, long seed){
 		player_count = playerList.length;
 		players = playerList;
 		rack_size = rackSize;
@@ -49,12 +58,30 @@ public class Game {
 		bonus_mode = bonusMode;
 		
 		//Create the deck; rack size and player count are validated here
-		deck = new Deck(players, rackSize);
+		rand = new SplitRandom(seed);
+		deck = new Deck(players, rackSize, rand.split());
 		card_count = deck.cards;
 		
 		//Create distribution objects
 		dist_skew = new DistributionSkew(rack_size, card_count, 1);
 		dist_flat = new DistributionFlat(rack_size, card_count);
+		
+		//Keys only need to be random, not seeded by the game; a separate
+		//generator keeps the game's random numbers the same
+		SplitRandom keys = new SplitRandom(card_count*31L + rack_size);
+		zobrist = new long[(card_count+1)*rack_size*2];
+		for (int i=0; i<zobrist.length; i++)
+			zobrist[i] = keys.nextLong();
+	}
+	/**
+	 * Creates a game without any players; it can't be played, but racks
+	 * can use it for the game settings (see BatchGame.RackPolicy)
+	 * @param players how many players the game would have
+	 * @param rackSize how large each rack should be
+	 * @return the game
+	 */
+	static Game createShell(int players, int rackSize){
+		return new Game(new Player[players], rackSize, 1, false, 0);
 	}
 	/**
 	 * Registers players to the game
@@ -74,10 +101,33 @@ public class Game {
 	 * @param bonusMode allow bonus points for streaks
 	 */
 	public static Game create(Player[] players, int rackSize, int minStreak, boolean bonusMode){
-		Game g = new Game(players, rackSize, minStreak, bonusMode);
+		return create(players, rackSize, minStreak, bonusMode, new SplitRandom().nextLong());
+	}
+	/**
+	 * Creates a new racko game and register players, using a fixed random seed;
+	 * the deck, each player's model and any new networks get their own random
+	 * streams split from this seed, so two games with the same seed and players
+	 * will play out exactly the same
+	 * @param players a list of players
+	 * @param rackSize how large each rack should be
+	 * @param minStreak minimum streak to win the game (use 1 for standard rules)
+	 * @param bonusMode allow bonus points for streaks
+	 * @param seed root random seed
+	 */
+	public static Game create(Player[] players, int rackSize, int minStreak, boolean bonusMode, long seed){
+		Game g = new Game(players, rackSize, minStreak, bonusMode, seed);
 		g.register();
 		return g;
 	}
+	/**
+	 * Creates a new random number generator, independent of every other
+	 * generator in this game; models should call this in register(), so
+	 * the streams they get are always the same for a given seed
+	 * @return a new random number generator
+	 */
+	public SplitRandom split(){
+		return rand.split();
+	}
 	/**
 	 * Register a gui for callbacks
 	 * @param gui 
@@ -88,8 +138,18 @@ public class Game {
 	}
 	
 	/**
-	 * Limits the number of moves in a game before calling a draw
-	 * @param limit move limit; use 0 for unlimited
+	 * Records every move to a binary log; the recorder isn't closed when
+	 * the game is finished, so it can record any number of games
+	 * @param r the recorder; null to stop recording
+	 */
+	public void record(GameRecorder r){
+		recorder = r;
+		deck.recorder = r;
+	}
+	
+	/**
+	 * Limits the number of moves in a round before calling a draw
+	 * @param limit move limit (counting every player's moves); use 0 for unlimited
 	 */
 	public void limitMoves(int limit){
 		move_limit = limit;
@@ -107,14 +167,25 @@ public class Game {
 		}
 		if (gui != null)
 			gui.beginGame();
+		if (recorder != null)
+			recorder.beginGame();
+		
+		GameEvents log = events ? FlightRecorderEvents.load() : GameEvents.NONE;
 		
 		//Outer loop sets up games for each new round
+		int round = 0;
 		while (true){
 			//Deal out a new deck; setup variables for the game loop
+			round++;
+			log.beginDeal();
 			deck.deal();
+			log.endDeal(round, player_count, rack_size);
 			active_player = start_player-1;
+			round_moves = 0;
 			if (gui != null)
 				gui.beginRound();
+			if (recorder != null)
+				recorder.beginRound(start_player, deck.getShuffleSeed(), deck.peek(true), players);
 			
 			//Inner loop goes through each player, starting with 0
 			while (true){
@@ -124,11 +195,17 @@ public class Game {
 				Rack cur_rack = cur_player.rack;
 				if (gui != null)
 					gui.turn(cur_player, active_player, cur_rack);
-				deck.discard(cur_player.play());
+				log.beginTurn();
+				int discard = cur_player.play();
+				deck.discard(discard);
+				if (recorder != null)
+					recorder.move(active_player, deck.isLastFromDiscard(), deck.getLastDrawn(), cur_rack.getLastSwap(), discard);
 				cur_player.STAT_allmoves++;
+				round_moves++;
 
 				//Check if this player has won
 				boolean won = cur_rack.isSorted();
+				log.endTurn(round, active_player, cur_player.name, won);
 				
 				//Show output for human player
 				if (Game.verbose && !(cur_player instanceof PlayerConsole)){
@@ -136,11 +213,13 @@ public class Game {
 					System.out.println("COMPUTER-P"+cur_player.playerNumber+": "+spy);
 				}
 
-				//If they haven't won, check for a draw
+				//If they haven't won, check for a draw; this only depends on the
+				//current round, so parallel games (see client.Tournament) agree
 				int lowest_score = -1, lowest_score_player = 0;
-				boolean draw = move_limit > 0 && cur_player.STAT_allmoves >= move_limit && !won;
+				boolean draw = move_limit > 0 && round_moves >= move_limit && !won;
 				if (won || draw){
 					if (draw || min_streak < 2 || cur_rack.maxStreak() >= min_streak){
+						log.beginScoring();
 						//We have a winner
 						if (won){
 							cur_player.STAT_wins++;
@@ -172,6 +251,7 @@ public class Game {
 							gui.scoreRound(won ? cur_player : null, won ? active_player : 0);
 						//No one has reached "score_win" points; play next round
 						if (max_score == 0){
+							log.endScoring(round, won ? active_player : -1, draw, false);
 							start_player = lowest_score_player;
 							break;
 						}
@@ -181,6 +261,7 @@ public class Game {
 								players[i].scoreGame(i == max_idx, players[i].score);
 							if (gui != null)
 								gui.scoreGame(players[max_idx], max_idx);
+							log.endScoring(round, won ? active_player : -1, draw, true);
 							return;
 						}
 					}
@@ -189,6 +270,15 @@ public class Game {
 		}
 	}
 	
+	/**
+	 * Gets one of the players in this game
+	 * @param i the player's seat
+	 * @return the player
+	 */
+	public Player getPlayer(int i){
+		return players[i];
+	}
+	
 	/**
 	 * Calculates the maximum number of points a player
 	 * could earn in a round
@@ -0,0 +1,64 @@
+package racko;
+
+/**
+ * Events for each phase of Game.play: dealing, each turn, and scoring
+ * Game uses NONE unless Game.events is on, in which case it loads the JDK
+ * Flight Recorder events (see FlightRecorderEvents); this interface keeps
+ * jdk.jfr out of the build, so the engine still builds and runs on Java 7/8
+ * @author isaac
+ */
+interface GameEvents {
+	/**
+	 * Ignores every event
+	 */
+	GameEvents NONE = new GameEvents(){
+		@Override
+		public void beginDeal(){}
+		@Override
+		public void endDeal(int round, int players, int rack_size){}
+		@Override
+		public void beginTurn(){}
+		@Override
+		public void endTurn(int round, int player, String name, boolean won){}
+		@Override
+		public void beginScoring(){}
+		@Override
+		public void endScoring(int round, int winner, boolean draw, boolean game_over){}
+	};
+
+	/**
+	 * A new round is about to be shuffled and dealt
+	 */
+	public void beginDeal();
+	/**
+	 * The round has been dealt
+	 * @param round the round number
+	 * @param players number of players
+	 * @param rack_size the rack size
+	 */
+	public void endDeal(int round, int players, int rack_size);
+	/**
+	 * A player is about to take their turn
+	 */
+	public void beginTurn();
+	/**
+	 * The player has drawn, decided and discarded
+	 * @param round the round number
+	 * @param player the player's seat
+	 * @param name the player's name
+	 * @param won true, if the player's rack is now sorted
+	 */
+	public void endTurn(int round, int player, String name, boolean won);
+	/**
+	 * A finished round is about to be scored
+	 */
+	public void beginScoring();
+	/**
+	 * The round has been scored
+	 * @param round the round number
+	 * @param winner the winner's seat; -1 for a draw
+	 * @param draw true, if the round hit the move limit
+	 * @param game_over true, if the round ended the game
+	 */
+	public void endScoring(int round, int winner, boolean draw, boolean game_over);
+}
@@ -0,0 +1,267 @@
+package racko;
+
+import interfaces.Player;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Records every move of a game to a compact binary log (see Game.record)
+ * The log is append-only; it is written through a memory mapped window
+ * that slides along the file, so recording is little more than a few
+ * byte writes per move. The next window is mapped ahead of time, on a
+ * background thread that also touches each of its pages, so the page
+ * faults for new parts of the file don't slow down the game. All values
+ * are little-endian.
+ *
+ * File header (16 bytes):
+ *	int magic ("RKLG"), short version, byte players, byte rack_size,
+ *	byte min_streak, byte bonus_mode, 6 bytes padding
+ * Round header (TYPE_ROUND, 17 + players*rack_size bytes):
+ *	byte type, byte first player, short round, int game, long shuffle seed,
+ *	byte top of the discard pile, then each player's rack, slot 0 first
+ * Move (TYPE_MOVE, 12 bytes):
+ *	byte type, byte player, byte source (1 = discard pile, 0 = draw pile),
+ *	byte card drawn, byte slot (-1 if the drawn card was discarded),
+ *	byte card discarded, short round, int game
+ * Shuffle (TYPE_SHUFFLE, 16 bytes):
+ *	byte type, byte padding, short round, int game, long shuffle seed
+ *	the draw pile ran out; the deck reshuffled the discard pile with this
+ *	seed, when discarding the card in the move record that follows
+ *
+ * Games and rounds are numbered from zero; a new game starts whenever
+ * a round header has round 0. Cards are stored unsigned.
+ * Not thread safe; use one recorder per game
+ * @author isaac
+ */
+public class GameRecorder {
+	public static final int MAGIC = 0x474c4b52, VERSION = 1, HEADER_SIZE = 16;
+	public static final byte TYPE_ROUND = 1, TYPE_MOVE = 2, TYPE_SHUFFLE = 3;
+	public static final int MOVE_SIZE = 12, SHUFFLE_SIZE = 16;
+	//Size of the memory mapped window; windows overlap by a page, so a record
+	//that doesn't fit at the end of one window starts inside the next
+	private static final int CHUNK = 1 << 26, PAGE = 4096;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int players, rack_size;
+	private MappedByteBuffer buf;
+	//File offset of the mapped window
+	private long base;
+	//The next window, being mapped on a background thread, and its file offset
+	private final ExecutorService mapper;
+	private Future<MappedByteBuffer> next;
+	private long next_base;
+	private int game = -1, round;
+
+	/**
+	 * Creates a new log file, overwriting any existing one
+	 * @param filename the log file
+	 * @param g the game that will be recorded; only its settings are saved,
+	 * use Game.record to start recording
+	 * @throws IOException if the file couldn't be created
+	 */
+	public GameRecorder(String filename, Game g) throws IOException{
+		players = g.player_count;
+		rack_size = g.rack_size;
+		file = new RandomAccessFile(filename, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		mapper = Executors.newSingleThreadExecutor(new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "GameRecorder");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		base = 0;
+		slide(HEADER_SIZE);
+		buf.putInt(MAGIC);
+		buf.putShort((short) VERSION);
+		buf.put((byte) players);
+		buf.put((byte) rack_size);
+		buf.put((byte) g.min_streak);
+		buf.put((byte) (g.bonus_mode ? 1 : 0));
+		buf.position(HEADER_SIZE);
+	}
+	/**
+	 * Makes room for a record; kept small, so it's inlined into each move
+	 * @param bytes size of the record
+	 */
+	private void ensure(int bytes){
+		if (buf.remaining() < bytes)
+			advance(bytes);
+	}
+	/**
+	 * Moves on to the next window
+	 * @param bytes size of the record that didn't fit
+	 */
+	private void advance(int bytes){
+		try{
+			slide(bytes);
+		} catch (IOException e){
+			throw new RuntimeException("Could not write game log", e);
+		}
+	}
+	/**
+	 * Slides the window to the end of the log, using the window mapped ahead
+	 * if the record fits in it, and starts mapping the one after
+	 * @param bytes size of the record
+	 */
+	private void slide(int bytes) throws IOException{
+		long offset = buf == null ? 0 : base + buf.position();
+		MappedByteBuffer window = awaitNext();
+		//Huge records may not fit in the window that was mapped ahead
+		if (window != null && (offset < next_base || offset+bytes > next_base+window.capacity()))
+			window = null;
+		if (window == null){
+			base = offset;
+			window = map(offset, Math.max(CHUNK, bytes));
+		}
+		else{
+			base = next_base;
+			window.position((int) (offset-base));
+		}
+		buf = window;
+		//Start on the window after this one
+		final long ahead = base+buf.capacity()-PAGE;
+		next_base = ahead;
+		next = mapper.submit(new Callable<MappedByteBuffer>(){
+			@Override
+			public MappedByteBuffer call() throws IOException{
+				MappedByteBuffer window = map(ahead, CHUNK);
+				//The first page is shared with the window being written, so it is left alone
+				for (int i=PAGE; i<CHUNK; i+=PAGE)
+					window.put(i, (byte) 0);
+				return window;
+			}
+		});
+	}
+	private MappedByteBuffer map(long offset, int size) throws IOException{
+		MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+		window.order(ByteOrder.LITTLE_ENDIAN);
+		return window;
+	}
+	/**
+	 * Waits for the window that is being mapped ahead
+	 * @return the window, or null if there isn't one
+	 */
+	private MappedByteBuffer awaitNext() throws IOException{
+		if (next == null)
+			return null;
+		Future<MappedByteBuffer> f = next;
+		next = null;
+		boolean interrupted = false;
+		try{
+			while (true){
+				try{
+					return f.get();
+				} catch (InterruptedException e){
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e){
+			throw new IOException("Could not map game log", e.getCause());
+		} finally{
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Starts a new game
+	 */
+	protected void beginGame(){
+		game++;
+		round = -1;
+	}
+	/**
+	 * Records the round header, after the cards have been dealt
+	 * @param first the player that goes first
+	 * @param seed the seed used to shuffle the deck
+	 * @param discard the top of the discard pile
+	 * @param list the players, to get their racks
+	 */
+	protected void beginRound(int first, long seed, int discard, Player[] list){
+		round++;
+		ensure(17 + players*rack_size);
+		buf.put(TYPE_ROUND);
+		buf.put((byte) first);
+		buf.putShort((short) round);
+		buf.putInt(game);
+		buf.putLong(seed);
+		buf.put((byte) discard);
+		for (Player p: list){
+			int[] cards = p.rack.getCards();
+			for (int i=0; i<rack_size; i++)
+				buf.put((byte) cards[i]);
+		}
+	}
+	/**
+	 * Records a move
+	 * @param player the player that moved
+	 * @param fromDiscard was the card drawn from the discard pile
+	 * @param drawn the card that was drawn
+	 * @param slot where the card was placed; ignored if it was discarded
+	 * @param discard the card that was discarded
+	 */
+	protected void move(int player, boolean fromDiscard, int drawn, int slot, int discard){
+		ensure(MOVE_SIZE);
+		//Packed into a single long, since the buffer is little-endian
+		long record = TYPE_MOVE
+			| (long) player << 8
+			| (fromDiscard ? 1L : 0L) << 16
+			| (long) (drawn & 0xff) << 24
+			| (long) ((drawn == discard ? -1 : slot) & 0xff) << 32
+			| (long) (discard & 0xff) << 40
+			| (long) (round & 0xffff) << 48;
+		buf.putLong(record);
+		buf.putInt(game);
+	}
+	/**
+	 * Records a reshuffle of the discard pile
+	 * @param seed the seed used to shuffle
+	 */
+	protected void shuffle(long seed){
+		ensure(SHUFFLE_SIZE);
+		buf.put(TYPE_SHUFFLE);
+		buf.put((byte) 0);
+		buf.putShort((short) round);
+		buf.putInt(game);
+		buf.putLong(seed);
+	}
+
+	/**
+	 * How many bytes have been recorded
+	 * @return size of the log
+	 */
+	public long size(){
+		return base + buf.position();
+	}
+	/**
+	 * Finishes the log; trims the unused part of the last window
+	 * @throws IOException if the file couldn't be trimmed
+	 */
+	public void close() throws IOException{
+		long size = size();
+		buf.force();
+		buf = null;
+		try{
+			//The window mapped ahead grew the file; it's trimmed along with the rest
+			awaitNext();
+			channel.truncate(size);
+		} finally{
+			mapper.shutdown();
+			file.close();
+		}
+	}
+}
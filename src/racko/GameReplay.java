@@ -0,0 +1,323 @@
+package racko;
+
+import interfaces.Model;
+import interfaces.Player;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replays a game log (see GameRecorder), re-creating the exact Deck and Rack
+ * state for every recorded move, without running the original players
+ * At each move, candidate models are asked what they would have done, and
+ * their decisions are compared to the recorded ones:
+ *	agreement: how often the candidate picks the same pile/slot
+ *	deltas: LUS length and points, after the candidate's placement, minus
+ *		the ones after the recorded placement; the candidate always places
+ *		the card that was actually drawn, even if it would have drawn from
+ *		the other pile
+ * The log is streamed through a memory mapped window, so it can be any size
+ * @author isaac
+ */
+public class GameReplay {
+	//Size of the memory mapped window
+	private static final int CHUNK = 1 << 24;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long file_size;
+	private MappedByteBuffer buf;
+	//File offset of the mapped window
+	private long base;
+	//Game settings from the log
+	public final int players, rack_size, min_streak;
+	public final boolean bonus_mode;
+	private final Game game;
+	private final ReplayPlayer[] seats;
+	private final int[] turns, hand;
+	//Statistics
+	private long STAT_positions, STAT_draw_agree, STAT_play_agree, STAT_move_agree,
+		STAT_lus_delta, STAT_score_delta, STAT_rounds, STAT_moves;
+
+	/**
+	 * Seats a candidate model in the replayed game
+	 */
+	private static class ReplayPlayer extends Player{
+		private Model model;
+
+		public ReplayPlayer(){
+			super("Replay");
+		}
+		/**
+		 * Replayed games are stepped through by GameReplay, never Game.play, so this
+		 * is only reached by mistake
+		 */
+		@Override
+		public int play(){
+			throw new IllegalStateException("Replayed games can't be played; use GameReplay.replay");
+		}
+		@Override
+		public void beginRound(){
+			if (model != null)
+				model.beginRound();
+		}
+	}
+
+	/**
+	 * Opens a game log for replaying
+	 * @param filename the log file
+	 * @throws IOException if the file couldn't be read, or isn't a game log
+	 */
+	public GameReplay(String filename) throws IOException{
+		file = new RandomAccessFile(filename, "r");
+		channel = file.getChannel();
+		file_size = channel.size();
+		base = 0;
+		if (!ensure(GameRecorder.HEADER_SIZE) || buf.getInt() != GameRecorder.MAGIC){
+			file.close();
+			throw new IOException("Not a game log: "+filename);
+		}
+		int version = buf.getShort();
+		if (version != GameRecorder.VERSION){
+			file.close();
+			throw new IOException("Unsupported game log version: "+version);
+		}
+		players = buf.get();
+		rack_size = buf.get();
+		min_streak = buf.get();
+		bonus_mode = buf.get() != 0;
+		buf.position(GameRecorder.HEADER_SIZE);
+
+		seats = new ReplayPlayer[players];
+		for (int i=0; i<players; i++)
+			seats[i] = new ReplayPlayer();
+		game = Game.create(seats, rack_size, min_streak, bonus_mode);
+		turns = new int[players];
+		hand = new int[rack_size];
+	}
+	/**
+	 * Makes sure there are enough bytes in the window for a record
+	 * @param bytes size of the record
+	 * @return false, if the end of the log has been reached
+	 */
+	private boolean ensure(int bytes) throws IOException{
+		if (buf != null){
+			if (buf.remaining() >= bytes)
+				return true;
+			base += buf.position();
+		}
+		if (base + bytes > file_size)
+			return false;
+		buf = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(CHUNK, file_size-base));
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		return true;
+	}
+
+	/**
+	 * The game the log is replayed in; candidate models should be
+	 * registered with this game (see replay)
+	 * @return the game
+	 */
+	public Game getGame(){
+		return game;
+	}
+	/**
+	 * Replays the rest of the log
+	 * @param models candidate model for each seat; use null to skip a seat;
+	 * models are registered with the replay game and the seat's rack
+	 * @throws IOException if the log couldn't be read or is corrupt
+	 */
+	public void replay(Model[] models) throws IOException{
+		assert(models.length == players);
+		for (int i=0; i<players; i++){
+			seats[i].model = models[i];
+			if (models[i] != null && !models[i].register(game, seats[i].rack))
+				throw new IllegalArgumentException("Model "+models[i]+" doesn't support this game");
+		}
+		Deck deck = game.deck;
+		boolean in_round = false;
+		while (ensure(1)){
+			byte type = buf.get(buf.position());
+			switch (type){
+				case GameRecorder.TYPE_ROUND:{
+					if (!ensure(17 + players*rack_size))
+						throw new IOException("Truncated game log");
+					buf.get();
+					buf.get();		//first player
+					buf.getShort();	//round
+					buf.getInt();	//game
+					deck.forceShuffleSeed(buf.getLong());
+					int discard = buf.get() & 0xff;
+					deck.deal();
+					//The deal must match the log, or every move after it would be wrong
+					boolean valid = deck.peek(true) == discard;
+					for (int p=0; p<players; p++){
+						for (int i=0; i<rack_size; i++){
+							if (seats[p].rack.getCardAt(i) != (buf.get() & 0xff))
+								valid = false;
+						}
+						turns[p] = 0;
+					}
+					if (!valid)
+						throw new IOException("Game log doesn't match the replayed deal");
+					in_round = true;
+					STAT_rounds++;
+					break;
+				}
+				case GameRecorder.TYPE_SHUFFLE:{
+					if (!ensure(GameRecorder.SHUFFLE_SIZE))
+						throw new IOException("Truncated game log");
+					buf.getLong();
+					deck.forceShuffleSeed(buf.getLong());
+					break;
+				}
+				case GameRecorder.TYPE_MOVE:{
+					if (!ensure(GameRecorder.MOVE_SIZE) || !in_round)
+						throw new IOException("Corrupt game log");
+					buf.get();
+					int player = buf.get();
+					boolean fromDiscard = buf.get() != 0;
+					int drawn = buf.get() & 0xff,
+						slot = buf.get(),
+						discard = buf.get() & 0xff;
+					buf.getShort();
+					buf.getInt();
+					move(player, fromDiscard, drawn, slot, discard);
+					break;
+				}
+				default:
+					throw new IOException("Corrupt game log; unknown record type "+type);
+			}
+		}
+	}
+	/**
+	 * Asks the candidate what it would do, then makes the recorded move
+	 */
+	private void move(int player, boolean fromDiscard, int drawn, int slot, int discard) throws IOException{
+		STAT_moves++;
+		Model model = seats[player].model;
+		Rack rack = seats[player].rack;
+		Deck deck = game.deck;
+		int turn = ++turns[player];
+
+		boolean draw_agree = false;
+		int pos = slot;
+		if (model != null)
+			draw_agree = model.decideDraw(turn) == fromDiscard;
+		if (deck.draw(fromDiscard) != drawn)
+			throw new IOException("Game log doesn't match the replayed deck");
+		if (model != null){
+			pos = model.decidePlay(turn, drawn, fromDiscard);
+			//Score the candidate's placement
+			int lus, score;
+			if (pos == slot){
+				lus = 0;
+				score = 0;
+			}
+			else{
+				if (pos != -1){
+					int old = rack.swap(drawn, pos);
+					lus = rack.getLUSLength();
+					score = rack.scorePoints(bonus_mode);
+					rack.swap(old, pos);
+				}
+				else{
+					lus = rack.getLUSLength();
+					score = rack.scorePoints(bonus_mode);
+				}
+			}
+			STAT_positions++;
+			if (draw_agree)
+				STAT_draw_agree++;
+			if (pos == slot){
+				STAT_play_agree++;
+				if (draw_agree)
+					STAT_move_agree++;
+			}
+			//Make the recorded move, and compare
+			if (slot != -1)
+				rack.swap(drawn, slot, fromDiscard);
+			if (pos != slot){
+				STAT_lus_delta += lus - rack.getLUSLength();
+				STAT_score_delta += score - rack.scorePoints(bonus_mode);
+			}
+		}
+		else if (slot != -1)
+			rack.swap(drawn, slot, fromDiscard);
+		deck.discard(discard);
+	}
+	/**
+	 * Closes the log
+	 * @throws IOException if the file couldn't be closed
+	 */
+	public void close() throws IOException{
+		buf = null;
+		file.close();
+	}
+
+	//STATISTICS
+	/**
+	 * @return rounds replayed
+	 */
+	public long getRounds(){
+		return STAT_rounds;
+	}
+	/**
+	 * @return moves replayed, including seats without a candidate
+	 */
+	public long getMoves(){
+		return STAT_moves;
+	}
+	/**
+	 * @return decisions the candidates were asked to make
+	 */
+	public long getPositions(){
+		return STAT_positions;
+	}
+	/**
+	 * @return fraction of positions where the candidate drew from the same pile
+	 */
+	public double getDrawAgreement(){
+		return STAT_draw_agree / (double) STAT_positions;
+	}
+	/**
+	 * @return fraction of positions where the candidate placed the card
+	 * in the same slot (or also discarded it)
+	 */
+	public double getPlayAgreement(){
+		return STAT_play_agree / (double) STAT_positions;
+	}
+	/**
+	 * @return fraction of positions where both decisions agreed
+	 */
+	public double getMoveAgreement(){
+		return STAT_move_agree / (double) STAT_positions;
+	}
+	/**
+	 * @return average LUS length difference, candidate minus recorded
+	 */
+	public double getLUSDelta(){
+		return STAT_lus_delta / (double) STAT_positions;
+	}
+	/**
+	 * @return average points difference, candidate minus recorded
+	 */
+	public double getScoreDelta(){
+		return STAT_score_delta / (double) STAT_positions;
+	}
+
+	@Override
+	public String toString(){
+		return "Rounds: "+STAT_rounds+", moves: "+STAT_moves+", positions: "+STAT_positions+"\n"+
+			"\tDraw agreement:\t"+round(getDrawAgreement()*100)+"%\n"+
+			"\tPlay agreement:\t"+round(getPlayAgreement()*100)+"%\n"+
+			"\tMove agreement:\t"+round(getMoveAgreement()*100)+"%\n"+
+			"\tLUS delta:\t"+round(getLUSDelta())+"\n"+
+			"\tScore delta:\t"+round(getScoreDelta());
+	}
+	private static double round(double val){
+		return Math.round(val*1000)/1000.0;
+	}
+}
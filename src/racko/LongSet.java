@@ -0,0 +1,92 @@
+package racko;
+
+import java.util.Arrays;
+
+/**
+ * Set of longs, for removing duplicate sequences by their slot bitmasks
+ * (see Rack.getLUS and Rack.visitLUS)
+ * Open addressing with linear probing, so adding a value doesn't allocate
+ * (except to grow the table); clearing just starts a new generation, so
+ * it doesn't depend on how large the table has grown
+ * @author isaac
+ */
+final class LongSet {
+	private long[] keys;
+	//Entries are only in use if their generation is the current one
+	private int[] gens;
+	private int gen = 1, size = 0, mask;
+
+	/**
+	 * Creates an empty set
+	 * @param capacity number of values it can hold before growing
+	 */
+	public LongSet(int capacity){
+		int slots = Integer.highestOneBit(Math.max(capacity*2-1, 1)) << 1;
+		keys = new long[slots];
+		gens = new int[slots];
+		mask = slots-1;
+	}
+	/**
+	 * Entry a value starts probing from
+	 */
+	private static int index(long val, int mask){
+		val *= 0x9e3779b97f4a7c15L;
+		return (int) (val ^ (val >>> 32)) & mask;
+	}
+
+	/**
+	 * Adds a value to the set
+	 * @param val the value
+	 * @return true, if it wasn't already in the set
+	 */
+	public boolean add(long val){
+		int i = index(val, mask);
+		while (gens[i] == gen){
+			if (keys[i] == val)
+				return false;
+			i = (i+1) & mask;
+		}
+		keys[i] = val;
+		gens[i] = gen;
+		//Keep the table at most half full
+		if (++size*2 > keys.length)
+			grow();
+		return true;
+	}
+	/**
+	 * Doubles the table size, re-adding every value
+	 */
+	private void grow(){
+		long[] old_keys = keys;
+		int[] old_gens = gens;
+		keys = new long[old_keys.length*2];
+		gens = new int[keys.length];
+		mask = keys.length-1;
+		for (int j=0; j<old_keys.length; j++){
+			if (old_gens[j] != gen)
+				continue;
+			int i = index(old_keys[j], mask);
+			while (gens[i] == gen)
+				i = (i+1) & mask;
+			keys[i] = old_keys[j];
+			gens[i] = gen;
+		}
+	}
+	/**
+	 * Removes every value
+	 */
+	public void clear(){
+		size = 0;
+		//Generations only wrap around after billions of clears
+		if (++gen == 0){
+			Arrays.fill(gens, 0);
+			gen = 1;
+		}
+	}
+	/**
+	 * @return number of values in the set
+	 */
+	public int size(){
+		return size;
+	}
+}
@@ -3,7 +3,6 @@ package racko;
 import interfaces.Distribution;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 
 /**
  * Controls a Racko "rack" of cards
@@ -18,17 +17,63 @@ public class Rack {
 	private int exposed_count;
 	private final boolean[] exposed;
 	private final int[] cards;
-	//Longest usable sequence cache
+	//The rack's cards, for estimating probabilities (see Deck.getProbability)
+	final CardCounts card_counts;
+	//Slot of the last swap; for logging the moves (see GameRecorder)
+	private int last_swap = -1;
+	//Ordering of adjacent cards, kept up to date on every swap, so checking
+	//for a winner or scoring doesn't need to rescan the rack
+	//bit i of descent_bits: cards[i] < cards[i-1]
+	//bit i of link_bits: cards[i] == cards[i-1]+1 (streaks are runs of links)
+	private final long[] descent_bits, link_bits;
+	private int descents, max_streak;
+	private final int[] streaks;				//number of streaks, indexed by length
+	//Zobrist hashes, kept up to date on every swap; card_hash is just the
+	//arrangement of cards, and hash includes which ones are exposed
+	private final long[] zobrist;
+	private long hash, card_hash;
+	//Longest usable sequence caches; "lus" is for the current rack, and
+	//"lus_stash" for the rack before the last swap, so undoing a swap (e.g.
+	//a model trying out a move) just switches back to the old cache. Tree
+	//nodes and sequences are reused, so they don't allocate once warmed up
 	private UsableMetric lus_metric = null;
-	private LUSTree lus_cache_tree;
-	private ArrayList<LUS> lus_cache;
-	private boolean lus_cache_combos;
-	private int lus_max_length;
+	private LUSCache lus, lus_stash;
+	private int lus_stash_slot, lus_stash_card;	//the stash has this card in this slot
+	private final LUSTree[] lus_path;			//current path, when linearizing the tree
+	private final ArrayList<LUS>[] lus_pool;	//spare sequences, indexed by length
+	private int lus_empty_count;
+	//Streaming sequences to a visitor (see visitLUS); combinations are
+	//checked against lus_seen, so each is only visited once (getLUS uses it too)
+	private LUSVisitor lus_visitor;
+	private int lus_visit_count;
+	private LongSet lus_seen;
+	private final LUS[] lus_visit;				//sequence given by toLUS, indexed by length
+	//Bounded search for the best sequences (see getBestLUS); each partial
+	//sequence is a state, and states are kept in a heap, ordered by the
+	//longest sequence they could become
+	private final ArrayList<LUS> lus_best;
+	private final int[] lus_height;				//longest chain of tree nodes from each slot
+	private int[] search_node, search_parent, search_length, search_bound, search_heap;
+	private int search_states, search_heap_size;
+	private double[] search_ranks;
+	//LUS cache statistics
+	public long
+		STAT_lus_queries,	//calls to getLUS/getLUSLength/getLongestLUS
+		STAT_lus_hits,		//queries that didn't need to recompute anything
+		STAT_lus_restores,	//swaps that undid the last swap, restoring the old cache
+		STAT_lus_rebuilds,	//queries that had to recompute
+		STAT_lus_slots,		//slots recomputed by those queries
+		STAT_lus_truncated,	//bounded searches that ran out of budget (see getBestLUS)
+		STAT_lus_nodes,		//cards inserted into the LUS tree, including pruned ones
+		STAT_lus_pruned;	//cards or branches the usability metric cut from the tree
 	//Probability cache [rack_size][2], [0] = Above, [1] = Below
 	private final double[][] prob_cache;
 	private final boolean[] prob_cache_dirty;
 	private boolean prob_cache_actual;
-	private int prob_cache_memlimit, prob_cache_turn;
+	private boolean prob_cache_changed;			//cards have changed; estimates depend on every card in the rack
+	private int prob_cache_memlimit, prob_cache_moves;
+	//Scratch space for evaluating every swap at once (see evaluateSwaps)
+	private final int[] swap_up, swap_down, swap_left, swap_critical, swap_tree;
 	
 	/**
 	 * Initializes a rack
@@ -39,8 +84,29 @@ public class Rack {
 		exposed_count = 0;
 		exposed = new boolean[size];
 		cards = new int[size];
-		lus_cache = new ArrayList();
+		card_counts = new CardCounts(g.card_count);
+		descent_bits = new long[(size+63)/64];
+		link_bits = new long[descent_bits.length];
+		streaks = new int[size+1];
+		reorder();
+		//Games only have keys for racks of their own size
+		zobrist = size == g.rack_size ? g.zobrist : null;
+		rehash();
+		lus = new LUSCache(size);
+		lus_stash = new LUSCache(size);
+		lus_path = new LUSTree[size];
+		lus_pool = new ArrayList[size+1];
+		for (int i=0; i<=size; i++)
+			lus_pool[i] = new ArrayList();
+		lus_visit = new LUS[size+1];
+		lus_best = new ArrayList();
+		lus_height = new int[size];
 		prob_cache = new double[size][2];
+		swap_up = new int[size];
+		swap_down = new int[size];
+		swap_left = new int[size];
+		swap_critical = new int[size+1];
+		swap_tree = new int[Math.max(g.card_count-size+1, 0)+1];
 		prob_cache_dirty = new boolean[size];
 	}
 	
@@ -51,13 +117,21 @@ public class Rack {
 	public void deal(int[] cards){
 		assert(cards.length == this.cards.length);
 		System.arraycopy(cards, 0, this.cards, 0, cards.length);
+		card_counts.reset(cards, cards.length);
+		reorder();
 		//at start of game, all cards are secret
 		exposed_count = 0;
 		Arrays.fill(exposed, false);
+		last_swap = -1;
+		rehash();
 		
 		//Dirty caches
-		lus_cache.clear();
+		lus.invalidate(0);
+		lus_stash.invalidate(0);
+		lus_stash_slot = 0;
+		lus_stash_card = 0;
 		Arrays.fill(prob_cache_dirty, true);
+		prob_cache_changed = true;
 	}
 	/**
 	 * Swaps a drawn card with one in the rack
@@ -70,14 +144,42 @@ public class Rack {
 	public int swap(int card, int position, boolean fromDiscard){
 		assert(position >= 0 && position < cards.length);
 		int old = cards[position];
+		//Only the streaks next to this slot can change
+		countStreaks(position, -1);
 		cards[position] = card;
+		card_counts.remove(old);
+		card_counts.add(card);
+		if (position > 0)
+			order(position);
+		if (position+1 < cards.length)
+			order(position+1);
+		countStreaks(position, 1);
+		while (streaks[max_streak] == 0)
+			max_streak--;
 		if (exposed[position] != fromDiscard)
 			exposed_count += fromDiscard ? 1 : -1;
+		if (zobrist != null){
+			card_hash ^= zobrist[key(old, position, false)] ^ zobrist[key(card, position, false)];
+			hash ^= zobrist[key(old, position, exposed[position])] ^ zobrist[key(card, position, fromDiscard)];
+		}
 		exposed[position] = fromDiscard;
+		last_swap = position;
+		
+		//Switch to the stashed LUS cache; if this undoes the last swap, it
+		//matches the rack again, otherwise it differs in this slot and the
+		//last swap's slot, so everything after those needs recomputing
+		LUSCache stash = lus_stash;
+		lus_stash = lus;
+		lus = stash;
+		if (position == lus_stash_slot && card == lus_stash_card)
+			STAT_lus_restores++;
+		else lus.invalidate(Math.min(position, lus_stash_slot));
+		lus_stash_slot = position;
+		lus_stash_card = old;
 		
 		//Dirty caches
-		lus_cache.clear();
 		prob_cache_dirty[position] = true;
+		prob_cache_changed = true;
 		return old;
 	}
 	/**
@@ -91,16 +193,148 @@ public class Rack {
 		return swap(card, position, exposed[position]);
 	}
 	
+	/**
+	 * Recomputes the Zobrist hashes
+	 */
+	private void rehash(){
+		hash = card_hash = 0;
+		if (zobrist == null)
+			return;
+		for (int i=0; i<cards.length; i++){
+			card_hash ^= zobrist[key(cards[i], i, false)];
+			hash ^= zobrist[key(cards[i], i, exposed[i])];
+		}
+	}
+	/**
+	 * Index of the Zobrist key for a card in a slot
+	 */
+	private int key(int card, int slot, boolean exposed){
+		return ((card*cards.length + slot) << 1) + (exposed ? 1 : 0);
+	}
+	/**
+	 * Hash of the rack's state, the cards and which of them are exposed;
+	 * different racks can have the same hash, so compare their cards too
+	 * before treating them as the same
+	 * @return the hash; 0 if the game isn't for racks of this size
+	 */
+	public long getHash(){
+		return hash;
+	}
+	/**
+	 * Hash of the arrangement of cards; racks with the same arrangement have
+	 * the same analytics, whether or not the cards are exposed; like getHash,
+	 * different arrangements can have the same hash
+	 * @return the hash; 0 if the game isn't for racks of this size
+	 */
+	public long getCardHash(){
+		return card_hash;
+	}
+	
+	/**
+	 * Slot of the last swap; after a move, this is where the drawn card was
+	 * placed, since models always undo any swaps they try out
+	 * @return the slot, or -1 if nothing has been swapped since the deal
+	 */
+	public int getLastSwap(){
+		return last_swap;
+	}
+	
+	/**
+	 * Recomputes the ordering of every pair of adjacent cards, and the streaks
+	 */
+	private void reorder(){
+		Arrays.fill(descent_bits, 0);
+		Arrays.fill(link_bits, 0);
+		Arrays.fill(streaks, 0);
+		descents = 0;
+		for (int i=1; i<cards.length; i++)
+			order(i);
+		max_streak = 0;
+		for (int i=0; i<cards.length; ){
+			int end = streakEnd(i), len = end-i+1;
+			streaks[len]++;
+			if (len > max_streak)
+				max_streak = len;
+			i = end+1;
+		}
+	}
+	/**
+	 * Updates the ordering of cards[i-1] and cards[i]
+	 * @param i the slot, greater than zero
+	 */
+	private void order(int i){
+		int w = i >>> 6;
+		long bit = 1L << i;
+		boolean descent = cards[i] < cards[i-1];
+		if (descent != ((descent_bits[w] & bit) != 0)){
+			descent_bits[w] ^= bit;
+			descents += descent ? 1 : -1;
+		}
+		if (cards[i] == cards[i-1]+1)
+			link_bits[w] |= bit;
+		else link_bits[w] &= ~bit;
+	}
+	/**
+	 * Adds or removes the streaks that touch a slot or its neighbors
+	 * @param slot the slot
+	 * @param count 1 to add the streaks, -1 to remove them
+	 */
+	private void countStreaks(int slot, int count){
+		int i = streakStart(slot == 0 ? 0 : slot-1),
+			last = Math.min(slot+1, cards.length-1);
+		while (i <= last){
+			int end = streakEnd(i), len = end-i+1;
+			streaks[len] += count;
+			if (len > max_streak)
+				max_streak = len;
+			i = end+1;
+		}
+	}
+	/**
+	 * First slot of the streak a slot is in
+	 */
+	private int streakStart(int i){
+		int w = i >>> 6;
+		//Slot 0 is never linked, so this always finds a slot
+		long unlinked = ~link_bits[w] & (-1L >>> (63 - (i & 63)));
+		while (unlinked == 0)
+			unlinked = ~link_bits[--w];
+		return (w << 6) + 63 - Long.numberOfLeadingZeros(unlinked);
+	}
+	/**
+	 * Last slot of the streak a slot is in
+	 */
+	private int streakEnd(int i){
+		int j = i+1;
+		if (j >= cards.length)
+			return cards.length-1;
+		int w = j >>> 6;
+		long unlinked = ~link_bits[w] & (-1L << j);
+		while (unlinked == 0){
+			if (++w == link_bits.length)
+				return cards.length-1;
+			unlinked = ~link_bits[w];
+		}
+		return Math.min((w << 6) + Long.numberOfTrailingZeros(unlinked), cards.length) - 1;
+	}
+	/**
+	 * Number of cards at the start of the rack that are in order
+	 * @return the length of the sorted prefix; the rack size, if it is sorted
+	 */
+	public int sortedPrefix(){
+		for (int w=0; w<descent_bits.length; w++){
+			if (descent_bits[w] != 0)
+				return (w << 6) + Long.numberOfTrailingZeros(descent_bits[w]);
+		}
+		return cards.length;
+	}
+	
 	/**
 	 * Checks if the rack is sorted; standard criteria for winning
 	 * @return true, if the rack is sorted
 	 */
 	public boolean isSorted(){
-		for (int i=1; i<cards.length; i++){
-			if (cards[i] < cards[i-1])
-				return false;
-		}
-		return true;
+		return descents == 0;
 	}
 	/**
 	 * Gets the rack's maximum streak (num of consecutive cards); you can
@@ -108,16 +342,6 @@ public class Rack {
 	 * @return the maximum streak (will always be at least one)
 	 */
 	public int maxStreak(){
-		int max_streak = 1, cur_streak = 1;
-		for (int i=1; i<cards.length; i++){
-			if (cards[i] == cards[i-1]+1)
-				cur_streak++;
-			else{
-				if (cur_streak > max_streak)
-					max_streak = cur_streak;
-				cur_streak = 1;
-			}
-		}
 		return max_streak;
 	}
 	
@@ -189,37 +413,34 @@ public class Rack {
 	 * @return the score
 	 */
 	public int scorePoints(boolean bonusMode){
-		int score = Game.score_single,
-			bonus = 0, cur_streak = 1, max_streak = 1;
-		for (int i=1; i<cards.length; i++){
-			//Not all are sorted
-			if (cards[i] < cards[i-1])
-				return score;
-			else{
-				score += Game.score_single;
-				//Calculate streaks, for bonus mode/min-streak requirements
-				boolean is_streak = cards[i] == cards[i-1]+1;
-				if (is_streak){
-					cur_streak++;
-					if (cur_streak > max_streak)
-						max_streak = cur_streak;
-				}
-				//Calculate the actual bonus (when streak ends or end of rack)
-				if (!is_streak || i+1 == cards.length){
-					if (bonusMode && cur_streak >= Game.bonus_min){
-						if (cur_streak > Game.bonus_max)
-							cur_streak = Game.bonus_max;
-						cur_streak -= Game.bonus_min;
-						bonus += Math.pow(Game.score_bonus_fac, cur_streak)*Game.score_bonus;
-					}
-					cur_streak = 1;
-				}
+		//Not all are sorted; points for each card before the first descent
+		if (descents != 0)
+			return Game.score_single*sortedPrefix();
+		int score = Game.score_single*cards.length, bonus = 0;
+		//Bonus for each streak, using the streak counts
+		if (bonusMode){
+			for (int len=Math.max(Game.bonus_min, 1); len<=max_streak; len++){
+				if (streaks[len] != 0)
+					bonus += streaks[len]*streakBonus(len);
 			}
+			//A lone card at the end of the rack never gets a bonus
+			int last = cards.length-1;
+			if (Game.bonus_min <= 1 && (last == 0 || (link_bits[last >>> 6] & (1L << last)) == 0))
+				bonus -= streakBonus(1);
 		}
 		//This person is a winner! (bonus is 0, if bonusMode is false)
 		boolean winner = max_streak >= game.min_streak;
 		return score + (winner ? Game.score_all : 0) + bonus;
 	}
+	/**
+	 * Bonus points for a streak, when all the cards are in order
+	 * @param len length of the streak, at least Game.bonus_min
+	 */
+	private static int streakBonus(int len){
+		if (len > Game.bonus_max)
+			len = Game.bonus_max;
+		return (int) (Math.pow(Game.score_bonus_fac, len-Game.bonus_min)*Game.score_bonus);
+	}
 	/**
 	 * Gives distribution error of the rack
 	 * @param target target distribution
@@ -497,67 +718,633 @@ public class Rack {
 	 *  otherwise, if they are both usable, their lengths will be summed
 	 * 
 	 * @param use_combos include all combinations of sequences as well
-	 * @return a list of usable sequences
+	 * @return a list of usable sequences; the list and its sequences are
+	 * reused, so they are only valid until the rack changes
 	 */
 	public ArrayList<LUS> getLUS(boolean use_combos){
-		boolean reload_all = lus_cache.isEmpty();
-		//Since this is like an n^2 algorithm, we cache the results
-		if (reload_all){
-			//Get a tree of all possible long, usable, ascending sequences
-			lus_cache_tree = new LUSTree(0, 0, game.card_count, game.rack_size);
-			for (int i=0; i<cards.length; i++)
-				lus_cache_tree.insert(new LUSTree(cards[i], i, game.card_count, game.rack_size));
+		STAT_lus_queries++;
+		LUSCache c = lus;
+		checkMetric(c);
+		if (!c.list_dirty && c.list_combos == use_combos){
+			STAT_lus_hits++;
+			return c.list;
 		}
+		c.list_dirty = false;
+		c.list_combos = use_combos;
+		ArrayList<LUS> list = c.list;
+		//Recycle the old sequences
+		for (int i=0, l=list.size(); i<l; i++){
+			LUS seq = list.get(i);
+			lus_pool[seq.cards.length].add(seq);
+		}
+		list.clear();
 		
-		//Convert the tree to a set of sequence arrays
-		if (reload_all || lus_cache_combos != use_combos){
-			lus_cache_combos = use_combos;
-			lus_cache = lus_cache_tree.linearize(use_combos);
-			
-			//Remove duplicates, if needed (don't no a better way to do this)
-			if (use_combos){
-				lus_max_length = 0;
-				HashSet<String> hash = new HashSet();
-				ArrayList<LUS> seq_new = new ArrayList();
-				for (LUS seq: lus_cache){
-					if (hash.add(Arrays.toString(seq.cards))){
-						seq_new.add(seq);
-						if (seq.cards.length > lus_max_length)
-							lus_max_length = seq.cards.length;
-					}
+		STAT_lus_rebuilds++;
+		//Since this is like an n^2 algorithm, we cache the results; only
+		//cards after the first changed slot are inserted again
+		if (c.tree_valid < cards.length){
+			STAT_lus_slots += cards.length-c.tree_valid;
+			c.rebuildTree();
+		}
+		
+		//Convert the tree to a set of sequence arrays; combinations can give
+		//the same sequence more than once, so they're checked against lus_seen
+		if (use_combos && cards.length <= 64){
+			if (lus_seen == null)
+				lus_seen = new LongSet(64);
+			lus_seen.clear();
+		}
+		lus_empty_count = 0;
+		linearize(c.tree, 0, use_combos);
+		//Empty sequences are only kept if there are no others
+		if (list.isEmpty() && lus_empty_count == 1)
+			list.add(newLUS(0));
+		
+		//Slots don't fit in a bitmask for larger racks, so duplicates are
+		//removed by comparing against every sequence kept so far instead
+		if (use_combos && cards.length > 64){
+			int kept = 0;
+			for (int i=0, l=list.size(); i<l; i++){
+				LUS seq = list.get(i);
+				boolean duplicate = false;
+				for (int j=0; j<kept && !duplicate; j++)
+					duplicate = Arrays.equals(list.get(j).cards, seq.cards);
+				if (duplicate)
+					lus_pool[seq.cards.length].add(seq);
+				else list.set(kept++, seq);
+			}
+			while (list.size() > kept)
+				list.remove(list.size()-1);
+		}
+		return list;
+	}
+	/**
+	 * Streams the usable sequences to a visitor, instead of building a list;
+	 * these are the same sequences as getLUS, in the same order. Each sequence
+	 * is given as a bitmask of the slots it uses (bit i = slot i), so nothing
+	 * is allocated once the tree and duplicate set have warmed up. The rack
+	 * shouldn't be changed, or its sequences queried, while visiting
+	 * @param use_combos include all combinations of sequences as well
+	 * @param v called once for each sequence
+	 * @return the number of sequences visited
+	 * @throws IllegalStateException if the rack has more than 64 slots
+	 */
+	public int visitLUS(boolean use_combos, LUSVisitor v){
+		if (cards.length > 64)
+			throw new IllegalStateException("Only racks of 64 cards or less can be visited");
+		STAT_lus_queries++;
+		LUSCache c = lus;
+		checkMetric(c);
+		//The sequences may have already been found by getLUS
+		if (!c.list_dirty && c.list_combos == use_combos){
+			STAT_lus_hits++;
+			ArrayList<LUS> list = c.list;
+			for (int s=0, l=list.size(); s<l; s++){
+				int[] indexes = list.get(s).indexes;
+				long slots = 0;
+				for (int i=0; i<indexes.length; i++)
+					slots |= 1L << indexes[i];
+				v.visit(slots);
+			}
+			return list.size();
+		}
+		STAT_lus_rebuilds++;
+		if (c.tree_valid < cards.length){
+			STAT_lus_slots += cards.length-c.tree_valid;
+			c.rebuildTree();
+		}
+		lus_visitor = v;
+		lus_visit_count = 0;
+		if (use_combos){
+			if (lus_seen == null)
+				lus_seen = new LongSet(64);
+			lus_seen.clear();
+		}
+		//Empty sequences are only given if there are no others
+		if (c.tree.branches.isEmpty())
+			visitSequence(0);
+		else visitTree(c.tree, 0, use_combos);
+		lus_visitor = null;
+		return lus_visit_count;
+	}
+	/**
+	 * Gets the sequence for a bitmask of slots, as given by visitLUS
+	 * @param slots bit i is set if slot i is in the sequence
+	 * @return the sequence; it is reused, so it is only valid until the next
+	 * call with a sequence of the same length
+	 */
+	public LUS toLUS(long slots){
+		int length = Long.bitCount(slots);
+		LUS seq = lus_visit[length];
+		if (seq == null)
+			seq = lus_visit[length] = new LUS(new int[length], new int[length]);
+		for (int i=0; slots != 0; i++, slots &= slots-1){
+			int slot = Long.numberOfTrailingZeros(slots);
+			seq.cards[i] = cards[slot];
+			seq.indexes[i] = slot;
+		}
+		return seq;
+	}
+	/**
+	 * Bounded version of getLUS, that only gives the k best sequences, so the
+	 * work doesn't blow up on large racks. Sequences are ranked by length,
+	 * and then by the ranker. This is a best-first search over the LUS tree,
+	 * where a partial sequence's priority is the longest it could become, so
+	 * sequences are found from longest to shortest; it stops once the k best
+	 * have been found, or after expanding "budget" partial sequences. The
+	 * budget is raised to the rack size+1 if needed, so at least one of the
+	 * longest sequences is always found
+	 * @param use_combos include all combinations of sequences as well
+	 * @param k how many sequences to give
+	 * @param budget most partial sequences to expand
+	 * @param ranker ranks sequences of the same length; if null, they're
+	 * just given in the order they're found
+	 * @return up to k sequences, best first; the list and its sequences are
+	 * reused, so they are only valid until the next call
+	 */
+	public ArrayList<LUS> getBestLUS(boolean use_combos, int k, int budget, LUSRanker ranker){
+		STAT_lus_queries++;
+		STAT_lus_rebuilds++;
+		LUSCache c = lus;
+		checkMetric(c);
+		if (c.tree_valid < cards.length){
+			STAT_lus_slots += cards.length-c.tree_valid;
+			c.rebuildTree();
+		}
+		ArrayList<LUS> best = lus_best;
+		for (int i=0, l=best.size(); i<l; i++){
+			LUS seq = best.get(i);
+			lus_pool[seq.cards.length].add(seq);
+		}
+		best.clear();
+		if (k < 1)
+			return best;
+		//Empty sequences are only given if there are no others
+		if (c.tree.branches.isEmpty()){
+			best.add(newLUS(0));
+			return best;
+		}
+		
+		//Longest chain starting at each node; branches are always in later slots
+		int root_height = 0;
+		for (int i=cards.length-1; i>=0; i--){
+			ArrayList<LUSTree> branches = c.nodes[i].branches;
+			int height = 0;
+			for (int j=0, l=branches.size(); j<l; j++)
+				height = Math.max(height, lus_height[branches.get(j).index]);
+			lus_height[i] = height+1;
+		}
+		for (int j=0, l=c.tree.branches.size(); j<l; j++)
+			root_height = Math.max(root_height, lus_height[c.tree.branches.get(j).index]);
+		
+		//With a ranker, ties for the last spot are collected too, so they can be ranked
+		int max_found = ranker == null ? k : k*4;
+		if (budget < cards.length+1)
+			budget = cards.length+1;
+		search_states = 0;
+		search_heap_size = 0;
+		pushState(-1, -1, 0, root_height);
+		for (int expanded=0; search_heap_size > 0; expanded++){
+			if (expanded == budget){
+				STAT_lus_truncated++;
+				break;
+			}
+			int state = popState(), length = search_length[state];
+			//Everything left is shorter than the k'th best
+			if (best.size() >= k && search_bound[state] < best.get(k-1).cards.length)
+				break;
+			int node = search_node[state];
+			ArrayList<LUSTree> branches = node == -1 ? c.tree.branches : c.nodes[node].branches;
+			//This is the end of a sequence
+			if (branches.isEmpty()){
+				if (length > 0 && addBest(state, use_combos) && best.size() == max_found)
+					break;
+				continue;
+			}
+			//Take the next card, or with combinations, skip it; newer states
+			//go first, so branches are added in reverse to search them in order
+			for (int i=branches.size()-1; i>=0; i--){
+				int slot = branches.get(i).index;
+				pushState(slot, state, length+1, length+lus_height[slot]);
+				if (use_combos)
+					pushState(slot, state, length, length+lus_height[slot]-1);
+			}
+		}
+		
+		//Rank sequences of the same length; they were found longest first
+		if (ranker != null){
+			int found = best.size();
+			if (search_ranks == null || search_ranks.length < found)
+				search_ranks = new double[Math.max(found, 16)];
+			for (int i=0; i<found; i++){
+				double rank = ranker.rank(this, best.get(i));
+				LUS seq = best.get(i);
+				int j = i;
+				for (; j>0 && best.get(j-1).cards.length == seq.cards.length && search_ranks[j-1] < rank; j--){
+					best.set(j, best.get(j-1));
+					search_ranks[j] = search_ranks[j-1];
 				}
-				lus_cache = seq_new;
-			}
-			//Max length only changes when we reload al
-			else if (reload_all){
-				lus_max_length = 0;
-				for (LUS seq: lus_cache){
-					if (seq.cards.length > lus_max_length)
-						lus_max_length = seq.cards.length;
+				best.set(j, seq);
+				search_ranks[j] = rank;
+			}
+		}
+		while (best.size() > k){
+			LUS seq = best.remove(best.size()-1);
+			lus_pool[seq.cards.length].add(seq);
+		}
+		return best;
+	}
+	/**
+	 * Adds a partial sequence to the search heap
+	 * @param node slot of the last node in the tree; -1 for the root
+	 * @param parent the state it came from
+	 * @param length how many cards have been taken
+	 * @param bound the longest sequence it could become
+	 */
+	private void pushState(int node, int parent, int length, int bound){
+		if (search_node == null || search_states == search_node.length){
+			int size = search_node == null ? 256 : search_node.length*2;
+			search_node = search_node == null ? new int[size] : Arrays.copyOf(search_node, size);
+			search_parent = search_parent == null ? new int[size] : Arrays.copyOf(search_parent, size);
+			search_length = search_length == null ? new int[size] : Arrays.copyOf(search_length, size);
+			search_bound = search_bound == null ? new int[size] : Arrays.copyOf(search_bound, size);
+			search_heap = search_heap == null ? new int[size] : Arrays.copyOf(search_heap, size);
+		}
+		int state = search_states++;
+		search_node[state] = node;
+		search_parent[state] = parent;
+		search_length[state] = length;
+		search_bound[state] = bound;
+		//Sift up
+		int i = search_heap_size++;
+		while (i > 0){
+			int up = (i-1) >>> 1;
+			if (!searchBefore(state, search_heap[up]))
+				break;
+			search_heap[i] = search_heap[up];
+			i = up;
+		}
+		search_heap[i] = state;
+	}
+	/**
+	 * Removes the partial sequence that could become the longest
+	 * @return its state
+	 */
+	private int popState(){
+		int top = search_heap[0], last = search_heap[--search_heap_size];
+		//Sift down
+		int i = 0;
+		while (true){
+			int child = 2*i+1;
+			if (child >= search_heap_size)
+				break;
+			if (child+1 < search_heap_size && searchBefore(search_heap[child+1], search_heap[child]))
+				child++;
+			if (!searchBefore(search_heap[child], last))
+				break;
+			search_heap[i] = search_heap[child];
+			i = child;
+		}
+		search_heap[i] = last;
+		return top;
+	}
+	/**
+	 * Heap order; longest bound first, and then the newest state. Bounds are
+	 * exact, so this goes straight down to the end of a longest sequence
+	 * (depth first), rather than trying every state with the same bound
+	 */
+	private boolean searchBefore(int a, int b){
+		int bound_a = search_bound[a], bound_b = search_bound[b];
+		return bound_a > bound_b || (bound_a == bound_b && a > b);
+	}
+	/**
+	 * Adds a finished sequence to the best ones, if it isn't there already
+	 * @param state the search state it ends at
+	 * @param use_combos whether there could be duplicates
+	 * @return true, if it was added
+	 */
+	private boolean addBest(int state, boolean use_combos){
+		int length = search_length[state];
+		LUS seq = newLUS(length);
+		for (int i=length-1; state != 0; state = search_parent[state]){
+			//The card was taken, rather than skipped
+			if (search_length[state] > search_length[search_parent[state]]){
+				seq.indexes[i] = search_node[state];
+				seq.cards[i] = cards[search_node[state]];
+				i--;
+			}
+		}
+		//Combinations can reach the same sequence from different paths
+		if (use_combos){
+			for (int i=0, l=lus_best.size(); i<l; i++){
+				if (Arrays.equals(lus_best.get(i).indexes, seq.indexes)){
+					lus_pool[length].add(seq);
+					return false;
 				}
 			}
 		}
-		
-		return lus_cache;
+		lus_best.add(seq);
+		return true;
 	}
 	/**
-	 * Return longest usable sequence length
+	 * Return longest usable sequence length; this doesn't build the tree
+	 * that getLUS uses, so it is much cheaper
 	 * @return length of longest usable sequence
 	 */
 	public int getLUSLength(){
-		//Run the LUS computations, if they haven't been done yet
-		if (lus_cache.isEmpty())
-			getLUS(false);
-		return lus_max_length;
+		STAT_lus_queries++;
+		LUSCache c = lus;
+		if (c.length_valid == cards.length){
+			STAT_lus_hits++;
+			return c.piles;
+		}
+		STAT_lus_rebuilds++;
+		STAT_lus_slots += cards.length-c.length_valid;
+		c.longestUsable();
+		return c.piles;
+	}
+	/**
+	 * Gets one of the longest usable sequences; if there are several, this
+	 * is the one that ends furthest right
+	 * @return the sequence; it is reused, so it is only valid until the rack changes
+	 */
+	public LUS getLongestLUS(){
+		STAT_lus_queries++;
+		LUSCache c = lus;
+		if (c.length_valid < cards.length){
+			STAT_lus_rebuilds++;
+			STAT_lus_slots += cards.length-c.length_valid;
+			c.longestUsable();
+		}
+		else STAT_lus_hits++;
+		int length = c.piles;
+		if (c.best_dirty){
+			c.best_dirty = false;
+			if (c.best == null || c.best.cards.length != length){
+				if (c.best != null)
+					lus_pool[c.best.cards.length].add(c.best);
+				c.best = newLUS(length);
+			}
+			//Follow the predecessors back from the end of the sequence
+			int slot = length == 0 ? -1 : c.tails[length-1];
+			for (int i=length-1; i>=0; i--){
+				c.best.cards[i] = cards[slot];
+				c.best.indexes[i] = slot;
+				slot = c.prev[slot];
+			}
+		}
+		return c.best;
+	}
+	/**
+	 * Forgets the cached results for a slot onwards, as if its card had just been
+	 * swapped; for benchmarks, which need the rack to stay the same (swapping a card
+	 * back would just restore the old results, see swap)
+	 * @param slot the first slot to recompute
+	 */
+	void invalidateCaches(int slot){
+		lus.invalidate(slot);
+		lus_stash.invalidate(slot);
+		prob_cache_dirty[slot] = true;
+		prob_cache_changed = true;
+	}
+	/**
+	 * Resets the LUS cache statistics
+	 */
+	public void resetLUSStats(){
+		STAT_lus_queries = 0;
+		STAT_lus_hits = 0;
+		STAT_lus_restores = 0;
+		STAT_lus_rebuilds = 0;
+		STAT_lus_slots = 0;
+		STAT_lus_truncated = 0;
+		STAT_lus_nodes = 0;
+		STAT_lus_pruned = 0;
+	}
+	
+	/**
+	 * Longest usable sequence results for one arrangement of the rack
+	 * Both the tree and the length are built one slot at a time, from left
+	 * to right, so if a slot changes, the results for the slots before it
+	 * are still correct, and only the rest are recomputed
+	 */
+	private class LUSCache{
+		//Tree of every usable sequence; only the first tree_valid slots are inserted correctly
+		private final LUSTree tree;
+		private final LUSTree[] nodes;			//tree node for each slot
+		private int tree_valid;
+		private int tree_turn;					//deck turn the tree was built on, for the usability metric
+		//Sequences from the tree
+		private final ArrayList<LUS> list;
+		private boolean list_dirty, list_combos;
+		//Patience sorting for the longest usable length; steps have been done
+		//for the first "steps" slots, and the first "length_valid" of them are
+		//correct; each step records the pile it changed and the card that
+		//was on top before (-1 for a new pile), so they can be undone
+		private final int[] tails, prev;		//top of each pile; predecessor of each slot
+		private final int[] step_pile, step_top;
+		private int steps, length_valid, piles;
+		private LUS best;
+		private boolean best_dirty;
+		
+		public LUSCache(int size){
+			tree = new LUSTree(game.card_count, size);
+			nodes = new LUSTree[size];
+			for (int i=0; i<size; i++)
+				nodes[i] = new LUSTree(game.card_count, size);
+			list = new ArrayList();
+			tails = new int[size];
+			prev = new int[size];
+			step_pile = new int[size];
+			step_top = new int[size];
+		}
+		/**
+		 * Marks everything from a slot onwards as out of date
+		 * @param slot the first slot that changed
+		 */
+		public void invalidate(int slot){
+			list_dirty = true;
+			if (slot < tree_valid)
+				tree_valid = slot;
+			if (slot < length_valid)
+				length_valid = slot;
+		}
+		/**
+		 * Removes every slot after tree_valid from the tree, and inserts them again
+		 */
+		public void rebuildTree(){
+			int valid = tree_valid;
+			if (valid == 0)
+				tree.reset(0, 0);
+			else{
+				//Cards are inserted in slot order, so later slots are always
+				//at the end of a node's branches
+				tree.truncate(valid);
+				for (int i=0; i<valid; i++)
+					nodes[i].truncate(valid);
+			}
+			for (int i=valid; i<cards.length; i++)
+				tree.insert(nodes[i].reset(cards[i], i));
+			STAT_lus_nodes += cards.length-valid;
+			tree_valid = cards.length;
+			tree_turn = game.deck.getTurns();
+		}
+		/**
+		 * Computes the longest usable sequence length in O(n log n)
+		 * A card can be used in slot i if card-i is between 1 and card_count-rack_size+1
+		 * (enough room below and above it); card b can follow card a if there is
+		 * enough room between them, card_b-card_a >= i_b-i_a, which is the same as
+		 * card_b-i_b >= card_a-i_a (and that also means card_b > card_a). So this
+		 * is the longest non-decreasing subsequence of card-i, among usable cards.
+		 * These are the same rules LUSTree uses
+		 */
+		public void longestUsable(){
+			//Undo the steps for slots that have changed
+			for (int i=steps-1; i>=length_valid; i--){
+				int pile = step_pile[i];
+				if (pile == -1)
+					continue;
+				if (step_top[i] == -1)
+					piles--;
+				else tails[pile] = step_top[i];
+			}
+			int max_key = game.card_count-cards.length+1;
+			for (int i=length_valid; i<cards.length; i++){
+				int key = cards[i]-i;
+				if (key < 1 || key > max_key){
+					step_pile[i] = -1;
+					continue;
+				}
+				//Find the first pile whose top has a larger key
+				int lo = 0, hi = piles;
+				while (lo < hi){
+					int mid = (lo+hi) >>> 1;
+					int top = tails[mid];
+					if (cards[top]-top > key)
+						hi = mid;
+					else lo = mid+1;
+				}
+				step_pile[i] = lo;
+				step_top[i] = lo == piles ? -1 : tails[lo];
+				prev[i] = lo == 0 ? -1 : tails[lo-1];
+				tails[lo] = i;
+				if (lo == piles)
+					piles++;
+			}
+			steps = length_valid = cards.length;
+			best_dirty = true;
+		}
+	}
+	/**
+	 * Convert the tree into linearized sequences (topological sorts),
+	 * adding them to the current cache; this is a depth first search, where
+	 * lus_path holds the nodes on the way down
+	 * @param node the current node
+	 * @param depth how many nodes are in the path so far
+	 * @param use_combos include all combinations of sequences as well
+	 */
+	private void linearize(LUSTree node, int depth, boolean use_combos){
+		if (node.card != 0){
+			//If getting all combinations, recurse without adding
+			if (use_combos)
+				linearizeBranches(node, depth, use_combos);
+			lus_path[depth++] = node;
+		}
+		linearizeBranches(node, depth, use_combos);
+	}
+	/**
+	 * Same as linearize, but streams the sequences to lus_visitor
+	 * @param node the current node
+	 * @param path bitmask of the slots in the path so far
+	 * @param use_combos include all combinations of sequences as well
+	 */
+	private void visitTree(LUSTree node, long path, boolean use_combos){
+		if (node.card != 0){
+			if (use_combos)
+				visitBranches(node, path, use_combos);
+			path |= 1L << node.index;
+		}
+		visitBranches(node, path, use_combos);
+	}
+	private void visitBranches(LUSTree node, long path, boolean use_combos){
+		if (node.branches.isEmpty()){
+			//Without combinations, every path through the tree is different
+			if (path != 0 && (!use_combos || lus_seen.add(path)))
+				visitSequence(path);
+		}
+		else{
+			for (int i=0, l=node.branches.size(); i<l; i++)
+				visitTree(node.branches.get(i), path, use_combos);
+		}
+	}
+	private void visitSequence(long path){
+		lus_visit_count++;
+		lus_visitor.visit(path);
+	}
+	private void linearizeBranches(LUSTree node, int depth, boolean use_combos){
+		//This is the end of a sequence
+		if (node.branches.isEmpty()){
+			if (depth == 0)
+				lus_empty_count++;
+			else if (!use_combos || cards.length > 64 || lus_seen.add(pathSlots(depth))){
+				LUS seq = newLUS(depth);
+				for (int i=0; i<depth; i++){
+					seq.cards[i] = lus_path[i].card;
+					seq.indexes[i] = lus_path[i].index;
+				}
+				lus.list.add(seq);
+			}
+		}
+		//Otherwise, branch
+		else{
+			for (int i=0, l=node.branches.size(); i<l; i++)
+				linearize(node.branches.get(i), depth, use_combos);
+		}
+	}
+	/**
+	 * Bitmask of the slots in lus_path, the same as visitTree's path
+	 * @param depth how many nodes are in the path
+	 * @return bit i is set if slot i is in the path
+	 */
+	private long pathSlots(int depth){
+		long slots = 0;
+		for (int i=0; i<depth; i++)
+			slots |= 1L << lus_path[i].index;
+		return slots;
+	}
+	/**
+	 * Get a sequence of a certain length, reusing a spare one if possible
+	 * @param length the sequence length
+	 * @return the sequence; its contents are undefined
+	 */
+	private LUS newLUS(int length){
+		ArrayList<LUS> pool = lus_pool[length];
+		if (pool.isEmpty())
+			return new LUS(new int[length], new int[length]);
+		return pool.remove(pool.size()-1);
 	}
 	/**
 	 * Set an optional "usability metric" to prune unwanted sequences (in addition to the default)
 	 * in the subsequent calls to getLUS();  For example, probability of drawing a card
-	 * above/below/between can prune non-usable sequences
+	 * above/below/between can prune non-usable sequences (see DeckMetric)
+	 * The metric is applied as cards are inserted into the LUS tree, so it affects
+	 * getLUS, visitLUS and getBestLUS; getLUSLength, getLongestLUS and evaluateSwaps
+	 * always use the default rules. Metrics can depend on the deck, so the tree is
+	 * rebuilt every turn
 	 * @param um the usability metric; null to reset to default
 	 */
 	public void setLUSMetric(UsableMetric um){
 		lus_metric = um;
+		lus.invalidate(0);
+		lus_stash.invalidate(0);
+	}
+	/**
+	 * The usability metric may have changed its mind since the tree was
+	 * built, if the deck has changed
+	 * @param c the cache that is about to be used
+	 */
+	private void checkMetric(LUSCache c){
+		if (lus_metric != null && c.tree_turn != game.deck.getTurns())
+			c.invalidate(0);
 	}
 	/**
 	 * Specify a usablility metric for finding longest-usable-sequences
@@ -571,6 +1358,43 @@ public class Rack {
 		public boolean between(int card_hi, int idx_hi, int card_lo, int idx_lo);
 	}
 	
+	/**
+	 * Ranks sequences of the same length, for getBestLUS
+	 */
+	public interface LUSRanker{
+		/**
+		 * @param r the rack the sequence is from
+		 * @param seq the sequence
+		 * @return the sequence's rank; higher is better
+		 */
+		public double rank(Rack r, LUS seq);
+	}
+	//Rankers using the sequence scoring functions; the flat distribution's clump error, and the
+	//probability of drawing cards to fill in the gaps
+	public static final LUSRanker
+		RANK_CLUMP_DE = new LUSRanker(){
+			@Override
+			public double rank(Rack r, LUS seq){
+				return r.scoreClumpDE(seq, r.game.dist_flat, null);
+			}
+		},
+		RANK_PROBABILITY = new LUSRanker(){
+			@Override
+			public double rank(Rack r, LUS seq){
+				return r.scoreProbability(seq, null, false, true, 0);
+			}
+		};
+	/**
+	 * Receives usable sequences from visitLUS
+	 */
+	public interface LUSVisitor{
+		/**
+		 * Called for each sequence
+		 * @param slots bit i is set if slot i is in the sequence (see toLUS)
+		 */
+		public void visit(long slots);
+	}
+	
 	/**
 	 * Holds cached longest-usable-sequence results
 	 * cards = the card numbers in the sequence
@@ -588,36 +1412,59 @@ public class Rack {
 	 * Holds a tree that can be used to construct every
 	 * usable sequence, through a depth first search
 	 */
-	private static class LUSTree{
-		private static final ArrayList<ArrayList<LUSTree>> seqs = new ArrayList();
+	private class LUSTree{
 		public final ArrayList<LUSTree> branches;
-		public final int card, index;
+		public int card, index;
 		//Keep track of insertion results, so we don't go back to the same node twice
 		private int build_id;
 		private boolean build_result;
 		//Game variables
 		private final int game_cards, game_racksize;
 		
-		public LUSTree(int card, int index, int game_cards, int game_racksize){
-			this.card = card;
-			this.index = index;
+		public LUSTree(int game_cards, int game_racksize){
 			this.game_cards = game_cards;
 			this.game_racksize = game_racksize;
 			branches = new ArrayList();
+		}
+		/**
+		 * Turn this into a leaf node (a card), so it can be inserted into a tree
+		 * @param card the card; use 0 for the root of a tree
+		 * @param index the card's position in the rack
+		 * @return this node
+		 */
+		public LUSTree reset(int card, int index){
+			this.card = card;
+			this.index = index;
+			branches.clear();
+			build_id = 0;
+			return this;
+		}
+		/**
+		 * Removes branches to cards in later slots, as if they had never been inserted
+		 * @param slot remove cards from this slot onwards
+		 */
+		public void truncate(int slot){
+			for (int i=branches.size()-1; i>=0 && branches.get(i).index >= slot; i--)
+				branches.remove(i);
 			build_id = 0;
 		}
 		
 		/**
-		 * Add a card to the tree
+		 * Add a card to the tree; the usability metric is checked as well
 		 * @param node a leaf node (a card)
 		 */
 		public void insert(LUSTree node){
 			//Make sure there is enough usable space above/below the card
 			if (game_cards-node.card < game_racksize-node.index-1 || node.card-1 < node.index)
 				return;
+			if (lus_metric != null && (!lus_metric.below(node.card, node.index) || !lus_metric.above(node.card, node.index))){
+				STAT_lus_pruned++;
+				return;
+			}
 			//Check if it can be added to any branches
 			boolean added = false;
-			for (LUSTree n: branches){
+			for (int i=0, l=branches.size(); i<l; i++){
+				LUSTree n = branches.get(i);
 				n.insert_recursive(node);
 				if (n.build_result)
 					added = true;
@@ -633,7 +1480,8 @@ public class Rack {
 			else{
 				build_result = false;
 				//Check to see if it can be inserted somewhere further
-				for (LUSTree n: branches){
+				for (int i=0, l=branches.size(); i<l; i++){
+					LUSTree n = branches.get(i);
 					//This node has already been visited
 					if (n.build_id == build_id){
 						if (n.build_result)
@@ -648,63 +1496,150 @@ public class Rack {
 				//If not, we'll insert it here
 				//Make sure there is enough usable in between the cards
 				if (!build_result && (node.card-card >= node.index-index)){
-					branches.add(node);
-					build_result = true;
+					if (lus_metric == null || lus_metric.between(node.card, node.index, card, index)){
+						branches.add(node);
+						build_result = true;
+					}
+					else STAT_lus_pruned++;
 				}
 			}
 		}
-		/**
-		 * Convert the tree into linearized sequences
-		 *  (topological sorts)
-		 * @return a list of sequences
-		 */
-		public ArrayList<LUS> linearize(boolean use_combos){
-			//Linearize the tree
-			seqs.clear();
-			linearize_recursive(new ArrayList(), use_combos);
-			
-			//Create LUS objects from each linearization
-			int num_seqs = seqs.size();
-			ArrayList<LUS> lus = new ArrayList(num_seqs);
-			for (ArrayList<LUSTree> seq: seqs){
-				int size = seq.size();
-				if (size > 0 || num_seqs == 1){
-					int i = 0;
-					int[] cards = new int[size], indexes = new int[size];
-					for (LUSTree n: seq){
-						cards[i] = n.card;
-						indexes[i++] = n.index;
-					}
-					lus.add(new LUS(cards, indexes));
+	}
+
+	//SWAP EVALUATION
+	/**
+	 * Scores every possible swap of a card into the rack, without changing the rack;
+	 * this gives the same results as swapping the card into each slot and calling
+	 * getLUSLength/sortedPrefix/scorePoints, but shares the work between slots
+	 * The usable sequences are split into the part before a slot and the part
+	 * after it (see LUSCache.longestUsable for the rules); one pass from each end
+	 * gives the longest sequences ending/starting at every slot, and the longest
+	 * ones that the new card could extend, using a Fenwick tree of maximums
+	 * over card-slot. This is O(n log n), rather than O(n) for every slot
+	 * @param card the card to swap in
+	 * @param lus_length LUS length for each slot the card could go in; null to skip
+	 * @param sorted_prefix sorted prefix length for each slot; null to skip
+	 * @param points points for each slot; null to skip
+	 * @param bonusMode see scorePoints
+	 */
+	public void evaluateSwaps(int card, int[] lus_length, int[] sorted_prefix, int[] points, boolean bonusMode){
+		int n = cards.length;
+		if (lus_length != null){
+			int max_key = swap_tree.length-1, longest = 0;
+			//Longest sequence ending at each slot; and the longest before each
+			//slot that the new card could follow
+			Arrays.fill(swap_tree, 0);
+			for (int i=0; i<n; i++){
+				int key = card-i;
+				swap_left[i] = key >= 1 && key <= max_key ? maxBelow(key) : 0;
+				key = cards[i]-i;
+				if (key >= 1 && key <= max_key){
+					swap_up[i] = maxBelow(key)+1;
+					raise(key, swap_up[i]);
+					if (swap_up[i] > longest)
+						longest = swap_up[i];
+				}
+				else swap_up[i] = 0;
+			}
+			//Longest sequence starting at each slot; the tree is indexed
+			//in reverse, so it gives maximums of everything above a card
+			Arrays.fill(swap_tree, 0);
+			Arrays.fill(swap_critical, 0);
+			for (int i=n-1; i>=0; i--){
+				int key = card-i;
+				boolean usable = key >= 1 && key <= max_key;
+				int through = usable ? swap_left[i]+1+maxBelow(max_key+1-key) : 0;
+				key = cards[i]-i;
+				if (key >= 1 && key <= max_key){
+					swap_down[i] = maxBelow(max_key+1-key)+1;
+					raise(max_key+1-key, swap_down[i]);
+					//Count the slots that are part of a longest sequence, by position in the sequence
+					if (swap_up[i]+swap_down[i]-1 == longest)
+						swap_critical[swap_up[i]]++;
 				}
+				else swap_down[i] = 0;
+				swap_left[i] = through;
+			}
+			//If a slot is the only one that can be at its position in the longest
+			//sequences, replacing it makes them shorter; unless the new card fits
+			for (int i=0; i<n; i++){
+				int without = longest;
+				if (swap_up[i] != 0 && swap_up[i]+swap_down[i]-1 == longest && swap_critical[swap_up[i]] == 1)
+					without--;
+				lus_length[i] = Math.max(without, swap_left[i]);
 			}
-			return lus;
 		}
-		private void linearize_recursive(ArrayList<LUSTree> seq, boolean use_combos){
-			if (card != 0){
-				//If getting all combinations, recurse without adding
-				if (use_combos)
-					linearize_recursive_single(new ArrayList(seq), use_combos);
-				seq.add(this);
+		if (sorted_prefix != null || points != null){
+			for (int i=0; i<n; i++){
+				//Only the pairs on either side of the slot change
+				int prefix = sortedPrefixWithout(i);
+				if (i > 0 && card < cards[i-1] && i < prefix)
+					prefix = i;
+				if (i+1 < n && cards[i+1] < card && i+1 < prefix)
+					prefix = i+1;
+				if (sorted_prefix != null)
+					sorted_prefix[i] = prefix;
+				if (points != null)
+					points[i] = prefix < n ? Game.score_single*prefix : scoreSorted(card, i, bonusMode);
 			}
-			linearize_recursive_single(seq, use_combos);
 		}
-		private void linearize_recursive_single(ArrayList<LUSTree> seq, boolean use_combos){
-			//This is the end of a sequence
-			if (branches.isEmpty())
-				seqs.add(seq);
-			//Otherwise, branch
-			else{
-				int len = branches.size(), i = 0;
-				for (LUSTree node: branches){
-					//We need to copy the sequence, so it isn't overriden
-					if (len != ++i)
-						node.linearize_recursive(new ArrayList(seq), use_combos);
-					//We can pass along the original list to one child
-					else node.linearize_recursive(seq, use_combos);
-				}
+	}
+	/**
+	 * Largest value in the Fenwick tree, at or below an index
+	 */
+	private int maxBelow(int i){
+		int max = 0;
+		for (; i>0; i -= i & -i){
+			if (swap_tree[i] > max)
+				max = swap_tree[i];
+		}
+		return max;
+	}
+	/**
+	 * Raises a value in the Fenwick tree
+	 */
+	private void raise(int i, int val){
+		for (; i<swap_tree.length; i += i & -i){
+			if (swap_tree[i] < val)
+				swap_tree[i] = val;
+		}
+	}
+	/**
+	 * Sorted prefix length, ignoring the pairs on either side of a slot
+	 */
+	private int sortedPrefixWithout(int slot){
+		for (int w=0; w<descent_bits.length; w++){
+			long bits = descent_bits[w];
+			if (w == slot >>> 6)
+				bits &= ~(1L << slot);
+			if (w == (slot+1) >>> 6)
+				bits &= ~(1L << (slot+1));
+			if (bits != 0)
+				return (w << 6) + Long.numberOfTrailingZeros(bits);
+		}
+		return cards.length;
+	}
+	/**
+	 * Points for the rack with a card swapped into a slot, when that makes it sorted
+	 */
+	private int scoreSorted(int card, int slot, boolean bonusMode){
+		int score = Game.score_single*cards.length,
+			bonus = 0, cur_streak = 1, max_streak = 1;
+		for (int i=1; i<cards.length; i++){
+			int lo = i-1 == slot ? card : cards[i-1],
+				hi = i == slot ? card : cards[i];
+			boolean is_streak = hi == lo+1;
+			if (is_streak && ++cur_streak > max_streak)
+				max_streak = cur_streak;
+			//Bonus when a streak ends, or at the end of the rack (see scorePoints)
+			if (!is_streak || i+1 == cards.length){
+				if (bonusMode && cur_streak >= Game.bonus_min)
+					bonus += streakBonus(cur_streak);
+				cur_streak = 1;
 			}
 		}
+		boolean winner = max_streak >= game.min_streak;
+		return score + (winner ? Game.score_all : 0) + bonus;
 	}
 
 	//PROBABILITIES
@@ -720,27 +1655,30 @@ public class Rack {
 	 */
 	public double[][] getProbabilities(boolean actual, int mem_limit){
 		//If probabilities have changed, we need to recompute all values
-		int turn = game.deck.getTurns();
-		if (prob_cache_turn != turn || actual != prob_cache_actual || mem_limit != prob_cache_memlimit)
-			Arrays.fill(prob_cache_dirty, true);
-		
-		prob_cache_actual = actual;
-		prob_cache_memlimit = mem_limit;
+		//Estimates depend on every card in the rack, so they're all recomputed if one changes
+		int moves = game.deck.getMoves();
+		if (prob_cache_moves != moves || actual != prob_cache_actual || mem_limit != prob_cache_memlimit || (!actual && prob_cache_changed)){
+			prob_cache_moves = moves;
+			prob_cache_actual = actual;
+			prob_cache_memlimit = mem_limit;
+			prob_cache_changed = false;
+			//Probabilities for the whole rack can be found at once
+			if (actual)
+				game.deck.getRealProbabilities(cards, prob_cache);
+			else game.deck.getProbabilities(this, mem_limit, prob_cache);
+			Arrays.fill(prob_cache_dirty, false);
+			return prob_cache;
+		}
 		
+		//Actual probabilities only change for the cards that changed
 		for (int i=0; i<cards.length; i++){
 			if (prob_cache_dirty[i]){
 				prob_cache_dirty[i] = false;
-				if (actual){
-					prob_cache[i][0] = game.deck.getRealProbability(cards[i], true);
-					prob_cache[i][1] = game.deck.getRealProbability(cards[i], false);
-				}
-				else{
-					prob_cache[i][0] = game.deck.getProbability(cards[i], true, this, mem_limit);
-					prob_cache[i][1] = game.deck.getProbability(cards[i], false, this, mem_limit);
-				}
+				prob_cache[i][0] = game.deck.getRealProbability(cards[i], true);
+				prob_cache[i][1] = game.deck.getRealProbability(cards[i], false);
 			}
 		}
-		
+		prob_cache_changed = false;
 		return prob_cache;
 	}
 	
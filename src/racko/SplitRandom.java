@@ -0,0 +1,89 @@
+package racko;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fast random number generator that can be split into independent streams
+ * This uses the SplitMix64 algorithm (the same one behind SplittableRandom);
+ * a game gets one root generator from its seed, and then splits off a stream
+ * for the deck, each model and each network, so a seed reproduces a run exactly
+ * Not thread safe! Each stream should only be used by a single thread
+ * @author isaac
+ */
+public class SplitRandom extends Random{
+	private static final long serialVersionUID = 1L;
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	//Seeds unseeded generators, so two created at the same time still differ
+	private static final AtomicLong default_seed = new AtomicLong(mix64(System.currentTimeMillis()) ^ mix64(System.nanoTime()));
+	private long state, gamma;
+
+	/**
+	 * Create a generator with an arbitrary seed
+	 */
+	public SplitRandom(){
+		this(default_seed.getAndAdd(2*GOLDEN_GAMMA));
+	}
+	/**
+	 * Create a generator from a seed; generators with the same seed
+	 * will give the exact same sequence of numbers
+	 * @param seed the seed
+	 */
+	public SplitRandom(long seed){
+		this(seed, GOLDEN_GAMMA);
+	}
+	private SplitRandom(long seed, long gamma){
+		super(0);
+		state = seed;
+		this.gamma = gamma;
+	}
+
+	/**
+	 * Creates a new generator whose stream is independent of this one;
+	 * this advances the current generator
+	 * @return the new generator
+	 */
+	public SplitRandom split(){
+		return new SplitRandom(nextLong(), mixGamma(state += gamma));
+	}
+	/**
+	 * Restarts the generator from a new seed
+	 * @param seed the seed
+	 */
+	@Override
+	public void setSeed(long seed){
+		state = seed;
+		gamma = GOLDEN_GAMMA;
+	}
+
+	@Override
+	protected int next(int bits){
+		return (int) (nextLong() >>> (64-bits));
+	}
+	@Override
+	public long nextLong(){
+		return mix64(state += gamma);
+	}
+	@Override
+	public int nextInt(){
+		return (int) nextLong();
+	}
+	@Override
+	public double nextDouble(){
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	private static long mix64(long z){
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+	private static long mixGamma(long z){
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		//Gamma must be odd, and shouldn't have too few bit transitions
+		z = (z ^ (z >>> 33)) | 1L;
+		int n = Long.bitCount(z ^ (z >>> 1));
+		return n < 24 ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+	}
+}